@@ -0,0 +1,103 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir;
+
+import de.christianmahnke.lab.images.BenchmarkImages;
+import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a request for the stack of `nofold` and `transparent-background` from the encoded bytes to the decoded
+ * result, either the full image or a single 512px tile, the image cache is disabled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StackImageQualityServiceBenchmark {
+    // The first page has no fold, odd pages after it are recto like the generated page
+    static final String IDENTIFIER = "DE-611-HS-3461927/00000003.jpg";
+
+    @Param({"1000", "3000"})
+    int width;
+
+    @Param({"true", "false"})
+    boolean regions;
+
+    byte[] content;
+    StackImageQualityService service;
+
+    @Setup
+    public void setup() {
+        // Otherwise the fold stage is an identity transform
+        String side = FoldImageQualityService.guessSide(IDENTIFIER);
+        if ("NONE".equals(side)) {
+            throw new IllegalStateException("No side for " + IDENTIFIER);
+        }
+        Mat page = BenchmarkImages.page(width, "VERSO".equals(side));
+        content = BenchmarkImages.encode(page, ".jpg");
+        page.release();
+
+        FoldImageQualityService fold = new FoldImageQualityService();
+        ReflectionTestUtils.setField(fold, "enabled", true);
+        ReflectionTestUtils.setField(fold, "name", "nofold");
+        ReflectionTestUtils.setField(fold, "analysisWidth", 1000);
+        BackgroundImageQualityService background = new BackgroundImageQualityService();
+        ReflectionTestUtils.setField(background, "enabled", true);
+        ReflectionTestUtils.setField(background, "name", "transparent-background");
+        service = new StackImageQualityService("nofold,transparent-background", Arrays.<ImageQualityService>asList(fold, background));
+        service.setRegions(regions);
+    }
+
+    @Benchmark
+    public BufferedImage full() throws IOException {
+        ImageReader reader = service.processStream(IDENTIFIER, new ByteArrayInputStream(content));
+        return reader.read(0);
+    }
+
+    @Benchmark
+    public BufferedImage tile() throws IOException {
+        ImageReader reader = service.processStream(IDENTIFIER, new ByteArrayInputStream(content));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(width / 2, width / 2, 512, 512));
+        return reader.read(0, param);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images;
+
+import de.christianmahnke.lab.images.opencv.OpenCVUtil;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Synthetic inputs for the benchmarks, the test pattern is created like in generate-pattern.groovy, pages look like
+ * scans of manuscripts with a dark background and a fold line.
+ */
+public class BenchmarkImages {
+    static final List<Scalar> COLORS = Arrays.asList(new Scalar(127, 127, 127), new Scalar(0, 0, 255), new Scalar(0, 255, 0), new Scalar(255, 0, 0), new Scalar(255, 255, 0), new Scalar(255, 0, 255), new Scalar(0, 255, 255), new Scalar(255, 255, 255), new Scalar(0, 0, 0));
+
+    static {
+        OpenCVUtil.load();
+    }
+
+    /**
+     * A grid of 3x3 colored fields, optionally with partly transparent squares at the field borders
+     */
+    public static Mat pattern(int size, boolean alpha) {
+        int field = size / 3;
+        Mat pattern = new Mat(field * 3, field * 3, CvType.CV_8UC3);
+        for (int i = 0; i < COLORS.size(); i++) {
+            pattern.submat(new Rect((i % 3) * field, (i / 3) * field, field, field)).setTo(COLORS.get(i));
+        }
+        if (!alpha) {
+            return pattern;
+        }
+        Mat mask = new Mat(pattern.rows(), pattern.cols(), CvType.CV_8UC1, new Scalar(255));
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                int x = i * field + field - field / 4;
+                int y = j * field + field - field / 4;
+                mask.submat(new Rect(x, y, field / 2, field / 2)).setTo(new Scalar(127));
+            }
+        }
+        Mat bgra = new Mat();
+        Imgproc.cvtColor(pattern, bgra, Imgproc.COLOR_BGR2BGRA);
+        Core.insertChannel(mask, bgra, 3);
+        pattern.release();
+        mask.release();
+        return bgra;
+    }
+
+    /**
+     * A light, slightly rotated page on a dark background with a fold line near the left (recto) or right (verso) edge
+     */
+    public static Mat page(int width, boolean verso) {
+        int height = (int) (width * 1.375);
+        Mat page = new Mat(height, width, CvType.CV_8UC3, new Scalar(5, 5, 5));
+        double angle = verso ? 0.6 : -0.6;
+        Point[] corners = new Point[4];
+        new RotatedRect(new Point(width / 2d, height / 2d), new Size(width * 0.95, height * 0.97), angle).points(corners);
+        Imgproc.fillConvexPoly(page, new MatOfPoint(corners), new Scalar(248, 250, 250));
+
+        int fold = verso ? (int) (width * 0.9) : (int) (width * 0.1);
+        int shift = (int) (Math.tan(Math.toRadians(angle)) * height);
+        Imgproc.line(page, new Point(fold, 0), new Point(fold - shift, height), new Scalar(5, 5, 5), Math.max(2, width / 300));
+
+        int left = verso ? (int) (width * 0.13) : (int) (width * 0.21);
+        for (int y = (int) (height * 0.09); y < height * 0.9; y += Math.max(4, height / 50)) {
+            Imgproc.rectangle(page, new Rect(left, y, (int) (width * 0.66), Math.max(1, height / 160)), new Scalar(70, 80, 90), -1);
+        }
+        return page;
+    }
+
+    public static byte[] encode(Mat img, String extension) {
+        MatOfByte buffer = new MatOfByte();
+        Imgcodecs.imencode(extension, img, buffer);
+        byte[] content = buffer.toArray();
+        buffer.release();
+        return content;
+    }
+
+    /**
+     * Converts to the given BufferedImage type using Java2D, independent of the code under test
+     */
+    public static BufferedImage toBufferedImage(Mat img, int type) {
+        BufferedImage source = OpenCVUtil.matToBufferedImage(img);
+        BufferedImage result = new BufferedImage(source.getWidth(), source.getHeight(), type);
+        Graphics2D g = result.createGraphics();
+        try {
+            g.drawImage(source, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+}
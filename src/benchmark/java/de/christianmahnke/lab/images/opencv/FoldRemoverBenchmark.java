@@ -0,0 +1,79 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv;
+
+import de.christianmahnke.lab.images.BenchmarkImages;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FoldRemoverBenchmark {
+
+    @Param({"1000", "3000", "6000"})
+    int width;
+
+    @Param({"RECTO", "VERSO"})
+    String side;
+
+    // 0 analyses the full resolution
+    @Param({"0", "1000"})
+    int analysisWidth;
+
+    Mat page;
+
+    @Setup
+    public void setup() {
+        page = BenchmarkImages.page(width, "VERSO".equals(side));
+    }
+
+    @TearDown
+    public void tearDown() {
+        page.release();
+    }
+
+    @Benchmark
+    public Mat processMat() {
+        // The input isn't altered, no need to copy it
+        FoldRemover fr = new FoldRemover(page, side);
+        fr.setKeepSize(true);
+        fr.setAnalysisWidth(analysisWidth);
+        Mat result = fr.processMat();
+        if (result != page) {
+            result.release();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv;
+
+import de.christianmahnke.lab.images.BenchmarkImages;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpenCVUtilBenchmark {
+    // All types bufferedImageToMat() can handle
+    static final Map<String, Integer> TYPES = Map.of("3BYTE_BGR", BufferedImage.TYPE_3BYTE_BGR, "4BYTE_ABGR", BufferedImage.TYPE_4BYTE_ABGR, "4BYTE_ABGR_PRE", BufferedImage.TYPE_4BYTE_ABGR_PRE, "BYTE_GRAY", BufferedImage.TYPE_BYTE_GRAY, "BYTE_BINARY", BufferedImage.TYPE_BYTE_BINARY);
+
+    @Param({"1000", "4000", "8000"})
+    int size;
+
+    @Param({"3BYTE_BGR", "4BYTE_ABGR", "4BYTE_ABGR_PRE", "BYTE_GRAY", "BYTE_BINARY"})
+    String type;
+
+    BufferedImage image;
+    Mat mat;
+
+    @Setup
+    public void setup() {
+        Mat pattern = BenchmarkImages.pattern(size, true);
+        image = BenchmarkImages.toBufferedImage(pattern, TYPES.get(type));
+        pattern.release();
+        mat = OpenCVUtil.bufferedImageToMat(image);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mat.release();
+    }
+
+    @Benchmark
+    public Mat bufferedImageToMat() {
+        Mat result = OpenCVUtil.bufferedImageToMat(image);
+        result.release();
+        return result;
+    }
+
+    @Benchmark
+    public BufferedImage matToBufferedImage() {
+        return OpenCVUtil.matToBufferedImage(mat);
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.json;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewrites a synthetic IIIF Presentation API 2 manifest shaped like the ones from the Goobi viewer, with multi
+ * language labels and metadata, one canvas per page.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JSONRewriterBenchmark {
+    static final String SOURCE = "https://viewer.example.org/viewer/api/v1/records/PPN1234/";
+    static final String TARGET = "https://iiif.example.org/iiif/image/v2/";
+
+    @Param({"10", "500", "2000"})
+    int canvases;
+
+    String manifest;
+    JSONRewriter rewriter;
+
+    @Setup
+    public void setup() throws IOException {
+        manifest = new ObjectMapper().writeValueAsString(manifest(canvases));
+        List<JSONRewriteOperation> operations = new ArrayList<JSONRewriteOperation>();
+        operations.add(new IIIFURLRewriteOperation(SOURCE + "(.*)", TARGET + "$1"));
+        operations.add(new GoobiViewerLanguageRewriteOperation());
+        operations.add(new DeletePathRewriteOperation("$.logo"));
+        rewriter = new JSONRewriter(operations);
+    }
+
+    @Benchmark
+    public String rewrite() {
+        return rewriter.rewrite(manifest);
+    }
+
+    static Map<String, Object> label(String value) {
+        Map<String, Object> label = new LinkedHashMap<String, Object>();
+        label.put("de", Arrays.asList(value));
+        label.put("en", Arrays.asList(value));
+        return label;
+    }
+
+    static Map<String, Object> manifest(int canvases) {
+        Map<String, Object> manifest = new LinkedHashMap<String, Object>();
+        manifest.put("@context", "http://iiif.io/api/presentation/2/context.json");
+        manifest.put("@id", SOURCE + "manifest/");
+        manifest.put("@type", "sc:Manifest");
+        manifest.put("label", label("Stammbuch"));
+        manifest.put("attribution", label("Example library"));
+        manifest.put("logo", SOURCE + "logo.png");
+        List<Map<String, Object>> metadata = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 20; i++) {
+            Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("label", label("Field " + i));
+            entry.put("value", label("Value " + i));
+            metadata.add(entry);
+        }
+        manifest.put("metadata", metadata);
+        Map<String, Object> service = new LinkedHashMap<String, Object>();
+        service.put("@context", "http://iiif.io/api/search/1/context.json");
+        service.put("@id", SOURCE + "manifest/search");
+        service.put("label", label("Search"));
+        manifest.put("service", service);
+
+        List<Map<String, Object>> canvasList = new ArrayList<Map<String, Object>>();
+        for (int i = 1; i <= canvases; i++) {
+            String image = SOURCE + "pages/" + i + "/";
+            Map<String, Object> imageService = new LinkedHashMap<String, Object>();
+            imageService.put("@context", "http://iiif.io/api/image/2/context.json");
+            imageService.put("@id", image + "full/");
+            imageService.put("profile", "http://iiif.io/api/image/2/level1.json");
+            Map<String, Object> resource = new LinkedHashMap<String, Object>();
+            resource.put("@id", image + "full/full/max/0/default.jpg");
+            resource.put("@type", "dctypes:Image");
+            resource.put("format", "image/jpeg");
+            resource.put("service", imageService);
+            Map<String, Object> annotation = new LinkedHashMap<String, Object>();
+            annotation.put("@id", image + "annotation");
+            annotation.put("@type", "oa:Annotation");
+            annotation.put("motivation", "sc:painting");
+            annotation.put("resource", resource);
+            annotation.put("on", image + "canvas");
+            Map<String, Object> canvas = new LinkedHashMap<String, Object>();
+            canvas.put("@id", image + "canvas");
+            canvas.put("@type", "sc:Canvas");
+            canvas.put("label", label(String.valueOf(i)));
+            canvas.put("width", 4000);
+            canvas.put("height", 5500);
+            canvas.put("images", Arrays.asList(annotation));
+            canvasList.add(canvas);
+        }
+        Map<String, Object> sequence = new LinkedHashMap<String, Object>();
+        sequence.put("@type", "sc:Sequence");
+        sequence.put("canvases", canvasList);
+        manifest.put("sequences", Arrays.asList(sequence));
+        return manifest;
+    }
+}
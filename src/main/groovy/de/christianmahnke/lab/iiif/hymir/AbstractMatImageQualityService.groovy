@@ -0,0 +1,316 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir
+
+import de.christianmahnke.lab.iiif.hymir.admission.AdmittedRegionProvider
+import de.christianmahnke.lab.iiif.hymir.admission.QualityExecutor
+import de.christianmahnke.lab.iiif.hymir.admission.QualityOverloadException
+import de.christianmahnke.lab.iiif.hymir.cache.ProcessedImageCache
+import de.christianmahnke.lab.iiif.hymir.cache.ProcessedImageKey
+import de.christianmahnke.lab.iiif.hymir.metrics.QualityMetrics
+import de.christianmahnke.lab.iiif.hymir.prefetch.QualityPrefetcher
+import de.christianmahnke.lab.iiif.hymir.util.RequestedSize
+import de.christianmahnke.lab.images.opencv.ImageHeader
+import de.christianmahnke.lab.images.opencv.OpenCVUtil
+import de.christianmahnke.lab.images.opencv.StageRecorder
+import de.christianmahnke.lab.images.opencv.imageio.MatEncoder
+import de.christianmahnke.lab.images.opencv.imageio.OpenCVImageReader
+import de.christianmahnke.lab.images.opencv.region.MatRegionProvider
+import de.christianmahnke.lab.images.opencv.region.RegionProvider
+import de.christianmahnke.lab.images.opencv.region.RegionTransform
+import de.christianmahnke.lab.images.opencv.region.TransformedRegionProvider
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Metrics
+import org.opencv.core.Mat
+import org.opencv.imgcodecs.Imgcodecs
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Value
+
+import javax.imageio.ImageReader
+import java.awt.Dimension
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import java.util.function.Consumer
+import java.util.function.Function
+import java.util.function.Supplier
+
+/**
+ * Base for quality services working on decoded images, results are served from the {@link ProcessedImageCache} if
+ * it's available. Services that implement {@link RegionImageQualityService} only analyse an image once, the regions
+ * requested by the reader are computed on demand. The stages are recorded as {@link QualityMetrics}, in the global
+ * Micrometer registry if there is no {@link MeterRegistry} bean. Decoding and processing run on the
+ * {@link QualityExecutor}, if it's available. Requests for small sizes of the full region decode JPEGs at a reduced
+ * resolution, see {@link RequestedSize}.
+ */
+@Slf4j
+@TypeChecked
+@CompileStatic
+abstract class AbstractMatImageQualityService implements MatImageQualityService {
+
+    @Autowired(required = false)
+    protected ProcessedImageCache processedImageCache
+
+    @Value('${custom.image.quality.regions.enabled:true}')
+    protected boolean regions = true
+
+    @Autowired(required = false)
+    protected MeterRegistry meterRegistry
+
+    protected QualityMetrics metrics
+
+    @Autowired(required = false)
+    protected QualityExecutor qualityExecutor
+
+    @Autowired(required = false)
+    protected QualityPrefetcher prefetcher
+
+    @Value('${custom.image.quality.reducedDecode.enabled:true}')
+    protected boolean reducedDecode = true
+
+    @Value('${custom.image.quality.encoder.jpegQuality:90}')
+    protected int jpegQuality = 90
+
+    @Value('${custom.image.quality.encoder.pngCompression:3}')
+    protected int pngCompression = 3
+
+    @Value('${custom.image.quality.encoder.webpQuality:90}')
+    protected int webpQuality = 90
+
+    protected MatEncoder encoder
+
+    void setProcessedImageCache(ProcessedImageCache processedImageCache) {
+        this.processedImageCache = processedImageCache
+    }
+
+    void setRegions(boolean regions) {
+        this.regions = regions
+    }
+
+    void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry
+        this.metrics = null
+    }
+
+    void setQualityExecutor(QualityExecutor qualityExecutor) {
+        this.qualityExecutor = qualityExecutor
+    }
+
+    void setPrefetcher(QualityPrefetcher prefetcher) {
+        this.prefetcher = prefetcher
+    }
+
+    void setReducedDecode(boolean reducedDecode) {
+        this.reducedDecode = reducedDecode
+    }
+
+    protected String getQualityName() {
+        String quality = getQuality() != null ? getQuality().toString() : null
+        // Services that aren't configured by Spring might not have a name
+        return quality != null ? quality : getClass().getSimpleName()
+    }
+
+    void setEncoder(MatEncoder encoder) {
+        this.encoder = encoder
+    }
+
+    protected MatEncoder getEncoder() {
+        if (encoder == null) {
+            encoder = new MatEncoder(jpegQuality, pngCompression, webpQuality)
+        }
+        return encoder
+    }
+
+    protected QualityMetrics getMetrics() {
+        if (metrics == null) {
+            metrics = new QualityMetrics(meterRegistry != null ? meterRegistry : Metrics.globalRegistry, getQualityName())
+        }
+        return metrics
+    }
+
+    @Override
+    ImageReader processStream(String identifier, InputStream inputStream) {
+        RequestedSize size = reducedDecode ? RequestedSize.current() : null
+        ImageReader reader = processStream(identifier, inputStream, size)
+        if (prefetcher != null) {
+            prefetcher.viewed(identifier, this, size)
+        }
+        return reader
+    }
+
+    /**
+     * Processes an image that will be scaled to the given size, the image is decoded at the smallest resolution
+     * that's still at least this size, if the format supports it
+     *
+     * @param size the requested size or null if the full resolution is needed
+     */
+    ImageReader processStream(String identifier, InputStream inputStream, RequestedSize size) {
+        return processBuffer(identifier, OpenCVUtil.readBuffer(inputStream), size)
+    }
+
+    /**
+     * Processes an image that has already been read, for example by a batch that runs several qualities
+     */
+    ImageReader processBuffer(String identifier, ByteBuffer content, RequestedSize size) {
+        long start = System.nanoTime()
+        try {
+            return process(identifier, content, size)
+        } finally {
+            getMetrics().getProcess().record(System.nanoTime() - start, TimeUnit.NANOSECONDS)
+        }
+    }
+
+    protected ImageReader process(String identifier, ByteBuffer content, RequestedSize size) {
+        ImageHeader header = ImageHeader.read(content)
+        int reduction = reduction(header, size)
+        long weight = QualityExecutor.estimateWeight(header, content.remaining(), reduction)
+        if (reduction > 1) {
+            log.debug("Decoding '${identifier}' (${header}) reduced by ${reduction} for size ${size}")
+        }
+        boolean cached = processedImageCache != null && processedImageCache.isEnabled()
+        ProcessedImageKey key = cached ? ProcessedImageKey.of(identifier, getQualityName(), content, reduction) : null
+        // The pyramid of the full resolution serves every size, without decoding the source
+        ProcessedImageKey full = null
+        if (cached && processedImageCache.hasPyramids()) {
+            full = reduction > 1 ? ProcessedImageKey.of(identifier, getQualityName(), content, 1) : key
+            RegionProvider pyramid = processedImageCache.getPyramid(full)
+            if (pyramid != null) {
+                log.debug("Reading '${identifier}' from pyramid")
+                return getReader(pyramid)
+            }
+        }
+        if (regions && this instanceof RegionImageQualityService) {
+            OpenCVImageReader reader = admit(weight, { processRegions(identifier, decode(content, header, reduction), key) } as Supplier<OpenCVImageReader>)
+            if (reader != null) {
+                reader = admitRegions(reader, weight)
+                storePyramid(full, reduction, reader, weight)
+                return reader
+            }
+        }
+        if (!cached) {
+            return getReader(admit(weight, { processDecoded(identifier, decode(content, header, reduction)) } as Supplier<Mat>))
+        }
+        Mat img = processedImageCache.get(key, {
+            admit(weight, { processDecoded(identifier, decode(content, header, reduction)) } as Supplier<Mat>)
+        } as Supplier<Mat>)
+        OpenCVImageReader reader = getReader(img)
+        storePyramid(full, reduction, reader, weight)
+        return reader
+    }
+
+    protected void storePyramid(ProcessedImageKey full, int reduction, OpenCVImageReader reader, long weight) {
+        // Results of reduced sources can't serve the full resolution
+        if (full == null || reduction != 1) {
+            return
+        }
+        RegionProvider provider = reader.getProvider()
+        if (provider instanceof MatRegionProvider) {
+            processedImageCache.storePyramid(full, provider)
+        } else {
+            // Lazy regions are computed for the whole image, this is admitted like a request of the same image
+            processedImageCache.storePyramid(full, provider, { Runnable write ->
+                admit(weight, { write.run(); return null } as Supplier<Object>)
+            } as Consumer<Runnable>)
+        }
+    }
+
+    protected static int reduction(ImageHeader header, RequestedSize size) {
+        if (header == null || size == null || !header.isReducible()) {
+            return 1
+        }
+        Dimension target = size.resolve(header.getWidth(), header.getHeight())
+        return OpenCVUtil.reductionFactor(header.getWidth(), header.getHeight(), (int) target.width, (int) target.height)
+    }
+
+    /**
+     * Runs a task that decodes and processes an image of the given weight once the {@link QualityExecutor} admits it
+     */
+    protected <T> T admit(long weight, Supplier<T> task) {
+        if (qualityExecutor == null || !qualityExecutor.isEnabled()) {
+            return task.get()
+        }
+        try {
+            return qualityExecutor.execute(getQualityName(), weight, task)
+        } catch (QualityOverloadException e) {
+            getMetrics().rejected()
+            throw e
+        }
+    }
+
+    /**
+     * The regions are computed when the reader is read, so they need to be admitted again, with the same weight
+     */
+    protected OpenCVImageReader admitRegions(OpenCVImageReader reader, long weight) {
+        if (qualityExecutor == null || !qualityExecutor.isEnabled()) {
+            return reader
+        }
+        return getReader(new AdmittedRegionProvider(reader.getProvider(), { Supplier<Mat> read ->
+            admit(weight, read)
+        } as Function<Supplier<Mat>, Mat>))
+    }
+
+    protected OpenCVImageReader processRegions(String identifier, Mat source, ProcessedImageKey key) {
+        Supplier<RegionTransform> analysis = {
+            long pixels = getMetrics().input(source)
+            try {
+                return ((RegionImageQualityService) this).analyze(identifier, source)
+            } finally {
+                getMetrics().done(pixels)
+            }
+        } as Supplier<RegionTransform>
+        RegionTransform transform = key != null ? processedImageCache.getTransform(key, analysis) : analysis.get()
+        if (transform == null) {
+            source.release()
+            return null
+        }
+        return getReader(new TransformedRegionProvider(source, transform))
+    }
+
+    protected Mat decode(ByteBuffer content, ImageHeader header, int reduction) {
+        if (reduction > 1) {
+            Integer mode = header.getChannels() == 1 ? Imgcodecs.IMREAD_GRAYSCALE : Imgcodecs.IMREAD_COLOR
+            return getMetrics().time(StageRecorder.DECODE, () -> OpenCVUtil.loadImage(content, mode, reduction))
+        }
+        return getMetrics().time(StageRecorder.DECODE, () -> OpenCVUtil.loadImage(content, null))
+    }
+
+    protected Mat processDecoded(String identifier, Mat img) {
+        long pixels = getMetrics().input(img)
+        try {
+            return processMat(identifier, img)
+        } finally {
+            getMetrics().done(pixels)
+        }
+    }
+
+    protected OpenCVImageReader getReader(Mat img) {
+        OpenCVImageReader reader = OpenCVImageReader.getInstance(img)
+        reader.setRecorder(getMetrics())
+        reader.setEncoder(getEncoder())
+        return reader
+    }
+
+    protected OpenCVImageReader getReader(RegionProvider provider) {
+        OpenCVImageReader reader = OpenCVImageReader.getInstance(provider)
+        reader.setRecorder(getMetrics())
+        reader.setEncoder(getEncoder())
+        return reader
+    }
+}
@@ -18,8 +18,7 @@
 package de.christianmahnke.lab.iiif.hymir
 
 import de.christianmahnke.lab.images.opencv.BackgroundRemover
-import de.christianmahnke.lab.images.opencv.imageio.OpenCVImageReader
-import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
+import de.christianmahnke.lab.images.opencv.region.RegionTransform
 import de.digitalcollections.iiif.model.image.ImageApiProfile
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
@@ -28,14 +27,13 @@ import org.opencv.core.Mat
 import org.springframework.beans.factory.annotation.Value
 import org.springframework.stereotype.Service
 
-import javax.imageio.ImageReader
 import java.awt.image.BufferedImage
 
 @Slf4j
 @Service
 @TypeChecked
 @CompileStatic
-class BackgroundImageQualityService implements ImageQualityService.Source {
+class BackgroundImageQualityService extends AbstractMatImageQualityService implements RegionImageQualityService {
 
     @Value('${custom.image.quality.background.enabled:true}')
     private boolean enabled
@@ -43,6 +41,9 @@ class BackgroundImageQualityService implements ImageQualityService.Source {
     @Value('${custom.image.quality.background.name:transparent-background}')
     private String name
 
+    @Value('${custom.image.quality.background.engine:AUTO}')
+    private BackgroundRemover.Engine engine
+
     BackgroundImageQualityService() {
 
     }
@@ -64,7 +65,7 @@ class BackgroundImageQualityService implements ImageQualityService.Source {
 
     BufferedImage processImage(String identifier, BufferedImage img) {
         log.info("Processing '${identifier}' with ${this.getClass().getSimpleName()} - Image Info: ${img.getWidth()}x${img.getHeight()}, channels ${img.getColorModel().getNumComponents()}")
-        BackgroundRemover br = new BackgroundRemover(img)
+        BackgroundRemover br = remover(new BackgroundRemover(img))
         return br.processBufferedImage()
     }
 
@@ -74,9 +75,20 @@ class BackgroundImageQualityService implements ImageQualityService.Source {
     }
 
     @Override
-    ImageReader processStream(String identifier, InputStream inputStream) {
-        BackgroundRemover br = new BackgroundRemover(inputStream)
-        Mat img = br.processMat()
-        return OpenCVImageReader.getInstance(img)
+    Mat processMat(String identifier, Mat img) {
+        BackgroundRemover br = remover(new BackgroundRemover(img))
+        return br.processMat()
+    }
+
+    @Override
+    RegionTransform analyze(String identifier, Mat img) {
+        BackgroundRemover br = remover(new BackgroundRemover(img))
+        return br.analyze()
+    }
+
+    protected BackgroundRemover remover(BackgroundRemover br) {
+        br.setRecorder(getMetrics())
+        br.setEngine(engine)
+        return br
     }
 }
@@ -18,9 +18,7 @@
 package de.christianmahnke.lab.iiif.hymir
 
 import de.christianmahnke.lab.images.opencv.FoldRemover
-import de.christianmahnke.lab.images.opencv.OpenCVUtil
-import de.christianmahnke.lab.images.opencv.imageio.OpenCVImageReader
-import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
+import de.christianmahnke.lab.images.opencv.region.RegionTransform
 import de.digitalcollections.iiif.model.image.ImageApiProfile
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
@@ -29,14 +27,13 @@ import org.opencv.core.Mat
 import org.springframework.beans.factory.annotation.Value
 import org.springframework.stereotype.Service
 
-import javax.imageio.ImageReader
 import java.awt.image.BufferedImage
 
 @Slf4j
 @Service
 @TypeChecked
 @CompileStatic
-class FoldImageQualityService implements ImageQualityService.Source {
+class FoldImageQualityService extends AbstractMatImageQualityService implements RegionImageQualityService {
 
     @Value('${custom.image.quality.fold.enabled:true}')
     private boolean enabled
@@ -44,6 +41,9 @@ class FoldImageQualityService implements ImageQualityService.Source {
     @Value('${custom.image.quality.fold.name:nofold}')
     private String name
 
+    @Value('${custom.image.quality.fold.analysisWidth:1000}')
+    private int analysisWidth
+
     FoldImageQualityService() {
 
     }
@@ -64,16 +64,10 @@ class FoldImageQualityService implements ImageQualityService.Source {
     }
 
     BufferedImage processImage(String identifier, BufferedImage img) {
-        String side = null
-        Mat cvImage = OpenCVUtil.bufferedImageToMat(img)
-        if (identifier != null) {
-            side = FoldRemover.guessSide(identifier)
-        }
-        if (side == null) {
-            side = "NONE"
-        }
-        FoldRemover fr = new FoldRemover(img, side)
+        FoldRemover fr = new FoldRemover(img, guessSide(identifier))
+        fr.setRecorder(getMetrics())
         fr.setKeepSize(true)
+        fr.setAnalysisWidth(analysisWidth)
         log.info("Processing '${identifier}' with ${this.getClass().getSimpleName()} - Image Info: ${img.getWidth()}x${img.getHeight()}, channels ${img.getColorModel().getNumComponents()}")
         return fr.processBufferedImage()
     }
@@ -84,7 +78,28 @@ class FoldImageQualityService implements ImageQualityService.Source {
     }
 
     @Override
-    ImageReader processStream(String identifier, InputStream inputStream) {
+    Mat processMat(String identifier, Mat img) {
+        FoldRemover fr = new FoldRemover(img, guessSide(identifier))
+        fr.setRecorder(getMetrics())
+        fr.setKeepSize(true)
+        fr.setAnalysisWidth(analysisWidth)
+        Mat result = fr.processMat()
+        if (result != img) {
+            img.release()
+        }
+        return result
+    }
+
+    @Override
+    RegionTransform analyze(String identifier, Mat img) {
+        FoldRemover fr = new FoldRemover(img, guessSide(identifier))
+        fr.setRecorder(getMetrics())
+        fr.setKeepSize(true)
+        fr.setAnalysisWidth(analysisWidth)
+        return fr.analyze()
+    }
+
+    protected static String guessSide(String identifier) {
         String side = null
         if (identifier != null) {
             side = FoldRemover.guessSide(identifier)
@@ -92,9 +107,6 @@ class FoldImageQualityService implements ImageQualityService.Source {
         if (side == null) {
             side = "NONE"
         }
-        FoldRemover fr = new FoldRemover(inputStream, side)
-        fr.setKeepSize(true)
-        Mat img = fr.processMat()
-        return OpenCVImageReader.getInstance(img)
+        return side
     }
 }
@@ -0,0 +1,37 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir
+
+import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
+import org.opencv.core.Mat
+
+/**
+ * A quality service that can work directly on a decoded OpenCV Mat, this allows plugins to be chained without
+ * encoding and decoding the image between the single stages.
+ */
+interface MatImageQualityService extends ImageQualityService.Source {
+
+    /**
+     * Process an already decoded image
+     *
+     * @param identifier the identifier of the image, might be used to guess processing parameters
+     * @param img the image to process, it might be released or reused by the implementation
+     * @return the processed image
+     */
+    Mat processMat(String identifier, Mat img)
+}
@@ -17,14 +17,19 @@
  */
 package de.christianmahnke.lab.iiif.hymir
 
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import com.google.common.hash.Hashing
 import de.christianmahnke.lab.iiif.hymir.util.BackendMappingUtil
+import de.christianmahnke.lab.iiif.hymir.util.MappingSnapshot
 import de.digitalcollections.iiif.hymir.model.api.HymirPlugin
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
 import groovy.util.logging.Slf4j
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.beans.factory.annotation.Value
-import org.springframework.http.HttpStatus
+import org.springframework.http.CacheControl
 import org.springframework.http.MediaType
 import org.springframework.http.ResponseEntity
 import org.springframework.web.bind.annotation.CrossOrigin
@@ -33,6 +38,9 @@ import org.springframework.web.bind.annotation.RequestMethod
 import org.springframework.web.bind.annotation.RestController
 
 import javax.servlet.http.HttpServletRequest
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
 
 @RestController
 @RequestMapping(value = "/mappings")
@@ -42,13 +50,22 @@ import javax.servlet.http.HttpServletRequest
 class ProxyIntrospectionController implements HymirPlugin {
 
     static String DEFAULT_PREFIX = '/image/v2/'
+    protected static final MediaType JAVASCRIPT = MediaType.valueOf('text/javascript')
+    protected static final ObjectMapper MAPPER = new ObjectMapper()
 
     @Value('${custom.iiif.image.urlPrefix:/image/v2/}')
     public static String iiifImageApiUrlPrefix
 
+    // Seconds clients may cache the mappings
+    @Value('${custom.iiif.mappings.maxAge:300}')
+    long maxAge = 300
+
     @Autowired
     BackendMappingUtil bmu
 
+    // Rendered responses by snapshot, endpoint and URL base, the number of URL bases is usually small
+    protected Cache<String, Rendered> rendered = Caffeine.newBuilder().maximumSize(64).<String, Rendered> build()
+
     ProxyIntrospectionController(@Autowired BackendMappingUtil bmu) {
         this.bmu = bmu
     }
@@ -87,34 +104,75 @@ class ProxyIntrospectionController implements HymirPlugin {
 
     @CrossOrigin
     @RequestMapping(value = "/json", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    ResponseEntity<Map> listBackendsJSON() {
-        return new ResponseEntity<Map>(bmu.getMappings(), HttpStatus.OK)
+    ResponseEntity<byte[]> listBackendsJSON() {
+        MappingSnapshot snapshot = bmu.getSnapshot()
+        return respond(render(snapshot, 'json', '', () -> MAPPER.writeValueAsBytes(snapshot.mappings)), MediaType.APPLICATION_JSON)
     }
 
     @RequestMapping(value = "/json/patterns", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    ResponseEntity<Map> listPatternsJSON(HttpServletRequest request) {
+    ResponseEntity<byte[]> listPatternsJSON(HttpServletRequest request) {
         String newPrefix = getUrlBase(request) + getIiifImageApiUrlPrefix()
-        return new ResponseEntity<Map>(bmu.mappingPatterns(newPrefix), HttpStatus.OK)
+        MappingSnapshot snapshot = bmu.getSnapshot()
+        return respond(render(snapshot, 'patterns', newPrefix, () -> MAPPER.writeValueAsBytes(snapshot.patterns(newPrefix))), MediaType.APPLICATION_JSON)
     }
 
     @RequestMapping(value = "/js", method = RequestMethod.GET, produces = "text/javascript")
     @CrossOrigin
-    ResponseEntity<String> listBackendsJS(HttpServletRequest request) {
+    ResponseEntity<byte[]> listBackendsJS(HttpServletRequest request) {
         String newPrefix = getUrlBase(request) + getIiifImageApiUrlPrefix()
-        StringBuilder js = new StringBuilder()
-        js.append("var proxyBaseUrl = '${newPrefix}';\n\n")
-        js.append("function rewriteURL(url) {\n")
-        bmu.mappingPatterns(newPrefix).each { from, to ->
-            from = from.replace('/', '\\/')
+        MappingSnapshot snapshot = bmu.getSnapshot()
+        return respond(render(snapshot, 'js', newPrefix, () -> renderJS(newPrefix, snapshot.patterns(newPrefix)).getBytes(StandardCharsets.UTF_8)), JAVASCRIPT)
+    }
+
+    /**
+     * Generates a function {@code rewriteURL(url)}, that replaces the first match of the first matching pattern, the
+     * patterns are tried in configuration order
+     */
+    static String renderJS(String newPrefix, Map<String, String> patterns) {
+        List<String> mappings = new ArrayList<String>()
+        patterns.each { String from, String to ->
             // We could check for '/info.json' suffix here but then this wouldn't be API agnostic anymore
-            js.append("\t" + '// url = url.replace(/' + from + '/mg, "' + to + '");' + "\n")
-            js.append("\t" + 'if (url.match(/' + from + '/mg)) {' + "\n")
-            js.append("\t\t" + 'return url.replace(/' + from + '/mg, "' + to + '");' + "\n")
-            js.append("\t}\n")
+            mappings.add('[/' + from.replace('/', '\\/') + '/m, ' + quote(to) + ']')
+        }
+        StringBuilder js = new StringBuilder()
+        js.append('var proxyBaseUrl = ' + quote(newPrefix) + ';\n')
+        js.append('var proxyMappings = [' + mappings.join(',\n\t') + '];\n\n')
+        js.append('function rewriteURL(url) {\n')
+        js.append('\tfor (var i = 0; i < proxyMappings.length; i++) {\n')
+        js.append('\t\tif (proxyMappings[i][0].test(url)) {\n')
+        js.append('\t\t\treturn url.replace(proxyMappings[i][0], proxyMappings[i][1]);\n')
+        js.append('\t\t}\n')
+        js.append('\t}\n')
+        js.append('\treturn url;\n')
+        js.append('}\n')
+        return js.toString()
+    }
+
+    protected static String quote(String value) {
+        return MAPPER.writeValueAsString(value)
+    }
+
+    protected Rendered render(MappingSnapshot snapshot, String type, String newPrefix, Supplier<byte[]> body) {
+        return rendered.get("${snapshot.version}/${type}/${newPrefix}".toString(), (String key) -> new Rendered(body.get()))
+    }
+
+    protected ResponseEntity<byte[]> respond(Rendered body, MediaType type) {
+        // Conditional requests are answered with 304 by Spring
+        return ResponseEntity.ok()
+            .contentType(type)
+            .eTag(body.etag)
+            .cacheControl(CacheControl.maxAge(maxAge, TimeUnit.SECONDS).cachePublic())
+            .body(body.bytes)
+    }
+
+    protected static class Rendered {
+        final byte[] bytes
+        final String etag
+
+        Rendered(byte[] bytes) {
+            this.bytes = bytes
+            this.etag = '"' + Hashing.murmur3_128().hashBytes(bytes).toString() + '"'
         }
-        js.append("\treturn url;\n")
-        js.append("}\n")
-        return new ResponseEntity<String>(js.toString(), HttpStatus.OK)
     }
 
     @Override
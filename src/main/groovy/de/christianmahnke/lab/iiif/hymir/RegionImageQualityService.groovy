@@ -0,0 +1,37 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir
+
+import de.christianmahnke.lab.images.opencv.region.RegionTransform
+import org.opencv.core.Mat
+
+/**
+ * A quality service that can split its work into an analysis of the whole image and the processing of single
+ * regions, tiles of the same image only need to be analysed once.
+ */
+interface RegionImageQualityService extends MatImageQualityService {
+
+    /**
+     * Analyse an image without processing it, the result can be applied to single regions (like tiles) later
+     *
+     * @param identifier the identifier of the image, might be used to guess processing parameters
+     * @param img the image to analyse, it's not altered or released
+     * @return the transformation or null if the image can't be processed region by region
+     */
+    RegionTransform analyze(String identifier, Mat img)
+}
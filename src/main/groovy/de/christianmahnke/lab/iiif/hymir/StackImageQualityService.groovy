@@ -17,23 +17,31 @@
  */
 package de.christianmahnke.lab.iiif.hymir
 
+import de.christianmahnke.lab.iiif.hymir.util.RequestedSize
+import de.christianmahnke.lab.images.opencv.OpenCVUtil
+import de.christianmahnke.lab.images.opencv.region.ChainedTransform
+import de.christianmahnke.lab.images.opencv.region.RegionTransform
+import de.christianmahnke.lab.images.opencv.region.TransformedRegionProvider
 import de.christianmahnke.lab.images.opencv.imageio.OpenCVImageReader
 import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
 import de.digitalcollections.iiif.model.image.ImageApiProfile
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
 import groovy.util.logging.Slf4j
+import org.opencv.core.Mat
+import org.opencv.core.Rect
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.beans.factory.annotation.Value
 import org.springframework.stereotype.Service
 
 import javax.imageio.ImageReader
+import java.nio.ByteBuffer
 
 @Slf4j
 @Service
 @TypeChecked
 @CompileStatic
-class StackImageQualityService implements ImageQualityService.Source {
+class StackImageQualityService extends AbstractMatImageQualityService implements RegionImageQualityService {
 
     @Value('${custom.image.quality.stack.enabled:false}')
     private boolean enabled
@@ -92,20 +100,58 @@ class StackImageQualityService implements ImageQualityService.Source {
     }
 
     @Override
-    ImageReader processStream(String identifier, InputStream inputStream) {
-        ImageReader reader
-        int i = 0
+    Mat processMat(String identifier, Mat img) {
         for (service in services) {
-            reader = service.processStream(identifier, inputStream)
-            if (i + 1 == services.size()) {
-                return reader
+            if (service instanceof MatImageQualityService) {
+                img = ((MatImageQualityService) service).processMat(identifier, img)
             } else {
-                inputStream = OpenCVImageReader.getInputStreamFromImageReader(reader)
+                // Plugins without a Mat based stage still need to get an encoded image
+                InputStream inputStream = OpenCVImageReader.getInputStreamFromImageReader(OpenCVImageReader.getInstance(img))
+                img = OpenCVUtil.bufferedImageToMat(service.processStream(identifier, inputStream).read(0))
             }
-            i++
         }
-        log.warn("${this.getClass().getSimpleName()} failed, returning null!")
-        return null
+        return img
+    }
+
+    @Override
+    RegionTransform analyze(String identifier, Mat img) {
+        if (services.isEmpty()) {
+            return null
+        }
+        List<RegionTransform> transforms = new ArrayList<RegionTransform>()
+        Mat current = img
+        try {
+            for (service in services) {
+                if (!(service instanceof RegionImageQualityService)) {
+                    log.debug("${service.getClass().getSimpleName()} can't process regions, processing whole image")
+                    return null
+                }
+                if (!transforms.isEmpty()) {
+                    // The next stage is analysed on the result of the previous one
+                    Mat next = new TransformedRegionProvider(current, transforms.last()).region(new Rect(0, 0, transforms.last().getWidth(), transforms.last().getHeight()))
+                    if (current != img) {
+                        current.release()
+                    }
+                    current = next
+                }
+                transforms.add(((RegionImageQualityService) service).analyze(identifier, current))
+            }
+        } finally {
+            if (current != img) {
+                current.release()
+            }
+        }
+        return new ChainedTransform(transforms)
+    }
+
+    @Override
+    ImageReader processBuffer(String identifier, ByteBuffer content, RequestedSize size) {
+        if (services.isEmpty()) {
+            log.warn("${this.getClass().getSimpleName()} failed, returning null!")
+            return null
+        }
+        // Decode once and pass the Mat from stage to stage
+        return super.processBuffer(identifier, content, size)
     }
 
 }
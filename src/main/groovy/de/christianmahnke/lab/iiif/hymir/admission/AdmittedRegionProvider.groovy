@@ -0,0 +1,73 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.admission
+
+import de.christianmahnke.lab.images.opencv.region.RegionProvider
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+import org.opencv.core.Size
+
+import java.util.function.Function
+import java.util.function.Supplier
+
+/**
+ * Computes the regions of a lazy provider only once they are admitted, the regions of a {@link
+ * de.christianmahnke.lab.images.opencv.region.TransformedRegionProvider} are computed when the reader is read, after
+ * the admission of the decode and the analysis has ended
+ */
+@TypeChecked
+@CompileStatic
+class AdmittedRegionProvider implements RegionProvider {
+    protected final RegionProvider input
+    protected final Function<Supplier<Mat>, Mat> admission
+
+    /**
+     * @param admission runs a read once it's admitted, like {@link QualityExecutor#execute}
+     */
+    AdmittedRegionProvider(RegionProvider input, Function<Supplier<Mat>, Mat> admission) {
+        this.input = input
+        this.admission = admission
+    }
+
+    @Override
+    int getWidth() {
+        return input.getWidth()
+    }
+
+    @Override
+    int getHeight() {
+        return input.getHeight()
+    }
+
+    @Override
+    int getChannels() {
+        return input.getChannels()
+    }
+
+    @Override
+    Mat region(Rect region) {
+        return admission.apply({ input.region(region) } as Supplier<Mat>)
+    }
+
+    @Override
+    Mat region(Rect region, Size size) {
+        return admission.apply({ input.region(region, size) } as Supplier<Mat>)
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.admission
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import de.christianmahnke.lab.images.opencv.ImageHeader
+import de.christianmahnke.lab.images.opencv.OpenCVUtil
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.opencv.core.Core
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Service
+
+import javax.annotation.PostConstruct
+import javax.annotation.PreDestroy
+import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Supplier
+
+/**
+ * Runs the OpenCV pipelines of the qualities on a dedicated pool of threads. A task needs to be admitted first, by
+ * the limit of concurrent tasks of its quality and by the memory budget, where a task weighs the size of its decoded
+ * input (width x height x channels). Tasks that can't be admitted within the timeout, or if too many are already
+ * waiting, are rejected with a {@link QualityOverloadException}.
+ */
+@Slf4j
+@Service
+@TypeChecked
+@CompileStatic
+class QualityExecutor {
+
+    // Set on the threads of the executor, nested tasks run directly
+    protected static final ThreadLocal<Boolean> WORKER = ThreadLocal.withInitial({ false })
+    // Set on threads running background tasks, these are only admitted if there is room right away
+    protected static final ThreadLocal<Boolean> BACKGROUND = ThreadLocal.withInitial({ false })
+
+    static {
+        OpenCVUtil.load()
+    }
+
+    @Value('${custom.image.quality.executor.enabled:true}')
+    protected boolean enabled = true
+
+    // Number of threads running the pipelines, 0 uses the number of cores
+    @Value('${custom.image.quality.executor.threads:0}')
+    protected int threads = 0
+
+    // Concurrent tasks per quality
+    @Value('${custom.image.quality.executor.concurrency:2}')
+    protected int concurrency = 2
+
+    // Budget for decoded inputs in bytes
+    @Value('${custom.image.quality.executor.memory:1073741824}')
+    protected long memory = 1073741824L
+
+    // Maximum number of tasks waiting for admission
+    @Value('${custom.image.quality.executor.queue:32}')
+    protected int queue = 32
+
+    // Time to wait for admission in milliseconds
+    @Value('${custom.image.quality.executor.timeout:30000}')
+    protected long timeout = 30000
+
+    // Threads used by OpenCV for a single operation: 0 divides the cores between the threads of the executor, -1 keeps the default of OpenCV
+    @Value('${custom.image.quality.executor.opencvThreads:0}')
+    protected int opencvThreads = 0
+
+    protected ExecutorService executor
+    protected Map<String, Semaphore> qualities = new ConcurrentHashMap<String, Semaphore>()
+    // Permits are kilobytes
+    protected Semaphore budget
+    protected int budgetPermits
+    protected AtomicInteger waiting = new AtomicInteger()
+
+    QualityExecutor() {
+
+    }
+
+    QualityExecutor(int threads, int concurrency, long memory, int queue, long timeout) {
+        this.threads = threads
+        this.concurrency = concurrency
+        this.memory = memory
+        this.queue = queue
+        this.timeout = timeout
+        init()
+    }
+
+    @PostConstruct
+    void init() {
+        int cores = Runtime.getRuntime().availableProcessors()
+        if (threads <= 0) {
+            threads = cores
+        }
+        budgetPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, memory.intdiv(1024)))
+        budget = new Semaphore(budgetPermits, true)
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat('quality-%d').setDaemon(true).build())
+        if (opencvThreads >= 0) {
+            // Otherwise every pipeline would try to use all cores
+            int perTask = opencvThreads > 0 ? opencvThreads : Math.max(1, cores.intdiv(threads))
+            Core.setNumThreads(perTask)
+            log.info("Using ${threads} threads for qualities, OpenCV uses ${Core.getNumThreads()} thread(s) per operation")
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        if (executor != null) {
+            executor.shutdownNow()
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled
+    }
+
+    /**
+     * Runs a task once it's admitted, on a thread of the executor
+     *
+     * @param quality the name of the quality, used for the concurrency limit
+     * @param weight the expected size of the decoded input in bytes
+     * @param task the task
+     * @return the result of the task
+     * @throws QualityOverloadException if the task couldn't be admitted
+     */
+    def <T> T execute(String quality, long weight, Supplier<T> task) {
+        if (!enabled || WORKER.get()) {
+            return task.get()
+        }
+        // Background tasks don't wait, so they aren't counted as waiting requests either
+        boolean background = BACKGROUND.get()
+        long deadline = System.nanoTime() + (background ? 0L : TimeUnit.MILLISECONDS.toNanos(timeout))
+        if (!background && waiting.incrementAndGet() > queue) {
+            waiting.decrementAndGet()
+            throw reject("Too many requests waiting for '${quality}'")
+        }
+        Semaphore limit = qualities.computeIfAbsent(quality, { String name -> new Semaphore(concurrency, true) })
+        // Images larger then the budget can run alone
+        int permits = (int) Math.min(budgetPermits, Math.max(1L, (weight + 1023).intdiv(1024)))
+        try {
+            if (!(background ? limit.tryAcquire() : limit.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))) {
+                throw reject("Timeout waiting for a slot for '${quality}'", background)
+            }
+            try {
+                if (!(background ? budget.tryAcquire(permits) : budget.tryAcquire(permits, deadline - System.nanoTime(), TimeUnit.NANOSECONDS))) {
+                    throw reject("Timeout waiting for ${weight} bytes of memory for '${quality}'", background)
+                }
+            } catch (Throwable t) {
+                limit.release()
+                throw t
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt()
+            throw reject("Interrupted while waiting for '${quality}'")
+        } finally {
+            if (!background) {
+                waiting.decrementAndGet()
+            }
+        }
+
+        // The permits are released by the task itself once it ends, or here if it never started
+        AtomicBoolean started = new AtomicBoolean()
+        // Captured locally, nested lambdas don't resolve the field
+        Semaphore memory = budget
+        Runnable release = () -> {
+            memory.release(permits)
+            limit.release()
+        }
+        Callable<T> call = () -> {
+            if (!started.compareAndSet(false, true)) {
+                return (T) null
+            }
+            WORKER.set(true)
+            try {
+                return task.get()
+            } finally {
+                WORKER.remove()
+                release.run()
+            }
+        }
+        Future<T> result
+        try {
+            result = executor.submit(call)
+        } catch (Throwable t) {
+            release.run()
+            throw t
+        }
+        try {
+            return result.get()
+        } catch (ExecutionException e) {
+            throw e.getCause()
+        } catch (InterruptedException e) {
+            result.cancel(true)
+            if (started.compareAndSet(false, true)) {
+                release.run()
+            }
+            Thread.currentThread().interrupt()
+            throw reject("Interrupted while running '${quality}'")
+        }
+    }
+
+    /**
+     * Runs a task on the calling thread without admission, for callers that limit themselves like the batch. Tasks of
+     * the qualities started by it run directly as well.
+     */
+    static <T> T direct(Supplier<T> task) {
+        if (WORKER.get()) {
+            return task.get()
+        }
+        WORKER.set(true)
+        try {
+            return task.get()
+        } finally {
+            WORKER.remove()
+        }
+    }
+
+    /**
+     * Runs a task on the calling thread, tasks of the qualities started by it are only admitted if there is room right
+     * away, otherwise they are rejected without waiting. Used for work that can be dropped, like prefetching.
+     */
+    static <T> T background(Supplier<T> task) {
+        if (BACKGROUND.get()) {
+            return task.get()
+        }
+        BACKGROUND.set(true)
+        try {
+            return task.get()
+        } finally {
+            BACKGROUND.remove()
+        }
+    }
+
+    protected QualityOverloadException reject(String reason, boolean background = false) {
+        if (background) {
+            log.debug(reason)
+        } else {
+            log.warn(reason)
+        }
+        return new QualityOverloadException(reason, Math.max(1L, TimeUnit.MILLISECONDS.toSeconds(timeout)))
+    }
+
+    int getWaiting() {
+        return waiting.get()
+    }
+
+    long getAvailableMemory() {
+        return budget.availablePermits() * 1024L
+    }
+
+    long getMemory() {
+        return budgetPermits * 1024L
+    }
+
+    /**
+     * Estimates the size of the decoded image from its header, without decoding it
+     *
+     * @return width x height x channels in bytes
+     */
+    static long estimateWeight(byte[] content) {
+        return estimateWeight(ImageHeader.read(ByteBuffer.wrap(content)), content.length, 1)
+    }
+
+    static long estimateWeight(ImageHeader header, long length, int reduction) {
+        if (header != null) {
+            return header.getWeight(reduction)
+        }
+        // Format not known to ImageIO, assume a compression ratio of 1:10
+        return length * 10L
+    }
+}
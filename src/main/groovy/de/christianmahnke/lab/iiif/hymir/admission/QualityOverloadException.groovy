@@ -0,0 +1,52 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.admission
+
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.web.server.ResponseStatusException
+
+/**
+ * Thrown if a request for a quality couldn't be admitted in time, results in a 503 with a Retry-After header
+ */
+@TypeChecked
+@CompileStatic
+class QualityOverloadException extends ResponseStatusException {
+    protected long retryAfter
+
+    QualityOverloadException(String reason, long retryAfter) {
+        super(HttpStatus.SERVICE_UNAVAILABLE, reason)
+        this.retryAfter = retryAfter
+    }
+
+    /**
+     * @return the number of seconds a client should wait before retrying
+     */
+    long getRetryAfter() {
+        return retryAfter
+    }
+
+    @Override
+    HttpHeaders getResponseHeaders() {
+        HttpHeaders headers = new HttpHeaders()
+        headers.set(HttpHeaders.RETRY_AFTER, Long.toString(retryAfter))
+        return headers
+    }
+}
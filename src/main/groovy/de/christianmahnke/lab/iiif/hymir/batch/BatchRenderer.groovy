@@ -0,0 +1,260 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.batch
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream
+import de.christianmahnke.lab.iiif.hymir.AbstractMatImageQualityService
+import de.christianmahnke.lab.iiif.hymir.admission.QualityExecutor
+import de.christianmahnke.lab.iiif.hymir.util.ImageSource
+import de.christianmahnke.lab.images.opencv.ImageHeader
+import de.christianmahnke.lab.images.opencv.OpenCVUtil
+import de.christianmahnke.lab.images.opencv.imageio.OpenCVImageReader
+import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+
+import javax.imageio.ImageIO
+import javax.imageio.ImageReader
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+
+/**
+ * Renders the results of quality services ahead of time. Images are processed in parallel on a fork join pool, as long
+ * as their decoded sizes fit into the memory budget. Each source is only read once for all qualities. The results are
+ * either written to a directory ({quality}/{identifier}.{format}) or only computed to fill the processed image cache.
+ * Finished images are appended to a progress file (quality, identifier, milliseconds and megapixels, separated by
+ * tabs), a later run skips them.
+ */
+@Slf4j
+@TypeChecked
+@CompileStatic
+class BatchRenderer {
+    static final String PROGRESS_FILE = 'batch-progress.tsv'
+
+    protected final List<ImageQualityService.Source> services
+    protected final ImageSource source
+    protected Path directory
+    protected Path progressFile
+    protected String format = 'png'
+    protected int parallelism = Runtime.getRuntime().availableProcessors()
+    // Budget for decoded images in bytes
+    protected long memory = 1024L * 1024 * 1024
+
+    protected Set<String> done = ConcurrentHashMap.newKeySet()
+    protected Semaphore budget
+
+    BatchRenderer(List<ImageQualityService.Source> services, ImageSource source) {
+        this.services = services
+        this.source = source
+    }
+
+    /**
+     * @param directory the target of the results and the progress file, if null the results aren't written
+     */
+    void setDirectory(Path directory) {
+        this.directory = directory
+        if (progressFile == null && directory != null) {
+            progressFile = directory.resolve(PROGRESS_FILE)
+        }
+    }
+
+    void setProgressFile(Path progressFile) {
+        this.progressFile = progressFile
+    }
+
+    void setFormat(String format) {
+        this.format = format
+    }
+
+    void setParallelism(int parallelism) {
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors()
+    }
+
+    void setMemory(long memory) {
+        this.memory = memory
+    }
+
+    BatchReport render(Collection<String> identifiers) {
+        loadProgress()
+        BatchReport report = new BatchReport()
+        // Permits are KB, to stay in the range of int
+        int permits = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, memory.intdiv(1024L)))
+        budget = new Semaphore(permits, true)
+        ForkJoinPool pool = new ForkJoinPool(parallelism)
+        long start = System.nanoTime()
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>()
+            for (String identifier in new LinkedHashSet<String>(identifiers)) {
+                tasks.add(pool.submit(task(identifier, permits, report)))
+            }
+            for (ForkJoinTask<?> task in tasks) {
+                task.join()
+            }
+        } finally {
+            pool.shutdown()
+            report.finished(System.nanoTime() - start)
+        }
+        log.info("Batch finished: ${report}")
+        return report
+    }
+
+    protected Runnable task(String identifier, int maxPermits, BatchReport report) {
+        return () -> {
+            List<ImageQualityService.Source> pending = services.findAll { ImageQualityService.Source service -> !done.contains(progressKey(service, identifier)) }
+            for (int i = 0; i < services.size() - pending.size(); i++) {
+                report.skipped()
+            }
+            if (pending.isEmpty()) {
+                return
+            }
+            ByteBuffer content
+            try {
+                content = readSource(identifier)
+            } catch (Exception e) {
+                log.warn("Can't read '${identifier}': ${e.getMessage()}")
+                for (int i = 0; i < pending.size(); i++) {
+                    report.failed()
+                }
+                return
+            }
+            ImageHeader header = ImageHeader.read(content)
+            long weight = header != null ? header.getWeight(1) : content.remaining() * 10L
+            int permits = (int) Math.min((long) maxPermits, Math.max(1L, weight.intdiv(1024L)))
+            budget.acquireUninterruptibly(permits)
+            try {
+                double megapixels = header != null ? (long) header.getWidth() * header.getHeight() / 1000000d : 0d
+                for (service in pending) {
+                    render(service, identifier, content, megapixels, report)
+                }
+            } finally {
+                budget.release(permits)
+            }
+        }
+    }
+
+    protected void render(ImageQualityService.Source service, String identifier, ByteBuffer content, double megapixels, BatchReport report) {
+        String quality = quality(service)
+        long start = System.nanoTime()
+        try {
+            // The batch is limited by its own budget, waiting for admission would only let tasks time out
+            ImageReader reader = QualityExecutor.direct({
+                ImageReader result
+                if (service instanceof AbstractMatImageQualityService) {
+                    result = ((AbstractMatImageQualityService) service).processBuffer(identifier, content, null)
+                } else {
+                    result = service.processStream(identifier, new ByteBufferBackedInputStream(content.duplicate()))
+                }
+                // Lazy regions are only computed here
+                if (result != null && directory != null) {
+                    write(result, output(quality, identifier))
+                }
+                return result
+            } as Supplier<ImageReader>)
+            if (reader == null) {
+                throw new IllegalStateException("${quality} returned no result")
+            }
+            reader.dispose()
+        } catch (Exception e) {
+            log.warn("Rendering '${identifier}' as ${quality} failed", e)
+            report.failed()
+            return
+        }
+        long nanos = System.nanoTime() - start
+        report.processed(megapixels, nanos)
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos)
+        log.info("Rendered '${identifier}' as ${quality} in ${millis} ms (${String.format(Locale.ROOT, '%.1f', megapixels)} MP)")
+        progress(quality, identifier, millis, megapixels)
+    }
+
+    protected ByteBuffer readSource(String identifier) {
+        InputStream is = source.open(identifier)
+        try {
+            return OpenCVUtil.readBuffer(is)
+        } finally {
+            is.close()
+        }
+    }
+
+    protected void write(ImageReader reader, Path file) {
+        Files.createDirectories(file.getParent())
+        Path tmp = file.resolveSibling(file.getFileName().toString() + '.tmp')
+        OutputStream out = Files.newOutputStream(tmp)
+        try {
+            if (reader instanceof OpenCVImageReader) {
+                ((OpenCVImageReader) reader).write(null, format, out)
+            } else if (!ImageIO.write(reader.read(0), format, out)) {
+                throw new IOException("No writer for ${format}")
+            }
+        } finally {
+            out.close()
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    Path output(String quality, String identifier) {
+        // Identifiers might contain slashes
+        String name = URLEncoder.encode(identifier, StandardCharsets.UTF_8)
+        return directory.resolve(quality).resolve("${name}.${format}".toString())
+    }
+
+    protected void loadProgress() {
+        done.clear()
+        if (progressFile == null || !Files.exists(progressFile)) {
+            return
+        }
+        for (String line in Files.readAllLines(progressFile, StandardCharsets.UTF_8)) {
+            String[] fields = line.split('\t')
+            if (fields.length >= 2) {
+                done.add(fields[0] + '\t' + fields[1])
+            }
+        }
+        log.info("Resuming batch, ${done.size()} images already rendered according to ${progressFile}")
+    }
+
+    protected synchronized void progress(String quality, String identifier, long millis, double megapixels) {
+        done.add(quality + '\t' + identifier)
+        if (progressFile == null) {
+            return
+        }
+        if (progressFile.getParent() != null) {
+            Files.createDirectories(progressFile.getParent())
+        }
+        String line = String.format(Locale.ROOT, "%s\t%s\t%d\t%.3f%n", quality, identifier, millis, megapixels)
+        Files.write(progressFile, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+    }
+
+    protected static String progressKey(ImageQualityService.Source service, String identifier) {
+        return quality(service) + '\t' + identifier
+    }
+
+    protected static String quality(ImageQualityService.Source service) {
+        String quality = service.getQuality() != null ? service.getQuality().toString() : null
+        return quality != null ? quality : service.getClass().getSimpleName()
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.batch
+
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.DoubleAdder
+
+/**
+ * Throughput of a batch run, images that were already rendered by a previous run are only counted as skipped
+ */
+@TypeChecked
+@CompileStatic
+class BatchReport {
+    protected final AtomicInteger processed = new AtomicInteger()
+    protected final AtomicInteger skipped = new AtomicInteger()
+    protected final AtomicInteger failed = new AtomicInteger()
+    protected final AtomicLong processingNanos = new AtomicLong()
+    protected final DoubleAdder megapixels = new DoubleAdder()
+    protected long nanos
+
+    void processed(double megapixels, long nanos) {
+        processed.incrementAndGet()
+        this.megapixels.add(megapixels)
+        processingNanos.addAndGet(nanos)
+    }
+
+    void skipped() {
+        skipped.incrementAndGet()
+    }
+
+    void failed() {
+        failed.incrementAndGet()
+    }
+
+    void finished(long nanos) {
+        this.nanos = nanos
+    }
+
+    int getProcessed() {
+        return processed.get()
+    }
+
+    int getSkipped() {
+        return skipped.get()
+    }
+
+    int getFailed() {
+        return failed.get()
+    }
+
+    double getMegapixels() {
+        return megapixels.sum()
+    }
+
+    double getSeconds() {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1)
+    }
+
+    double getImagesPerSecond() {
+        return nanos > 0 ? getProcessed() / getSeconds() : 0d
+    }
+
+    double getMegapixelsPerSecond() {
+        return nanos > 0 ? getMegapixels() / getSeconds() : 0d
+    }
+
+    // Average time spent on a single image, without waiting for memory
+    double getAverageMillis() {
+        return getProcessed() > 0 ? processingNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1) / getProcessed() : 0d
+    }
+
+    @Override
+    String toString() {
+        return String.format(Locale.ROOT, "%d images processed, %d skipped, %d failed in %.1f s: %.2f images/s, %.2f MP/s, %.0f ms per image",
+                getProcessed(), getSkipped(), getFailed(), getSeconds(), getImagesPerSecond(), getMegapixelsPerSecond(), getAverageMillis())
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.batch
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import de.christianmahnke.lab.iiif.hymir.util.FileResourceImageSource
+import de.christianmahnke.lab.iiif.hymir.util.ManifestImages
+import de.digitalcollections.commons.file.business.api.FileResourceService
+import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
+import de.digitalcollections.model.file.MimeType
+import de.digitalcollections.model.identifiable.resource.FileResource
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.ApplicationArguments
+import org.springframework.boot.ApplicationRunner
+import org.springframework.context.annotation.Profile
+import org.springframework.stereotype.Component
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+
+/**
+ * Pre-renders qualities if the profile 'batch' is active. The images are given as options:
+ * <ul>
+ * <li>--manifest=ID - all images referenced by the image services of a manifest</li>
+ * <li>--image=ID - a single image</li>
+ * <li>--list=FILE - a file with an image identifier per line</li>
+ * </ul>
+ * Identifiers are resolved by the configured file resource resolvers, the same ones used by Hymir.
+ */
+@Slf4j
+@TypeChecked
+@CompileStatic
+@Component
+@Profile('batch')
+class BatchRunner implements ApplicationRunner {
+    static final ObjectMapper MAPPER = new ObjectMapper()
+
+    @Autowired
+    protected FileResourceService fileResourceService
+
+    @Autowired
+    protected List<ImageQualityService> imageQualityServices
+
+    // Qualities to render, all enabled ones if not set
+    @Value('${custom.batch.qualities:#{null}}')
+    protected String qualities
+
+    @Value('${custom.batch.directory:#{null}}')
+    protected String directory
+
+    @Value('${custom.batch.format:png}')
+    protected String format
+
+    // 0 uses the number of cores
+    @Value('${custom.batch.parallelism:0}')
+    protected int parallelism
+
+    @Value('${custom.batch.memory:1073741824}')
+    protected long memory
+
+    @Override
+    void run(ApplicationArguments args) {
+        Set<String> identifiers = new LinkedHashSet<String>()
+        for (String manifest in option(args, 'manifest')) {
+            identifiers.addAll(manifestImages(manifest))
+        }
+        identifiers.addAll(option(args, 'image'))
+        for (String list in option(args, 'list')) {
+            identifiers.addAll(readList(Paths.get(list)))
+        }
+        if (identifiers.isEmpty()) {
+            log.warn("No images given, use --manifest, --image or --list")
+            return
+        }
+        List<ImageQualityService.Source> services = getServices()
+        log.info("Rendering ${identifiers.size()} images as ${services.collect { ImageQualityService.Source s -> s.getQuality().toString() }}")
+        BatchRenderer renderer = new BatchRenderer(services, new FileResourceImageSource(fileResourceService))
+        if (directory != null && directory != '') {
+            renderer.setDirectory(Paths.get(directory))
+        }
+        renderer.setFormat(format)
+        renderer.setParallelism(parallelism)
+        renderer.setMemory(memory)
+        renderer.render(identifiers)
+    }
+
+    protected List<ImageQualityService.Source> getServices() {
+        List<String> names = qualities != null && qualities != '' ? Arrays.asList(qualities.split(',')) : null
+        List<ImageQualityService.Source> services = new ArrayList<ImageQualityService.Source>()
+        for (ImageQualityService iqs in imageQualityServices) {
+            if (iqs instanceof ImageQualityService.Source && iqs.enabled() && (names == null || names.contains(iqs.getQuality().toString()))) {
+                services.add((ImageQualityService.Source) iqs)
+            }
+        }
+        return services
+    }
+
+    protected List<String> manifestImages(String identifier) {
+        FileResource resource = fileResourceService.find(identifier, MimeType.MIME_APPLICATION_JSON)
+        InputStream is = fileResourceService.getInputStream(resource)
+        try {
+            List<String> images = ManifestImages.identifiers(MAPPER.readTree(is))
+            log.info("Manifest '${identifier}' references ${images.size()} images")
+            return images
+        } finally {
+            is.close()
+        }
+    }
+
+    protected static List<String> readList(Path file) {
+        return Files.readAllLines(file, StandardCharsets.UTF_8)
+                .collect { String line -> line.trim() }
+                .findAll { String line -> !line.isEmpty() && !line.startsWith('#') }
+    }
+
+    protected static List<String> option(ApplicationArguments args, String name) {
+        List<String> values = args.getOptionValues(name)
+        return values != null ? values : Collections.<String> emptyList()
+    }
+}
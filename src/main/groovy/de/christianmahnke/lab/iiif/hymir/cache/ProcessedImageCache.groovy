@@ -0,0 +1,475 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.cache
+
+import com.github.benmanes.caffeine.cache.AsyncCache
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import com.github.benmanes.caffeine.cache.RemovalCause
+import com.github.benmanes.caffeine.cache.RemovalListener
+import com.github.benmanes.caffeine.cache.Weigher
+import de.christianmahnke.lab.iiif.hymir.admission.QualityOverloadException
+import de.christianmahnke.lab.images.opencv.region.RegionProvider
+import de.christianmahnke.lab.images.opencv.region.RegionTransform
+import de.christianmahnke.lab.images.opencv.region.TiledPyramid
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.opencv.core.Mat
+import org.opencv.core.MatOfInt
+import org.opencv.core.Range
+import org.opencv.imgcodecs.Imgcodecs
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Service
+
+import javax.annotation.PostConstruct
+import javax.annotation.PreDestroy
+import java.nio.file.DirectoryStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.function.Consumer
+import java.util.function.Supplier
+
+/**
+ * Bounded cache for the results of the quality services, tiles and different sizes of the same image only need to run
+ * the OpenCV pipeline once. If there is an on disk tier, results of the full resolution are also written as
+ * {@link TiledPyramid}, later requests read their regions from it without running the pipeline or decoding the source.
+ */
+@Slf4j
+@Service
+@TypeChecked
+@CompileStatic
+class ProcessedImageCache {
+
+    @Value('${custom.image.quality.cache.enabled:true}')
+    protected boolean enabled = true
+
+    @Value('${custom.image.quality.cache.maximumSize:64}')
+    protected long maximumSize = 64
+
+    // Weight is the size of the pixel data in bytes, if set it takes precedence over maximumSize
+    @Value('${custom.image.quality.cache.maximumWeight:0}')
+    protected long maximumWeight = 0
+
+    @Value('${custom.image.quality.cache.directory:#{null}}')
+    protected String directory
+
+    // Size of the files in the on disk tier in bytes, the least recently used ones are removed, 0 doesn't limit it
+    @Value('${custom.image.quality.cache.maximumDiskSize:0}')
+    protected long maximumDiskSize = 0
+
+    // Write tiled pyramids of full resolution results to the on disk tier
+    @Value('${custom.image.quality.cache.pyramids:true}')
+    protected boolean pyramids = true
+
+    @Value('${custom.image.quality.cache.tileSize:256}')
+    protected int tileSize = TiledPyramid.DEFAULT_TILE_SIZE
+
+    // Results of the analysis of images, these are small
+    @Value('${custom.image.quality.cache.transforms:1024}')
+    protected long maximumTransforms = 1024
+
+    // Set while a task runs whose results must neither be taken from nor written to the cache
+    protected static final ThreadLocal<Boolean> BYPASS = ThreadLocal.withInitial({ false })
+
+    protected AsyncCache<ProcessedImageKey, Mat> cache
+    protected AsyncCache<ProcessedImageKey, RegionTransform> transforms
+    protected Cache<ProcessedImageKey, TiledPyramid> opened
+    // Pyramids waiting to be written
+    protected final Set<ProcessedImageKey> pending = ConcurrentHashMap.<ProcessedImageKey> newKeySet()
+    protected Path diskTier
+    protected ExecutorService writer
+    // Size of the on disk tier, only used on the writer thread
+    protected long diskSize = -1
+
+    ProcessedImageCache() {
+
+    }
+
+    ProcessedImageCache(long maximumSize, long maximumWeight, String directory) {
+        this(maximumSize, maximumWeight, directory, 0)
+    }
+
+    ProcessedImageCache(long maximumSize, long maximumWeight, String directory, long maximumDiskSize) {
+        this.maximumSize = maximumSize
+        this.maximumWeight = maximumWeight
+        this.directory = directory
+        this.maximumDiskSize = maximumDiskSize
+        init()
+    }
+
+    @PostConstruct
+    void init() {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder()
+        if (maximumWeight > 0) {
+            builder.maximumWeight(maximumWeight)
+            builder.weigher({ ProcessedImageKey key, Mat mat -> weight(mat) } as Weigher<ProcessedImageKey, Mat>)
+        } else {
+            builder.maximumSize(maximumSize)
+        }
+        // The Mat stays alive as long as there are shared headers handed out by get()
+        cache = builder.removalListener({ ProcessedImageKey key, Mat mat, RemovalCause cause ->
+            if (mat != null) {
+                synchronized (mat) {
+                    mat.release()
+                }
+            }
+        } as RemovalListener<ProcessedImageKey, Mat>).<ProcessedImageKey, Mat> buildAsync()
+        transforms = Caffeine.newBuilder().maximumSize(maximumTransforms).<ProcessedImageKey, RegionTransform> buildAsync()
+        // Only the file is closed, the mapped tiles stay valid for readers still using the pyramid
+        opened = Caffeine.newBuilder().maximumSize(maximumTransforms).removalListener({ ProcessedImageKey key, TiledPyramid pyramid, RemovalCause cause ->
+            if (pyramid != null) {
+                pyramid.close()
+            }
+        } as RemovalListener<ProcessedImageKey, TiledPyramid>).<ProcessedImageKey, TiledPyramid> build()
+
+        if (directory != null && directory != '') {
+            diskTier = Paths.get(directory)
+            Files.createDirectories(diskTier)
+            writer = Executors.newSingleThreadExecutor()
+            log.info("Using ${diskTier} as on disk tier of the processed image cache")
+            if (maximumDiskSize > 0) {
+                // Files of previous runs count as well
+                writer.submit({ written(null) } as Runnable)
+            }
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        if (writer != null) {
+            writer.shutdown()
+        }
+        invalidateAll()
+    }
+
+    /**
+     * @return false while the calling thread bypasses the cache
+     */
+    boolean isEnabled() {
+        return enabled && !BYPASS.get()
+    }
+
+    /**
+     * Runs a task on the calling thread without the cache, neither the in memory caches nor the on disk tier are used
+     */
+    static <T> T bypass(Supplier<T> task) {
+        if (BYPASS.get()) {
+            return task.get()
+        }
+        BYPASS.set(true)
+        try {
+            return task.get()
+        } finally {
+            BYPASS.remove()
+        }
+    }
+
+    /**
+     * Returns the processed image for the given key, computing it on the calling thread if needed. Concurrent requests
+     * for the same key wait for the first one instead of running the pipeline again.
+     *
+     * @return a shared header of the cached image, callers must not modify the pixel data
+     */
+    Mat get(ProcessedImageKey key, Supplier<Mat> compute) {
+        if (!enabled) {
+            return compute.get()
+        }
+        for (int attempt = 0; ; attempt++) {
+            Mat result = getOrCompute(cache, key, {
+                Mat mat = load(key)
+                if (mat == null) {
+                    mat = compute.get()
+                    store(key, mat)
+                }
+                return mat
+            } as Supplier<Mat>)
+            synchronized (result) {
+                // Released if it has been evicted before the header was created, in this case it's computed again
+                if (!result.empty() || attempt > 0) {
+                    return new Mat(result, Range.all())
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the analysis result for the given key, computing it on the calling thread if needed.
+     *
+     * @return the transformation, null results aren't cached
+     */
+    RegionTransform getTransform(ProcessedImageKey key, Supplier<RegionTransform> compute) {
+        if (!enabled) {
+            return compute.get()
+        }
+        return getOrCompute(transforms, key, compute)
+    }
+
+    void invalidateAll() {
+        cache.synchronous().invalidateAll()
+        transforms.synchronous().invalidateAll()
+        opened.invalidateAll()
+    }
+
+    boolean hasPyramids() {
+        return enabled && pyramids && diskTier != null
+    }
+
+    /**
+     * Returns the pyramid of the full resolution result for the given key
+     *
+     * @return the pyramid or null if it hasn't been written (yet)
+     */
+    RegionProvider getPyramid(ProcessedImageKey key) {
+        if (!hasPyramids()) {
+            return null
+        }
+        // Missing pyramids aren't cached
+        TiledPyramid pyramid = opened.get(key, { ProcessedImageKey k ->
+            Path file = pyramidFile(k)
+            if (!Files.exists(file)) {
+                return (TiledPyramid) null
+            }
+            try {
+                return TiledPyramid.open(file)
+            } catch (IOException e) {
+                log.warn("Failed to open ${file}, removing it", e)
+                Files.deleteIfExists(file)
+                return (TiledPyramid) null
+            }
+        })
+        if (pyramid != null) {
+            used(pyramidFile(key))
+        }
+        return pyramid
+    }
+
+    /**
+     * Writes the regions of the given full resolution result as pyramid in the background, once per key
+     */
+    void storePyramid(ProcessedImageKey key, RegionProvider provider) {
+        storePyramid(key, provider, { Runnable write -> write.run() } as Consumer<Runnable>)
+    }
+
+    /**
+     * Writes a pyramid in the background, the write is passed to the given admission, which can run it like a request
+     * of the quality. This is needed for providers that compute their regions on demand.
+     */
+    void storePyramid(ProcessedImageKey key, RegionProvider provider, Consumer<Runnable> admission) {
+        if (!hasPyramids() || provider == null || provider instanceof TiledPyramid || !pending.add(key)) {
+            return
+        }
+        Path file = pyramidFile(key)
+        if (Files.exists(file)) {
+            pending.remove(key)
+            return
+        }
+        writer.submit({
+            Path tmp = diskTier.resolve(key.getFileName() + '.tmp.pyr')
+            try {
+                admission.accept({
+                    TiledPyramid.write(provider, tmp, tileSize)
+                    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+                } as Runnable)
+                log.debug("Wrote pyramid of '${key}' to ${file}")
+                written(file)
+            } catch (QualityOverloadException e) {
+                // Requests take precedence, the pyramid is written by a later request
+                log.debug("Skipped pyramid of '${key}': ${e.getMessage()}")
+                Files.deleteIfExists(tmp)
+            } catch (Exception e) {
+                log.warn("Failed to write pyramid of '${key}' to ${file}", e)
+                Files.deleteIfExists(tmp)
+            } finally {
+                pending.remove(key)
+            }
+        } as Runnable)
+    }
+
+    protected Path pyramidFile(ProcessedImageKey key) {
+        return diskTier.resolve(key.getFileName() + '.pyr')
+    }
+
+    protected static <V> V getOrCompute(AsyncCache<ProcessedImageKey, V> cache, ProcessedImageKey key, Supplier<V> compute) {
+        CompletableFuture<V> future = cache.getIfPresent(key)
+        if (future == null) {
+            CompletableFuture<V> created = new CompletableFuture<V>()
+            future = cache.asMap().putIfAbsent(key, created)
+            if (future == null) {
+                future = created
+                try {
+                    created.complete(compute.get())
+                } catch (Throwable t) {
+                    // Failed results are removed by Caffeine, the next request tries again
+                    created.completeExceptionally(t)
+                    throw t
+                }
+            }
+        }
+        try {
+            return future.join()
+        } catch (CompletionException ce) {
+            if (ce.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ce.getCause()
+            }
+            throw ce
+        }
+    }
+
+    long size() {
+        return cache.synchronous().estimatedSize()
+    }
+
+    protected Mat load(ProcessedImageKey key) {
+        if (diskTier == null) {
+            return null
+        }
+        Path file = diskTier.resolve(key.getFileName() + '.png')
+        if (Files.exists(file)) {
+            Mat mat = Imgcodecs.imread(file.toString(), Imgcodecs.IMREAD_UNCHANGED)
+            if (!mat.empty()) {
+                log.debug("Loaded '${key}' from ${file}")
+                used(file)
+                return mat
+            }
+        }
+        return null
+    }
+
+    protected void store(ProcessedImageKey key, Mat mat) {
+        if (diskTier == null || mat == null) {
+            return
+        }
+        // Write behind on a shared header, the pipeline result might get evicted in the meantime
+        Mat shared = new Mat(mat, Range.all())
+        writer.submit({
+            Path file = diskTier.resolve(key.getFileName() + '.png')
+            Path tmp = diskTier.resolve(key.getFileName() + '.tmp.png')
+            // Favour speed over size, the files are only used as cache
+            if (Imgcodecs.imwrite(tmp.toString(), shared, new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, 1))) {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+                written(file)
+            } else {
+                log.warn("Failed to write '${key}' to ${file}")
+            }
+            shared.release()
+        } as Runnable)
+    }
+
+    /**
+     * Marks a file of the on disk tier as used, the modification time is used to find the least recently used files,
+     * since the access time often isn't updated
+     */
+    protected void used(Path file) {
+        if (maximumDiskSize <= 0) {
+            return
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()))
+        } catch (IOException e) {
+            // Removed in the meantime
+            log.trace("Failed to update ${file}: ${e.getMessage()}")
+        }
+    }
+
+    /**
+     * Accounts a file written to the on disk tier and removes the least recently used files, once the tier gets larger
+     * than maximumDiskSize. Runs on the writer thread.
+     *
+     * @param file the written file or null to only check the size
+     */
+    protected void written(Path file) {
+        if (maximumDiskSize <= 0) {
+            return
+        }
+        try {
+            if (diskSize < 0 || file == null) {
+                diskSize = size(files())
+            } else {
+                diskSize += Files.size(file)
+            }
+            if (diskSize <= maximumDiskSize) {
+                return
+            }
+            List<Path> files = files()
+            Map<Path, Long> modified = new HashMap<Path, Long>()
+            for (Path f in files) {
+                modified.put(f, Files.getLastModifiedTime(f).toMillis())
+            }
+            files.sort { Path f -> modified.get(f) }
+            diskSize = size(files)
+            for (Path f in files) {
+                if (diskSize <= maximumDiskSize) {
+                    break
+                }
+                long size = Files.size(f)
+                if (Files.deleteIfExists(f)) {
+                    diskSize -= size
+                    // Only the handle is closed, the mapped tiles stay valid for readers still using the pyramid
+                    opened.asMap().keySet().removeIf({ ProcessedImageKey k -> pyramidFile(k) == f })
+                    log.debug("Removed ${f} from the on disk tier")
+                }
+            }
+        } catch (IOException e) {
+            // Checked again after the next write
+            log.warn("Failed to limit the size of ${diskTier}", e)
+            diskSize = -1
+        }
+    }
+
+    protected static long size(List<Path> files) {
+        long size = 0
+        for (Path f in files) {
+            size += Files.size(f)
+        }
+        return size
+    }
+
+    // Files of the on disk tier, without the ones being written
+    protected List<Path> files() {
+        List<Path> result = new ArrayList<Path>()
+        DirectoryStream<Path> stream = Files.newDirectoryStream(diskTier)
+        try {
+            for (Path f in stream) {
+                String name = f.getFileName().toString()
+                if (Files.isRegularFile(f) && !name.contains('.tmp.') && (name.endsWith('.png') || name.endsWith('.pyr'))) {
+                    result.add(f)
+                }
+            }
+        } finally {
+            stream.close()
+        }
+        return result
+    }
+
+    protected static int weight(Mat mat) {
+        if (mat == null) {
+            return 0
+        }
+        long bytes = mat.total() * mat.elemSize()
+        return bytes > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) bytes
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.cache
+
+import com.google.common.hash.Hashing
+import groovy.transform.CompileStatic
+import groovy.transform.EqualsAndHashCode
+import groovy.transform.TypeChecked
+
+import java.nio.ByteBuffer
+
+@TypeChecked
+@CompileStatic
+@EqualsAndHashCode
+class ProcessedImageKey {
+    final String identifier
+    final String quality
+    final String stamp
+
+    ProcessedImageKey(String identifier, String quality, String stamp) {
+        this.identifier = identifier
+        this.quality = quality
+        this.stamp = stamp
+    }
+
+    /**
+     * Creates a key, the stamp is derived from the content of the source, since the quality services only get an
+     * InputStream and no modification date of the source
+     */
+    static ProcessedImageKey of(String identifier, String quality, byte[] source) {
+        return new ProcessedImageKey(identifier, quality, stamp(source))
+    }
+
+    /**
+     * Creates a key for a source decoded at a reduced resolution
+     */
+    static ProcessedImageKey of(String identifier, String quality, ByteBuffer source, int reduction) {
+        String stamp = stamp(source)
+        return new ProcessedImageKey(identifier, quality, reduction > 1 ? "${stamp}-${reduction}".toString() : stamp)
+    }
+
+    static String stamp(byte[] source) {
+        return Hashing.murmur3_128().hashBytes(source).toString() + '-' + source.length
+    }
+
+    static String stamp(ByteBuffer source) {
+        return Hashing.murmur3_128().hashBytes(source.duplicate()).toString() + '-' + source.remaining()
+    }
+
+    /**
+     * Name of the file used for the on disk tier, identifiers might contain characters not allowed in file names
+     */
+    String getFileName() {
+        return Hashing.sha256().hashUnencodedChars(toString()).toString()
+    }
+
+    @Override
+    String toString() {
+        return "${identifier}/${quality}/${stamp}".toString()
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.metrics
+
+import de.christianmahnke.lab.images.opencv.MatScope
+import de.christianmahnke.lab.images.opencv.StageRecorder
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.DistributionSummary
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import io.micrometer.core.instrument.binder.BaseUnits
+import org.opencv.core.Mat
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Supplier
+
+/**
+ * Micrometer meters of a quality, all are tagged with the name of the quality:
+ * <ul>
+ *     <li>{@code hymir.quality.stage} - Timer per stage, see {@link StageRecorder}</li>
+ *     <li>{@code hymir.quality.process} - Timer from the encoded input to the reader, without the reads</li>
+ *     <li>{@code hymir.quality.fallback} - Counter of operations that returned their input, tagged with the exception</li>
+ *     <li>{@code hymir.quality.input} - Distribution of the size of the decoded inputs in megapixels</li>
+ *     <li>{@code hymir.quality.rejected} - Counter of requests that weren't admitted, see {@link de.christianmahnke.lab.iiif.hymir.admission.QualityExecutor}</li>
+ *     <li>{@code hymir.quality.warmup} - Timer of the steps of the warm-up, tagged with the step instead, see {@link de.christianmahnke.lab.iiif.hymir.warmup.QualityWarmup}</li>
+ * </ul>
+ * The gauges {@code hymir.quality.inflight} (megapixels currently processed) and {@code hymir.quality.native}
+ * (bytes of intermediate Mat's, see {@link MatScope#liveBytes()}) are shared by all qualities.
+ */
+@TypeChecked
+@CompileStatic
+class QualityMetrics implements StageRecorder {
+    static final String STAGE = 'hymir.quality.stage'
+    static final String PROCESS = 'hymir.quality.process'
+    static final String FALLBACK = 'hymir.quality.fallback'
+    static final String INPUT = 'hymir.quality.input'
+    static final String REJECTED = 'hymir.quality.rejected'
+    static final String WARMUP = 'hymir.quality.warmup'
+    static final String IN_FLIGHT = 'hymir.quality.inflight'
+    static final String NATIVE = 'hymir.quality.native'
+    static final String QUALITY_TAG = 'quality'
+    static final String MEGAPIXELS = 'megapixels'
+
+    protected static final AtomicLong IN_FLIGHT_PIXELS = new AtomicLong()
+
+    protected MeterRegistry registry
+    protected String quality
+    protected Map<String, Timer> stages = new ConcurrentHashMap<String, Timer>()
+    protected Timer process
+    protected DistributionSummary input
+
+    QualityMetrics(MeterRegistry registry, String quality) {
+        this.registry = registry
+        this.quality = quality
+        this.process = Timer.builder(PROCESS)
+                .tag(QUALITY_TAG, quality)
+                .publishPercentileHistogram()
+                .register(registry)
+        this.input = DistributionSummary.builder(INPUT)
+                .tag(QUALITY_TAG, quality)
+                .baseUnit(MEGAPIXELS)
+                .publishPercentileHistogram()
+                .register(registry)
+        // Registering the same gauge again returns the existing one
+        Gauge.builder(IN_FLIGHT, { IN_FLIGHT_PIXELS.get() / 1_000_000d } as Supplier<Number>)
+                .baseUnit(MEGAPIXELS)
+                .register(registry)
+        Gauge.builder(NATIVE, { MatScope.liveBytes() } as Supplier<Number>)
+                .baseUnit(BaseUnits.BYTES)
+                .register(registry)
+    }
+
+    @Override
+    void record(String stage, long nanos) {
+        stages.computeIfAbsent(stage, { String name ->
+            Timer.builder(STAGE)
+                    .tag(QUALITY_TAG, quality)
+                    .tag('stage', name)
+                    .publishPercentileHistogram()
+                    .register(registry)
+        }).record(nanos, TimeUnit.NANOSECONDS)
+    }
+
+    @Override
+    void fallback(Throwable cause) {
+        Counter.builder(FALLBACK)
+                .tag(QUALITY_TAG, quality)
+                .tag('exception', cause.getClass().getSimpleName())
+                .register(registry)
+                .increment()
+    }
+
+    void rejected() {
+        Counter.builder(REJECTED)
+                .tag(QUALITY_TAG, quality)
+                .register(registry)
+                .increment()
+    }
+
+    /**
+     * Records the size of a decoded input, it's counted as in flight until {@link #done(long)} is called
+     *
+     * @return the number of pixels to pass to {@link #done(long)}
+     */
+    long input(Mat img) {
+        long pixels = img.total()
+        input.record(pixels / 1_000_000d)
+        IN_FLIGHT_PIXELS.addAndGet(pixels)
+        return pixels
+    }
+
+    void done(long pixels) {
+        IN_FLIGHT_PIXELS.addAndGet(-pixels)
+    }
+
+    Timer getProcess() {
+        return process
+    }
+}
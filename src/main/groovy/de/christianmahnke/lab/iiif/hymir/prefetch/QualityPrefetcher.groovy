@@ -0,0 +1,398 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.prefetch
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import de.christianmahnke.lab.iiif.hymir.AbstractMatImageQualityService
+import de.christianmahnke.lab.iiif.hymir.admission.QualityExecutor
+import de.christianmahnke.lab.iiif.hymir.admission.QualityOverloadException
+import de.christianmahnke.lab.iiif.hymir.cache.ProcessedImageCache
+import de.christianmahnke.lab.iiif.hymir.util.FileResourceImageSource
+import de.christianmahnke.lab.iiif.hymir.util.ImageSource
+import de.christianmahnke.lab.iiif.hymir.util.ManifestImages
+import de.christianmahnke.lab.iiif.hymir.util.RequestedSize
+import de.digitalcollections.commons.file.business.api.FileResourceService
+import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.springframework.beans.factory.ObjectProvider
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Service
+
+import javax.annotation.PostConstruct
+import javax.annotation.PreDestroy
+import javax.imageio.ImageReader
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+
+/**
+ * Processes images in the background before they are requested, the results end up in the
+ * {@link ProcessedImageCache}. If a manifest is loaded, the images of the first canvases are processed with all
+ * configured qualities. If an image is requested in a quality, the images of the neighbouring canvases follow. The
+ * tasks run on low priority threads with a bounded queue, they are dropped if the {@link QualityExecutor} is busy.
+ * They are only admitted by the executor if there is room right away, so they never count as waiting requests.
+ */
+@Slf4j
+@Service
+@TypeChecked
+@CompileStatic
+class QualityPrefetcher {
+
+    @Value('${custom.image.quality.prefetch.enabled:false}')
+    protected boolean enabled = false
+
+    // Qualities to prefetch, all enabled ones if not set
+    @Value('${custom.image.quality.prefetch.qualities:#{null}}')
+    protected String qualities
+
+    // Sizes prefetched if a manifest is loaded, separated by spaces. 'full' is the full resolution, sizes of the full
+    // region like '!400,400' use the results of a reduced decoding
+    @Value('${custom.image.quality.prefetch.sizes:full}')
+    protected String sizes = 'full'
+
+    // Canvases processed if a manifest is loaded
+    @Value('${custom.image.quality.prefetch.canvases:3}')
+    protected int canvases = 3
+
+    // Canvases processed on each side of a requested one
+    @Value('${custom.image.quality.prefetch.neighbours:2}')
+    protected int neighbours = 2
+
+    @Value('${custom.image.quality.prefetch.threads:1}')
+    protected int threads = 1
+
+    @Value('${custom.image.quality.prefetch.queue:32}')
+    protected int queue = 32
+
+    // Fraction of the memory of the executor that may be in use before prefetching stops
+    @Value('${custom.image.quality.prefetch.maxLoad:0.5}')
+    protected double maxLoad = 0.5d
+
+    @Autowired(required = false)
+    protected ProcessedImageCache processedImageCache
+
+    @Autowired(required = false)
+    protected QualityExecutor qualityExecutor
+
+    @Autowired(required = false)
+    protected FileResourceService fileResourceService
+
+    // Looked up lazily, the qualities themselves depend on the prefetcher
+    @Autowired(required = false)
+    protected ObjectProvider<ImageQualityService> imageQualityServices
+
+    protected List<ImageQualityService.Source> services
+    protected ImageSource source
+    protected ThreadPoolExecutor executor
+    protected Set<String> inFlight = ConcurrentHashMap.newKeySet()
+    protected Cache<String, Boolean> done
+    // Position of images in the canvases of the manifests loaded last
+    protected Cache<String, Position> positions
+
+    QualityPrefetcher() {
+
+    }
+
+    QualityPrefetcher(List<ImageQualityService.Source> services, ImageSource source, int canvases, int neighbours) {
+        this.enabled = true
+        this.services = services
+        this.source = source
+        this.canvases = canvases
+        this.neighbours = neighbours
+        init()
+    }
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return
+        }
+        if (source == null && fileResourceService != null) {
+            source = new FileResourceImageSource(fileResourceService)
+        }
+        done = Caffeine.newBuilder().maximumSize(4096).expireAfterWrite(10, TimeUnit.MINUTES).<String, Boolean> build()
+        positions = Caffeine.newBuilder().maximumSize(16384).<String, Position> build()
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queue),
+                new ThreadFactoryBuilder().setNameFormat('prefetch-%d').setDaemon(true).setPriority(Thread.MIN_PRIORITY).build())
+        if (processedImageCache != null && !processedImageCache.isEnabled()) {
+            log.warn("The processed image cache is disabled, prefetched images can't be reused")
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        if (executor != null) {
+            executor.shutdownNow()
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled && source != null && (processedImageCache == null || processedImageCache.isEnabled())
+    }
+
+    /**
+     * Called if a manifest has been loaded, the manifest is only serialised on the thread of the prefetcher
+     */
+    void manifestLoaded(String identifier, Supplier<JsonNode> manifest) {
+        if (!isEnabled() || isBusy()) {
+            return
+        }
+        submit("manifest\t${identifier}".toString(), () -> {
+            List<List<String>> images = ManifestImages.canvases(manifest.get())
+            for (int i = 0; i < images.size(); i++) {
+                for (String image in images.get(i)) {
+                    positions.put(image, new Position(images, i))
+                }
+            }
+            log.debug("Prefetching the first ${Math.min(canvases, images.size())} of ${images.size()} canvases of '${identifier}'")
+            for (int i = 0; i < Math.min(canvases, images.size()); i++) {
+                for (String image in images.get(i)) {
+                    for (ImageQualityService.Source service in getServices()) {
+                        for (RequestedSize size in getSizes()) {
+                            prefetch(service, image, size)
+                        }
+                    }
+                }
+            }
+        })
+    }
+
+    void viewed(String identifier, ImageQualityService.Source service) {
+        viewed(identifier, service, null)
+    }
+
+    /**
+     * Called if an image has been requested in the given quality, the neighbouring canvases follow, next ones first.
+     * They are processed for the same size, so they end up in the cache with the same reduction.
+     *
+     * @param size the requested size, null for the full resolution
+     */
+    void viewed(String identifier, ImageQualityService.Source service, RequestedSize size) {
+        if (!isEnabled() || !getServices().contains(service)) {
+            return
+        }
+        Position position = positions.getIfPresent(identifier)
+        if (position == null) {
+            return
+        }
+        for (int distance = 1; distance <= neighbours; distance++) {
+            for (int index in [position.index + distance, position.index - distance]) {
+                if (index >= 0 && index < position.canvases.size()) {
+                    for (String image in position.canvases.get(index)) {
+                        prefetch(service, image, size)
+                    }
+                }
+            }
+        }
+    }
+
+    void prefetch(ImageQualityService.Source service, String identifier) {
+        prefetch(service, identifier, null)
+    }
+
+    void prefetch(ImageQualityService.Source service, String identifier, RequestedSize size) {
+        // Only the qualities working on decoded images can make use of the size
+        RequestedSize requested = service instanceof AbstractMatImageQualityService ? size : null
+        String key = "${quality(service)}\t${identifier}\t${requested != null ? requested : 'full'}".toString()
+        if (done.getIfPresent(key) != null || isBusy()) {
+            return
+        }
+        submit(key, () -> {
+            if (isBusy()) {
+                log.debug("Skipping prefetch of ${key}, the executor is busy")
+                return
+            }
+            long start = System.nanoTime()
+            InputStream is = source.open(identifier)
+            try {
+                ImageReader reader
+                if (service instanceof AbstractMatImageQualityService) {
+                    // Doesn't report the image as viewed again
+                    reader = ((AbstractMatImageQualityService) service).processStream(identifier, is, requested)
+                } else {
+                    reader = service.processStream(identifier, is)
+                }
+                if (reader != null) {
+                    reader.dispose()
+                }
+            } finally {
+                is.close()
+            }
+            done.put(key, Boolean.TRUE)
+            log.debug("Prefetched ${key} in ${TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)} ms")
+        })
+    }
+
+    protected void submit(String key, PrefetchTask.Action action) {
+        if (!inFlight.add(key)) {
+            return
+        }
+        try {
+            executor.execute(new PrefetchTask(key, action, this))
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key)
+            log.debug("Prefetch queue is full, dropped ${key}")
+        }
+    }
+
+    protected void run(PrefetchTask task) {
+        try {
+            // Prefetches don't queue for admission, waiting requests are the signal to stop
+            QualityExecutor.background({
+                task.action.run()
+                return null
+            } as Supplier<Object>)
+        } catch (QualityOverloadException e) {
+            log.debug("Prefetch of ${task.key} rejected: ${e.getMessage()}")
+        } catch (Exception e) {
+            log.warn("Prefetch of ${task.key} failed: ${e.getMessage()}")
+        } finally {
+            finished(task)
+        }
+    }
+
+    protected void finished(PrefetchTask task) {
+        inFlight.remove(task.key)
+    }
+
+    /**
+     * Prefetching stops if requests wait for admission or if too much of the memory budget is in use
+     */
+    boolean isBusy() {
+        if (qualityExecutor == null || !qualityExecutor.isEnabled()) {
+            return false
+        }
+        boolean busy = qualityExecutor.getWaiting() > 0 || qualityExecutor.getAvailableMemory() < qualityExecutor.getMemory() * (1d - maxLoad)
+        if (busy) {
+            cancel()
+        }
+        return busy
+    }
+
+    /**
+     * Drops all queued tasks, running ones are finished
+     */
+    void cancel() {
+        if (executor == null) {
+            return
+        }
+        List<Runnable> dropped = new ArrayList<Runnable>()
+        executor.getQueue().drainTo(dropped)
+        for (Runnable task in dropped) {
+            finished((PrefetchTask) task)
+        }
+        if (!dropped.isEmpty()) {
+            log.debug("Cancelled ${dropped.size()} prefetch tasks")
+        }
+    }
+
+    int getQueued() {
+        return executor != null ? executor.getQueue().size() : 0
+    }
+
+    void setQualityExecutor(QualityExecutor qualityExecutor) {
+        this.qualityExecutor = qualityExecutor
+    }
+
+    protected List<ImageQualityService.Source> getServices() {
+        if (services == null) {
+            List<String> names = qualities != null && qualities != '' ? Arrays.asList(qualities.split(',')) : null
+            List<ImageQualityService.Source> found = new ArrayList<ImageQualityService.Source>()
+            if (imageQualityServices != null) {
+                imageQualityServices.orderedStream().forEach((ImageQualityService iqs) -> {
+                    if (iqs instanceof ImageQualityService.Source && iqs.enabled() && (names == null || names.contains(quality(iqs)))) {
+                        found.add((ImageQualityService.Source) iqs)
+                    }
+                })
+            }
+            services = found
+        }
+        return services
+    }
+
+    protected List<RequestedSize> getSizes() {
+        List<RequestedSize> result = new ArrayList<RequestedSize>()
+        for (String size in (sizes != null ? sizes : '').trim().split(/\s+/)) {
+            if (size == '' || size == 'full' || size == 'max') {
+                if (!result.contains(null)) {
+                    result.add(null)
+                }
+            } else {
+                RequestedSize parsed = RequestedSize.parse(size)
+                if (parsed == null) {
+                    log.warn("Prefetch size '${size}' needs the full resolution, use 'full' instead")
+                } else if (!result.contains(parsed)) {
+                    result.add(parsed)
+                }
+            }
+        }
+        if (result.isEmpty()) {
+            result.add(null)
+        }
+        return result
+    }
+
+    void setSizes(String sizes) {
+        this.sizes = sizes
+    }
+
+    protected static String quality(ImageQualityService service) {
+        String quality = service.getQuality() != null ? service.getQuality().toString() : null
+        return quality != null ? quality : service.getClass().getSimpleName()
+    }
+
+    protected static class Position {
+        final List<List<String>> canvases
+        final int index
+
+        Position(List<List<String>> canvases, int index) {
+            this.canvases = canvases
+            this.index = index
+        }
+    }
+
+    protected static class PrefetchTask implements Runnable {
+        interface Action {
+            void run() throws Exception
+        }
+
+        final String key
+        final Action action
+        final QualityPrefetcher prefetcher
+
+        PrefetchTask(String key, Action action, QualityPrefetcher prefetcher) {
+            this.key = key
+            this.action = action
+            this.prefetcher = prefetcher
+        }
+
+        @Override
+        void run() {
+            prefetcher.run(this)
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.presentation
+
+import com.google.common.hash.Hashing
+import de.digitalcollections.iiif.model.sharedcanvas.Manifest
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+
+/**
+ * A parsed (and rewritten) manifest together with a strong ETag derived from its serialised form, only the length of
+ * the serialisation is kept
+ */
+@TypeChecked
+@CompileStatic
+class CachedManifest {
+    final String identifier
+    // Version of the source, changes if the source is modified
+    final String version
+    final Manifest manifest
+    // Length of the serialisation in bytes
+    final int length
+    final String etag
+
+    CachedManifest(String identifier, String version, Manifest manifest, byte[] bytes) {
+        this.identifier = identifier
+        this.version = version
+        this.manifest = manifest
+        this.length = bytes.length
+        this.etag = '"' + Hashing.murmur3_128().hashBytes(bytes).toString() + '"'
+    }
+
+    @Override
+    String toString() {
+        return "${identifier}@${version}".toString()
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.presentation
+
+import com.github.benmanes.caffeine.cache.AsyncCache
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import com.github.benmanes.caffeine.cache.Weigher
+import de.digitalcollections.iiif.model.sharedcanvas.Manifest
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Service
+
+import javax.annotation.PostConstruct
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.function.Supplier
+
+/**
+ * Bounded cache for manifests by identifier, entries are only used as long as the version of the source doesn't change.
+ * Concurrent requests for the same manifest wait for the first one instead of parsing it again.
+ */
+@Slf4j
+@Service
+@TypeChecked
+@CompileStatic
+class ManifestCache {
+
+    @Value('${custom.iiif.manifest.cache.enabled:true}')
+    protected boolean enabled = true
+
+    // Size of the serialised manifests in bytes
+    @Value('${custom.iiif.manifest.cache.maximumWeight:268435456}')
+    protected long maximumWeight = 268435456
+
+    protected AsyncCache<String, CachedManifest> cache
+    // Used to find the entry of a manifest returned by the repository
+    protected Cache<Manifest, CachedManifest> entries
+
+    ManifestCache() {
+
+    }
+
+    ManifestCache(long maximumWeight) {
+        this.maximumWeight = maximumWeight
+        init()
+    }
+
+    @PostConstruct
+    void init() {
+        cache = Caffeine.newBuilder()
+            .maximumWeight(maximumWeight)
+            .weigher({ String identifier, CachedManifest manifest -> manifest.length } as Weigher<String, CachedManifest>)
+            .<String, CachedManifest> buildAsync()
+        // Weak keys are compared by identity, the values reference their keys and are only kept by the cache above
+        entries = Caffeine.newBuilder().weakKeys().weakValues().<Manifest, CachedManifest> build()
+    }
+
+    boolean isEnabled() {
+        return enabled
+    }
+
+    /**
+     * Returns the cached manifest if it has the given version, loads it on the calling thread otherwise. Manifests
+     * without a version aren't cached.
+     */
+    CachedManifest get(String identifier, String version, Supplier<CachedManifest> load) {
+        if (!enabled || version == null) {
+            return load.get()
+        }
+        CompletableFuture<CachedManifest> future = cache.getIfPresent(identifier)
+        if (future != null && future.isDone() && !future.isCompletedExceptionally() && future.join().version != version) {
+            log.debug("Source of ${identifier} changed, reloading")
+            cache.asMap().remove(identifier, future)
+            future = null
+        }
+        if (future == null) {
+            CompletableFuture<CachedManifest> created = new CompletableFuture<CachedManifest>()
+            future = cache.asMap().putIfAbsent(identifier, created)
+            if (future == null) {
+                future = created
+                try {
+                    CachedManifest loaded = load.get()
+                    entries.put(loaded.manifest, loaded)
+                    created.complete(loaded)
+                } catch (Throwable t) {
+                    // Failed results are removed by Caffeine, the next request tries again
+                    created.completeExceptionally(t)
+                    throw t
+                }
+            }
+        }
+        CachedManifest result
+        try {
+            result = future.join()
+        } catch (CompletionException ce) {
+            throw ce.getCause()
+        }
+        if (result.version != version) {
+            // Waited for a concurrent load of another version
+            return load.get()
+        }
+        return result
+    }
+
+    /**
+     * @return the cache entry of a manifest returned by {@link #get}, null if it isn't cached
+     */
+    CachedManifest lookup(Manifest manifest) {
+        return entries.getIfPresent(manifest)
+    }
+
+    void invalidateAll() {
+        cache.synchronous().invalidateAll()
+        entries.invalidateAll()
+    }
+
+    long size() {
+        return cache.synchronous().estimatedSize()
+    }
+}
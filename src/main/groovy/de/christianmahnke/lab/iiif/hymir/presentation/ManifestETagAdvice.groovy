@@ -0,0 +1,85 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.presentation
+
+import de.digitalcollections.iiif.model.sharedcanvas.Manifest
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.core.MethodParameter
+import org.springframework.http.HttpStatus
+import org.springframework.http.MediaType
+import org.springframework.http.converter.HttpMessageConverter
+import org.springframework.http.server.ServerHttpRequest
+import org.springframework.http.server.ServerHttpResponse
+import org.springframework.web.bind.annotation.ControllerAdvice
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice
+
+/**
+ * Adds the ETag of cached manifests to the responses of Hymir and answers matching conditional requests with
+ * {@code 304 Not Modified}, the body is still written by the selected message converter.
+ */
+@Slf4j
+@ControllerAdvice
+@TypeChecked
+@CompileStatic
+class ManifestETagAdvice implements ResponseBodyAdvice<Object> {
+
+    @Autowired(required = false)
+    ManifestCache manifestCache
+
+    ManifestETagAdvice() {
+
+    }
+
+    ManifestETagAdvice(ManifestCache manifestCache) {
+        this.manifestCache = manifestCache
+    }
+
+    @Override
+    boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return manifestCache != null && manifestCache.isEnabled() && Manifest.class.isAssignableFrom(returnType.getParameterType())
+    }
+
+    @Override
+    Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                           Class<? extends HttpMessageConverter<?>> selectedConverterType, ServerHttpRequest request,
+                           ServerHttpResponse response) {
+        CachedManifest cached = body instanceof Manifest ? manifestCache.lookup((Manifest) body) : null
+        if (cached == null) {
+            return body
+        }
+        response.getHeaders().setETag(cached.etag)
+        if (matches(request.getHeaders().getIfNoneMatch(), cached.etag)) {
+            log.debug("${cached} not modified")
+            response.setStatusCode(HttpStatus.NOT_MODIFIED)
+            return null
+        }
+        return body
+    }
+
+    protected static boolean matches(List<String> ifNoneMatch, String etag) {
+        for (String candidate in ifNoneMatch) {
+            if (candidate == '*' || candidate == etag || candidate == 'W/' + etag) {
+                return true
+            }
+        }
+        return false
+    }
+}
@@ -17,6 +17,8 @@
  */
 package de.christianmahnke.lab.iiif.hymir.presentation
 
+import com.fasterxml.jackson.databind.JsonNode
+import de.christianmahnke.lab.iiif.hymir.prefetch.QualityPrefetcher
 import de.digitalcollections.commons.file.business.api.FileResourceService
 import de.digitalcollections.commons.file.config.SpringConfigCommonsFile
 import de.digitalcollections.iiif.hymir.config.SpringConfig
@@ -51,6 +53,12 @@ class RewritingPresentationRepository extends PresentationRepositoryImpl impleme
     @Autowired
     FileResourceService fileResourceService
 
+    @Autowired(required = false)
+    ManifestCache manifestCache
+
+    @Autowired(required = false)
+    QualityPrefetcher prefetcher
+
     @Override
     String name() {
         return "Rewriting Presentation Manifest backend"
@@ -65,12 +73,43 @@ class RewritingPresentationRepository extends PresentationRepositoryImpl impleme
             log.error("Error getting manifest for identifier ${identifier}", ex)
             throw new ResolvingException("No manifest for identifier " + identifier)
         }
+        Manifest manifest
+        if (manifestCache == null) {
+            manifest = parse(identifier, resource)
+        } else {
+            manifest = manifestCache.get(identifier, version(resource), () -> load(identifier, resource)).manifest
+        }
+        return manifest
+    }
+
+    protected CachedManifest load(String identifier, FileResource resource) {
+        Manifest manifest = parse(identifier, resource)
+        return new CachedManifest(identifier, version(resource), manifest, objectMapper.writeValueAsBytes(manifest))
+    }
+
+    protected Manifest parse(String identifier, FileResource resource) {
         //TODO: Add rewriting here
+        Manifest manifest
         try {
-            return objectMapper.readValue(getResourceJson(resource), Manifest.class)
+            manifest = objectMapper.readValue(getResourceJson(resource), Manifest.class)
         } catch (IOException ex) {
             log.error("Manifest ${identifier} can not be parsed", ex)
             throw new InvalidDataException("Manifest " + identifier + " can not be parsed", ex)
         }
+        // Only manifests that are actually parsed, not the ones served from the cache
+        if (prefetcher != null) {
+            prefetcher.manifestLoaded(identifier, () -> (JsonNode) objectMapper.valueToTree(manifest))
+        }
+        return manifest
+    }
+
+    /**
+     * @return the version of the source, null if it doesn't have a modification date
+     */
+    protected static String version(FileResource resource) {
+        if (resource.getLastModified() == null) {
+            return null
+        }
+        return "${resource.getUri()}@${resource.getLastModified()}/${resource.getSizeInBytes()}".toString()
     }
 }
@@ -0,0 +1,82 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.source
+
+import de.digitalcollections.commons.file.backend.api.FileResourceRepository
+import de.digitalcollections.commons.file.business.impl.FileResourceServiceImpl
+import de.digitalcollections.commons.file.config.SpringConfigCommonsFile
+import de.digitalcollections.model.exception.ResourceIOException
+import de.digitalcollections.model.exception.ResourceNotFoundException
+import de.digitalcollections.model.file.MimeType
+import de.digitalcollections.model.identifiable.resource.FileResource
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.context.annotation.Import
+import org.springframework.context.annotation.Primary
+import org.springframework.stereotype.Service
+
+/**
+ * Serves images resolved to remote URLs from the {@link RemoteSourceCache}, everything else is read by the configured
+ * file resource repository.
+ */
+@Slf4j
+@CompileStatic
+@TypeChecked
+@Primary
+@Service
+@Import(SpringConfigCommonsFile.class)
+class CachingFileResourceService extends FileResourceServiceImpl {
+
+    @Autowired(required = false)
+    RemoteSourceCache sourceCache
+
+    @Autowired
+    CachingFileResourceService(FileResourceRepository repository) {
+        super(repository)
+    }
+
+    CachingFileResourceService(FileResourceRepository repository, RemoteSourceCache sourceCache) {
+        super(repository)
+        this.sourceCache = sourceCache
+    }
+
+    @Override
+    InputStream getInputStream(FileResource resource) throws ResourceIOException, ResourceNotFoundException {
+        if (!cached(resource)) {
+            return super.getInputStream(resource)
+        }
+        try {
+            return sourceCache.open(resource.getUri())
+        } catch (FileNotFoundException e) {
+            throw new ResourceNotFoundException("${resource.getUri()} not found", e)
+        } catch (IOException e) {
+            throw new ResourceIOException("Failed to read ${resource.getUri()}", e)
+        }
+    }
+
+    protected boolean cached(FileResource resource) {
+        if (sourceCache == null || !sourceCache.supports(resource.getUri())) {
+            return false
+        }
+        // Manifests and other documents change more often and are small
+        MimeType mimeType = resource.getMimeType()
+        return mimeType != null && mimeType.getPrimaryType() == MimeType.MIME_IMAGE.getPrimaryType()
+    }
+}
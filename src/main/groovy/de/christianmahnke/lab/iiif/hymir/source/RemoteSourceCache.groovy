@@ -0,0 +1,394 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.source
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import com.github.benmanes.caffeine.cache.RemovalCause
+import com.github.benmanes.caffeine.cache.RemovalListener
+import com.github.benmanes.caffeine.cache.Weigher
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Metrics
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Service
+
+import javax.annotation.PostConstruct
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.nio.charset.StandardCharsets
+import java.nio.file.DirectoryStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keeps the original bytes of remote images on disk, keyed by their resolved URL, so a burst of tile requests for the
+ * same image only downloads it once. Concurrent requests for an URL wait for the running download, cached files are
+ * revalidated with {@code If-None-Match} and {@code If-Modified-Since} after {@code revalidateAfter} seconds and served
+ * stale if the server can't be reached.
+ * <p>
+ * The streams returned by {@link #open(URI)} are {@link FileInputStream}'s, these are memory mapped instead of being
+ * copied by {@link de.christianmahnke.lab.images.opencv.OpenCVUtil#loadImage(InputStream)}.
+ */
+@Slf4j
+@Service
+@TypeChecked
+@CompileStatic
+class RemoteSourceCache {
+    static final String METRIC = 'hymir.source.cache'
+    protected static final String DATA = '.bin'
+    protected static final String META = '.properties'
+    protected static final String TMP = '.tmp'
+
+    @Value('${custom.image.source.cache.enabled:true}')
+    protected boolean enabled = true
+
+    // A temporary directory if not set, the index is rebuilt from the directory on start
+    @Value('${custom.image.source.cache.directory:#{null}}')
+    protected String directory
+
+    // Size of the cached files in bytes
+    @Value('${custom.image.source.cache.maximumWeight:10737418240}')
+    protected long maximumWeight = 10737418240L
+
+    // Seconds a cached file is used without asking the server
+    @Value('${custom.image.source.cache.revalidateAfter:300}')
+    protected long revalidateAfter = 300
+
+    // Milliseconds
+    @Value('${custom.image.source.cache.connectTimeout:5000}')
+    protected long connectTimeout = 5000
+
+    @Value('${custom.image.source.cache.requestTimeout:60000}')
+    protected long requestTimeout = 60000
+
+    @Autowired(required = false)
+    protected MeterRegistry meterRegistry
+
+    protected Path root
+    protected HttpClient client
+    protected Cache<String, Entry> entries
+    protected final Map<String, CompletableFuture<Entry>> downloads = new ConcurrentHashMap<String, CompletableFuture<Entry>>()
+
+    RemoteSourceCache() {
+
+    }
+
+    RemoteSourceCache(String directory, long maximumWeight, long revalidateAfter) {
+        this.directory = directory
+        this.maximumWeight = maximumWeight
+        this.revalidateAfter = revalidateAfter
+        init()
+    }
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return
+        }
+        if (directory != null && directory != '') {
+            root = Paths.get(directory)
+            Files.createDirectories(root)
+        } else {
+            root = Files.createTempDirectory('hymir-source-cache')
+        }
+        // The client keeps a pool of connections, with HTTP/2 requests to the same host share one
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build()
+        // Weighed in KB, the weight of Caffeine is an int. Every download has its own files, so the ones of replaced
+        // entries can be deleted as well
+        entries = Caffeine.newBuilder()
+                .maximumWeight(Math.max(1L, maximumWeight.intdiv(1024) as long))
+                .weigher({ String url, Entry entry -> weight(entry) } as Weigher<String, Entry>)
+                .removalListener({ String url, Entry entry, RemovalCause cause ->
+                    if (entry != null) {
+                        entry.delete()
+                    }
+                } as RemovalListener<String, Entry>)
+                .<String, Entry> build()
+        scan()
+        log.info("Using ${root} as cache of remote source images")
+    }
+
+    boolean isEnabled() {
+        return enabled
+    }
+
+    boolean supports(URI uri) {
+        return enabled && uri != null && (uri.getScheme() == 'http' || uri.getScheme() == 'https')
+    }
+
+    /**
+     * Opens the cached file of the given URL, downloading or revalidating it first if needed
+     *
+     * @throws FileNotFoundException if the server answers with 404 or 410
+     */
+    InputStream open(URI uri) throws IOException {
+        Entry entry = get(uri.toString())
+        try {
+            return new FileInputStream(entry.file.toFile())
+        } catch (FileNotFoundException e) {
+            // Evicted in the meantime
+            log.debug("Cached file of ${uri} vanished, fetching again")
+            entries.asMap().remove(uri.toString(), entry)
+            return new FileInputStream(get(uri.toString()).file.toFile())
+        }
+    }
+
+    Entry get(String url) throws IOException {
+        Entry cached = entries.getIfPresent(url)
+        if (cached != null && cached.isFresh(revalidateAfter)) {
+            count('hit')
+            return cached
+        }
+        CompletableFuture<Entry> created = new CompletableFuture<Entry>()
+        CompletableFuture<Entry> future = downloads.putIfAbsent(url, created)
+        if (future == null) {
+            future = created
+            try {
+                created.complete(fetch(url, cached))
+            } catch (Throwable t) {
+                created.completeExceptionally(t)
+            } finally {
+                downloads.remove(url, created)
+            }
+        }
+        try {
+            return future.join()
+        } catch (CompletionException ce) {
+            throw ce.getCause()
+        }
+    }
+
+    protected Entry fetch(String url, Entry cached) throws IOException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofMillis(requestTimeout))
+                .GET()
+        if (cached != null) {
+            if (cached.etag != null) {
+                request.header('If-None-Match', cached.etag)
+            }
+            if (cached.lastModified != null) {
+                request.header('If-Modified-Since', cached.lastModified)
+            }
+        }
+        String name = "${hash(url)}-${System.nanoTime()}".toString()
+        Path tmp = root.resolve(name + TMP)
+        // Only successful responses are written to disk
+        HttpResponse.BodyHandler<Path> handler = { HttpResponse.ResponseInfo info ->
+            info.statusCode() == 200 ? HttpResponse.BodySubscribers.ofFile(tmp) : HttpResponse.BodySubscribers.replacing((Path) null)
+        } as HttpResponse.BodyHandler<Path>
+        HttpResponse<Path> response
+        try {
+            response = client.send(request.build(), handler)
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt()
+            Files.deleteIfExists(tmp)
+            throw new InterruptedIOException("Download of ${url} interrupted")
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp)
+            return stale(url, cached, e.toString())
+        }
+        int status = response.statusCode()
+        if (status == 200) {
+            Path file = root.resolve(name + DATA)
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+            Entry entry = new Entry(url, file, Files.size(file), header(response, 'ETag'), header(response, 'Last-Modified'), System.currentTimeMillis())
+            entry.store()
+            entries.put(url, entry)
+            count('miss')
+            log.debug("Downloaded ${url} (${entry.length} bytes) to ${file}")
+            return entry
+        } else if (status == 304 && cached != null) {
+            cached.validated = System.currentTimeMillis()
+            cached.store()
+            count('revalidated')
+            return cached
+        } else if (status == 404 || status == 410) {
+            entries.invalidate(url)
+            throw new FileNotFoundException("${url} returned ${status}")
+        }
+        return stale(url, cached, "status ${status}")
+    }
+
+    protected Entry stale(String url, Entry cached, String reason) throws IOException {
+        if (cached == null) {
+            throw new IOException("Failed to download ${url}: ${reason}")
+        }
+        log.warn("Failed to revalidate ${url} (${reason}), using cached file")
+        count('stale')
+        return cached
+    }
+
+    /**
+     * Rebuilds the index from the files of a previous run
+     */
+    protected void scan() {
+        DirectoryStream<Path> files = Files.newDirectoryStream(root)
+        try {
+            for (Path path in files) {
+                String fileName = path.getFileName().toString()
+                if (fileName.endsWith(TMP)) {
+                    // Interrupted download
+                    Files.deleteIfExists(path)
+                } else if (fileName.endsWith(META)) {
+                    Entry entry = Entry.load(path)
+                    if (entry != null) {
+                        entries.put(entry.url, entry)
+                    } else {
+                        Files.deleteIfExists(path)
+                    }
+                }
+            }
+        } finally {
+            files.close()
+        }
+    }
+
+    void invalidateAll() {
+        entries.invalidateAll()
+    }
+
+    long size() {
+        return entries.estimatedSize()
+    }
+
+    protected void count(String result) {
+        Counter.builder(METRIC)
+                .tag('result', result)
+                .register(meterRegistry != null ? meterRegistry : Metrics.globalRegistry)
+                .increment()
+    }
+
+    protected static String header(HttpResponse response, String name) {
+        return response.headers().firstValue(name).orElse(null)
+    }
+
+    protected static String hash(String url) {
+        byte[] digest = MessageDigest.getInstance('SHA-256').digest(url.getBytes(StandardCharsets.UTF_8))
+        return new BigInteger(1, digest).toString(16).padLeft(64, '0')
+    }
+
+    protected static int weight(Entry entry) {
+        long kb = (entry.length + 1023).intdiv(1024) as long
+        return kb > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) kb
+    }
+
+    /**
+     * A cached file and the validators of its response, stored next to it as properties
+     */
+    static class Entry {
+        final String url
+        final Path file
+        final long length
+        final String etag
+        final String lastModified
+        // Time of the last download or revalidation in milliseconds
+        volatile long validated
+
+        Entry(String url, Path file, long length, String etag, String lastModified, long validated) {
+            this.url = url
+            this.file = file
+            this.length = length
+            this.etag = etag
+            this.lastModified = lastModified
+            this.validated = validated
+        }
+
+        boolean isFresh(long revalidateAfter) {
+            return System.currentTimeMillis() - validated < revalidateAfter * 1000
+        }
+
+        protected Path getMeta() {
+            String fileName = file.getFileName().toString()
+            return file.resolveSibling(fileName.substring(0, fileName.length() - DATA.length()) + META)
+        }
+
+        synchronized void store() {
+            Properties properties = new Properties()
+            properties.setProperty('url', url)
+            properties.setProperty('length', Long.toString(length))
+            properties.setProperty('validated', Long.toString(validated))
+            if (etag != null) {
+                properties.setProperty('etag', etag)
+            }
+            if (lastModified != null) {
+                properties.setProperty('lastModified', lastModified)
+            }
+            Path tmp = file.resolveSibling(getMeta().getFileName().toString() + TMP)
+            Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)
+            try {
+                properties.store(writer, null)
+            } finally {
+                writer.close()
+            }
+            Files.move(tmp, getMeta(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        }
+
+        /**
+         * @return the entry described by the given properties, null if they are incomplete or the file has changed
+         */
+        static Entry load(Path meta) {
+            Properties properties = new Properties()
+            try {
+                Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)
+                try {
+                    properties.load(reader)
+                } finally {
+                    reader.close()
+                }
+                String fileName = meta.getFileName().toString()
+                Path file = meta.resolveSibling(fileName.substring(0, fileName.length() - META.length()) + DATA)
+                long length = Long.parseLong(properties.getProperty('length', '-1'))
+                if (properties.getProperty('url') == null || !Files.exists(file) || Files.size(file) != length) {
+                    Files.deleteIfExists(file)
+                    return null
+                }
+                return new Entry(properties.getProperty('url'), file, length, properties.getProperty('etag'),
+                        properties.getProperty('lastModified'), Long.parseLong(properties.getProperty('validated', '0')))
+            } catch (IOException | NumberFormatException e) {
+                log.warn("Ignoring broken cache entry ${meta}", e)
+                return null
+            }
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(getMeta())
+                Files.deleteIfExists(file)
+            } catch (IOException e) {
+                log.warn("Failed to delete ${file}", e)
+            }
+        }
+    }
+}
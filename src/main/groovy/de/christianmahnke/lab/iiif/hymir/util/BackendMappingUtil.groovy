@@ -23,10 +23,14 @@ import de.digitalcollections.commons.file.backend.impl.IdentifierPatternToFileRe
 import de.digitalcollections.commons.file.config.SpringConfigCommonsFile
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.context.annotation.Import
+import org.springframework.context.event.ContextRefreshedEvent
+import org.springframework.context.event.EventListener
 import org.springframework.stereotype.Service
 
+@Slf4j
 @CompileStatic
 @TypeChecked
 @Service
@@ -34,13 +38,40 @@ import org.springframework.stereotype.Service
 class BackendMappingUtil {
 
     IdentifierPatternToFileResourceUriResolvingConfig resourceRepository
+    protected volatile MappingSnapshot snapshot
 
     BackendMappingUtil(@Autowired IdentifierPatternToFileResourceUriResolvingConfig resourceRepository) {
         this.resourceRepository = resourceRepository
     }
 
+    /**
+     * @return the mappings as of the last refresh of the application context
+     */
+    MappingSnapshot getSnapshot() {
+        MappingSnapshot current = snapshot
+        if (current == null) {
+            current = refresh()
+        }
+        return current
+    }
+
+    @EventListener
+    void onRefresh(ContextRefreshedEvent event) {
+        refresh()
+    }
+
+    MappingSnapshot refresh() {
+        MappingSnapshot current = new MappingSnapshot(getMappings(), mappingPatterns(''))
+        log.debug("Created snapshot ${current.version} of ${current.mappings.size()} mappings")
+        snapshot = current
+        return current
+    }
+
     Map<String, List<String>> getMappings() {
-        Map<String, List<String>> mappings = new HashMap<String, List<String>>()
+        Map<String, List<String>> mappings = new LinkedHashMap<String, List<String>>()
+        if (resourceRepository.getPatterns() == null) {
+            return mappings
+        }
         for (IdentifierToFileResourceUriResolver resolver : resourceRepository.getPatterns()) {
             if (resolver instanceof IdentifierPatternToFileResourceUriResolverImpl) {
                 String pattern = ((IdentifierPatternToFileResourceUriResolverImpl) resolver).getPattern()
@@ -55,7 +86,7 @@ class BackendMappingUtil {
     }
 
     Map<String, String> mappingPatterns(String newPrefix) {
-        Map<String, String> patterns = new HashMap<String, String>()
+        Map<String, String> patterns = new LinkedHashMap<String, String>()
         getMappings().each { pattern, replacements ->
             String suffix = pattern
             if (suffix.startsWith("^")) {
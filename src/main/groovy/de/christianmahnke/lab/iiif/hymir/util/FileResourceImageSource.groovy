@@ -0,0 +1,49 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.util
+
+import de.digitalcollections.commons.file.business.api.FileResourceService
+import de.digitalcollections.model.file.MimeType
+import de.digitalcollections.model.identifiable.resource.FileResource
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+
+import java.nio.file.Paths
+
+/**
+ * Resolves images like Hymir, by the configured file resource resolvers
+ */
+@TypeChecked
+@CompileStatic
+class FileResourceImageSource implements ImageSource {
+    protected final FileResourceService fileResourceService
+
+    FileResourceImageSource(FileResourceService fileResourceService) {
+        this.fileResourceService = fileResourceService
+    }
+
+    @Override
+    InputStream open(String identifier) throws IOException {
+        FileResource resource = fileResourceService.find(identifier, MimeType.MIME_IMAGE)
+        // Local files are memory mapped by the qualities
+        if (resource.getUri() != null && resource.getUri().getScheme() == 'file') {
+            return new FileInputStream(Paths.get(resource.getUri()).toFile())
+        }
+        return fileResourceService.getInputStream(resource)
+    }
+}
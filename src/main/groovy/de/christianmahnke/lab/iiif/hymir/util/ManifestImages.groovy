@@ -0,0 +1,104 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.util
+
+import com.fasterxml.jackson.databind.JsonNode
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+
+import java.nio.charset.StandardCharsets
+
+/**
+ * Finds the images referenced by a manifest (version 2 and 3), the identifier of an image is the last segment of the
+ * id of its image service
+ */
+@TypeChecked
+@CompileStatic
+class ManifestImages {
+
+    private ManifestImages() {
+
+    }
+
+    /**
+     * @return the identifiers of all images, in the order of the manifest
+     */
+    static List<String> identifiers(JsonNode manifest) {
+        Set<String> identifiers = new LinkedHashSet<String>()
+        collect(manifest, identifiers)
+        return new ArrayList<String>(identifiers)
+    }
+
+    /**
+     * @return the identifiers of the images of each canvas, in the order of the canvases
+     */
+    static List<List<String>> canvases(JsonNode manifest) {
+        List<List<String>> canvases = new ArrayList<List<String>>()
+        List<JsonNode> nodes = new ArrayList<JsonNode>()
+        // Version 2
+        for (JsonNode sequence in manifest.path('sequences')) {
+            for (JsonNode canvas in sequence.path('canvases')) {
+                nodes.add(canvas)
+            }
+        }
+        // Version 3
+        for (JsonNode item in manifest.path('items')) {
+            if (item.path('type').asText() == 'Canvas') {
+                nodes.add(item)
+            }
+        }
+        for (JsonNode canvas in nodes) {
+            List<String> images = identifiers(canvas)
+            if (!images.isEmpty()) {
+                canvases.add(images)
+            }
+        }
+        return canvases
+    }
+
+    protected static void collect(JsonNode node, Set<String> identifiers) {
+        if (node.isArray()) {
+            for (JsonNode child in node) {
+                collect(child, identifiers)
+            }
+        } else if (node.isObject()) {
+            if (isImageService(node)) {
+                String id = node.has('@id') ? node.get('@id').asText() : node.path('id').asText(null)
+                if (id != null) {
+                    String path = id.replaceAll('/+$', '')
+                    identifiers.add(URLDecoder.decode(path.substring(path.lastIndexOf('/') + 1), StandardCharsets.UTF_8))
+                }
+                return
+            }
+            for (JsonNode child in node) {
+                collect(child, identifiers)
+            }
+        }
+    }
+
+    protected static boolean isImageService(JsonNode node) {
+        String type = node.has('@type') ? node.get('@type').asText() : node.path('type').asText('')
+        if (type.startsWith('ImageService')) {
+            return true
+        }
+        String context = node.path('@context').asText('')
+        JsonNode profile = node.path('profile')
+        String profileName = profile.isArray() ? profile.path(0).asText('') : profile.asText('')
+        return context.contains('iiif.io/api/image') || profileName.contains('iiif.io/api/image')
+    }
+}
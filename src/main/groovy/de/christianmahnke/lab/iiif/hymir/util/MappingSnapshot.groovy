@@ -0,0 +1,56 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.util
+
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Immutable state of the backend mappings, taken once from the resolver configuration
+ */
+@TypeChecked
+@CompileStatic
+class MappingSnapshot {
+    private static final AtomicLong VERSIONS = new AtomicLong()
+
+    // Increases with every snapshot, used to key the results derived from it
+    final long version
+    final Map<String, List<String>> mappings
+    // Patterns for URLs of the backends, mapped to their replacement without the new prefix
+    final Map<String, String> patterns
+
+    MappingSnapshot(Map<String, List<String>> mappings, Map<String, String> patterns) {
+        this.version = VERSIONS.incrementAndGet()
+        Map<String, List<String>> copy = new LinkedHashMap<String, List<String>>()
+        mappings.each { String pattern, List<String> substitutions ->
+            copy.put(pattern, substitutions != null ? Collections.unmodifiableList(new ArrayList<String>(substitutions)) : null)
+        }
+        this.mappings = Collections.unmodifiableMap(copy)
+        this.patterns = Collections.unmodifiableMap(new LinkedHashMap<String, String>(patterns))
+    }
+
+    Map<String, String> patterns(String newPrefix) {
+        Map<String, String> prefixed = new LinkedHashMap<String, String>()
+        patterns.each { String from, String to ->
+            prefixed.put(from, newPrefix + to)
+        }
+        return prefixed
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.util
+
+import groovy.transform.CompileStatic
+import groovy.transform.EqualsAndHashCode
+import groovy.transform.TypeChecked
+import org.springframework.web.context.request.RequestAttributes
+import org.springframework.web.context.request.RequestContextHolder
+import org.springframework.web.context.request.ServletRequestAttributes
+
+import java.awt.Dimension
+import java.nio.charset.StandardCharsets
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+/**
+ * The size parameter of an IIIF Image API request. Quality services only get the stream of the source image, the
+ * size is taken from the path of the current request. Only requests for the full region are considered, other
+ * regions and sizes relative to the source (like 'pct:' or 'max') need the full resolution.
+ */
+@TypeChecked
+@CompileStatic
+@EqualsAndHashCode
+class RequestedSize {
+    private static final Pattern SIZE = ~/^\^?(!?)(\d*),(\d*)$/
+
+    // Fit into the box given by width and height
+    final boolean bounded
+    // 0 if the dimension is derived from the aspect ratio
+    final int width
+    final int height
+
+    RequestedSize(boolean bounded, int width, int height) {
+        this.bounded = bounded
+        this.width = width
+        this.height = height
+    }
+
+    /**
+     * @return null if the size needs the full resolution
+     */
+    static RequestedSize parse(String size) {
+        if (size == null) {
+            return null
+        }
+        Matcher m = SIZE.matcher(size)
+        if (!m.matches() || (m.group(2).isEmpty() && m.group(3).isEmpty())) {
+            return null
+        }
+        boolean bounded = !m.group(1).isEmpty()
+        int width = m.group(2).isEmpty() ? 0 : Integer.parseInt(m.group(2))
+        int height = m.group(3).isEmpty() ? 0 : Integer.parseInt(m.group(3))
+        if ((bounded && (width == 0 || height == 0)) || (width == 0 && height == 0)) {
+            return null
+        }
+        return new RequestedSize(bounded, width, height)
+    }
+
+    /**
+     * Parses the path of an image request: {identifier}/{region}/{size}/{rotation}/{quality}.{format}
+     */
+    static RequestedSize fromPath(String path) {
+        if (path == null) {
+            return null
+        }
+        String[] segments = path.split('/')
+        if (segments.length < 5 || URLDecoder.decode(segments[segments.length - 4], StandardCharsets.UTF_8) != 'full') {
+            return null
+        }
+        return parse(URLDecoder.decode(segments[segments.length - 3], StandardCharsets.UTF_8))
+    }
+
+    static RequestedSize current() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes()
+        if (attributes instanceof ServletRequestAttributes) {
+            return fromPath(((ServletRequestAttributes) attributes).getRequest().getRequestURI())
+        }
+        return null
+    }
+
+    /**
+     * Size of the result for a source of the given size
+     */
+    Dimension resolve(int sourceWidth, int sourceHeight) {
+        if (bounded) {
+            double scale = Math.min(width / (double) sourceWidth, height / (double) sourceHeight)
+            return new Dimension((int) Math.round(sourceWidth * scale), (int) Math.round(sourceHeight * scale))
+        } else if (height == 0) {
+            return new Dimension(width, (int) Math.round(sourceHeight * width / (double) sourceWidth))
+        } else if (width == 0) {
+            return new Dimension((int) Math.round(sourceWidth * height / (double) sourceHeight), height)
+        }
+        return new Dimension(width, height)
+    }
+
+    @Override
+    String toString() {
+        return "${bounded ? '!' : ''}${width > 0 ? width : ''},${height > 0 ? height : ''}".toString()
+    }
+}
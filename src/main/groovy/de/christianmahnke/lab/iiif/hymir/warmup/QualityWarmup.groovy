@@ -0,0 +1,230 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.warmup
+
+import de.christianmahnke.lab.iiif.hymir.AbstractMatImageQualityService
+import de.christianmahnke.lab.iiif.hymir.StackImageQualityService
+import de.christianmahnke.lab.iiif.hymir.cache.ProcessedImageCache
+import de.christianmahnke.lab.iiif.hymir.metrics.QualityMetrics
+import de.christianmahnke.lab.images.opencv.OpenCVUtil
+import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Metrics
+import io.micrometer.core.instrument.Timer
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.core.Point
+import org.opencv.core.Scalar
+import org.opencv.imgcodecs.Imgcodecs
+import org.opencv.imgproc.Imgproc
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.ApplicationArguments
+import org.springframework.boot.ApplicationRunner
+import org.springframework.context.annotation.Profile
+import org.springframework.core.Ordered
+import org.springframework.core.annotation.Order
+import org.springframework.stereotype.Component
+
+import javax.imageio.ImageReader
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+
+/**
+ * Loads the native library and runs synthetic pages of the configured sizes through every enabled quality, the stack
+ * of qualities last. This runs before Spring Boot reports the application as ready to accept traffic, so the first
+ * requests after a deployment don't pay for the extraction of the library, cold call sites and the JIT.
+ * <p>
+ * The duration of each step is logged and recorded as {@code hymir.quality.warmup}, failures are logged but don't
+ * prevent the start.
+ */
+@Slf4j
+@TypeChecked
+@CompileStatic
+@Component
+@Profile('!batch')
+@Order(Ordered.HIGHEST_PRECEDENCE)
+class QualityWarmup implements ApplicationRunner {
+    static final String NATIVE = 'native'
+
+    @Value('${custom.image.quality.warmup.enabled:true}')
+    protected boolean enabled = true
+
+    // Widths of the synthetic pages, the height is 1.4 times the width
+    @Value('${custom.image.quality.warmup.sizes:1000,3000}')
+    protected String sizes = '1000,3000'
+
+    @Value('${custom.image.quality.warmup.iterations:2}')
+    protected int iterations = 2
+
+    @Autowired(required = false)
+    protected List<ImageQualityService> imageQualityServices
+
+    @Autowired(required = false)
+    protected MeterRegistry meterRegistry
+
+    // Duration of the steps in milliseconds, in the order they ran
+    protected final Map<String, Long> steps = Collections.synchronizedMap(new LinkedHashMap<String, Long>())
+    protected volatile boolean done = false
+
+    QualityWarmup() {
+
+    }
+
+    QualityWarmup(List<ImageQualityService> imageQualityServices, String sizes, int iterations) {
+        this.imageQualityServices = imageQualityServices
+        this.sizes = sizes
+        this.iterations = iterations
+    }
+
+    void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry
+    }
+
+    @Override
+    void run(ApplicationArguments args) {
+        warmup()
+    }
+
+    void warmup() {
+        if (!enabled) {
+            done = true
+            return
+        }
+        long start = System.nanoTime()
+        step(NATIVE, NATIVE, { OpenCVUtil.load() } as Runnable)
+        List<ImageQualityService.Source> services = getServices()
+        for (int width in getSizes()) {
+            ByteBuffer content = page(width)
+            for (ImageQualityService.Source service in services) {
+                for (int i = 1; i <= iterations; i++) {
+                    warmup(service, width, i, content)
+                }
+            }
+        }
+        done = true
+        log.info("Warm-up of ${services.size()} qualities finished in ${TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)} ms: ${steps}")
+    }
+
+    protected void warmup(ImageQualityService.Source service, int width, int iteration, ByteBuffer content) {
+        String quality = quality(service)
+        // Even page numbers are verso
+        String identifier = "warmup-${width}-${iteration}/00000002".toString()
+        // The cache would skip the pipeline and keep the results of the synthetic pages, even on disk
+        step("${quality} ${width} #${iteration}".toString(), quality, {
+            ProcessedImageCache.bypass({
+                ImageReader reader
+                if (service instanceof AbstractMatImageQualityService) {
+                    reader = ((AbstractMatImageQualityService) service).processBuffer(identifier, content.duplicate(), null)
+                } else {
+                    byte[] bytes = new byte[content.remaining()]
+                    content.duplicate().get(bytes)
+                    reader = service.processStream(identifier, new ByteArrayInputStream(bytes))
+                }
+                if (reader != null) {
+                    reader.read(0)
+                    reader.dispose()
+                }
+                return null
+            } as Supplier<Object>)
+        } as Runnable)
+    }
+
+    protected void step(String name, String tag, Runnable task) {
+        long start = System.nanoTime()
+        try {
+            task.run()
+        } catch (Exception e) {
+            log.warn("Warm-up step '${name}' failed", e)
+            return
+        }
+        long nanos = System.nanoTime() - start
+        Timer.builder(QualityMetrics.WARMUP)
+                .tag('step', tag)
+                .register(meterRegistry != null ? meterRegistry : Metrics.globalRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS)
+        steps.put(name, TimeUnit.NANOSECONDS.toMillis(nanos))
+        log.info("Warm-up step '${name}' took ${TimeUnit.NANOSECONDS.toMillis(nanos)} ms")
+    }
+
+    protected List<ImageQualityService.Source> getServices() {
+        List<ImageQualityService.Source> single = new ArrayList<ImageQualityService.Source>()
+        List<ImageQualityService.Source> stacks = new ArrayList<ImageQualityService.Source>()
+        if (imageQualityServices != null) {
+            for (ImageQualityService iqs in imageQualityServices) {
+                if (iqs instanceof ImageQualityService.Source && iqs.enabled()) {
+                    (iqs instanceof StackImageQualityService ? stacks : single).add((ImageQualityService.Source) iqs)
+                }
+            }
+        }
+        single.addAll(stacks)
+        return single
+    }
+
+    protected List<Integer> getSizes() {
+        List<Integer> result = new ArrayList<Integer>()
+        for (String size in sizes.split(',')) {
+            if (!size.trim().isEmpty()) {
+                result.add(Integer.parseInt(size.trim()))
+            }
+        }
+        return result
+    }
+
+    /**
+     * A JPEG of a page on a dark background with a fold near its right edge and some lines of text
+     */
+    static ByteBuffer page(int width) {
+        OpenCVUtil.load()
+        int height = (int) (width * 1.4d)
+        Mat img = new Mat(height, width, CvType.CV_8UC3, new Scalar(5, 5, 5))
+        Imgproc.rectangle(img, new Point(width * 0.025d, height * 0.015d), new Point(width * 0.975d, height * 0.985d), new Scalar(248, 250, 250), -1)
+        int fold = (int) (width * 0.9d)
+        Imgproc.line(img, new Point(fold, 0), new Point(fold + width * 0.01d, height), new Scalar(5, 5, 5), Math.max(2, width.intdiv(250) as int))
+        for (int y = (int) (height * 0.1d); y < height * 0.9d; y += Math.max(10, height.intdiv(50) as int)) {
+            Imgproc.rectangle(img, new Point(width * 0.15d, y), new Point(width * 0.8d, y + Math.max(3, height.intdiv(160) as int)), new Scalar(70, 80, 90), -1)
+        }
+        MatOfByte buffer = new MatOfByte()
+        Imgcodecs.imencode('.jpg', img, buffer)
+        img.release()
+        ByteBuffer result = ByteBuffer.wrap(buffer.toArray())
+        buffer.release()
+        return result
+    }
+
+    protected static String quality(ImageQualityService.Source service) {
+        String quality = service.getQuality() != null ? service.getQuality().toString() : null
+        // Services that aren't configured by Spring might not have a name
+        return quality ?: service.getClass().getSimpleName()
+    }
+
+    Map<String, Long> getSteps() {
+        synchronized (steps) {
+            return new LinkedHashMap<String, Long>(steps)
+        }
+    }
+
+    boolean isDone() {
+        return done
+    }
+}
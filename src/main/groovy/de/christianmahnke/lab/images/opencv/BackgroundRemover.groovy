@@ -18,9 +18,10 @@
 package de.christianmahnke.lab.images.opencv
 
 import de.christianmahnke.lab.images.opencv.OpenCVUtil as CV
+import de.christianmahnke.lab.images.opencv.region.AlphaMaskTransform
+import de.christianmahnke.lab.images.opencv.region.RegionTransform
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
-import nu.pattern.OpenCV
 import org.opencv.core.CvType
 import org.opencv.core.Mat
 import org.opencv.core.Point
@@ -31,15 +32,25 @@ import java.awt.image.BufferedImage
 @TypeChecked
 @CompileStatic
 class BackgroundRemover extends AbstractImageManipulator implements AutoCloseable {
+    // Images with at least this number of pixels are processed in strips by the AUTO engine
+    static final long STRIP_PIXELS = 16L * 1000 * 1000
+
+    enum Engine {
+        FLOOD_FILL, STRIPS, AUTO
+    }
 
     // Tweaks
     protected Point INITIAL = new Point(1d, 1d)
     protected Scalar FILL = new Scalar(255)
     protected int THRESHOLD = 20 // 15 works well for coins with white background
     protected Mat img = null
+    protected StageRecorder recorder = StageRecorder.NONE
+    protected Engine engine = Engine.AUTO
+    // Height of the strips, 0 chooses it by the number of cores
+    protected int stripHeight = 0
 
     static {
-        OpenCV.loadShared()
+        OpenCVUtil.load()
     }
 
     BackgroundRemover(Mat mat) {
@@ -65,18 +76,46 @@ class BackgroundRemover extends AbstractImageManipulator implements AutoCloseabl
     }
 
     protected Mat process() {
-        Mat alphaMask = generateAlphaMask(this.img)
-        Mat result = OpenCVUtil.addAlphaBGR(this.img, alphaMask)
+        Mat alphaMask = recorder.time(StageRecorder.FLOOD_FILL, () -> generateAlphaMask(this.img))
+        Mat result = recorder.time(StageRecorder.ALPHA_MERGE, () -> OpenCVUtil.addAlphaBGR(this.img, alphaMask))
         this.img.release()
         alphaMask.release()
         return result
     }
 
+    /**
+     * Analysis only, the alpha mask is returned as transformation that can be applied to regions of the image
+     */
+    RegionTransform analyze() {
+        Mat alphaMask = recorder.time(StageRecorder.FLOOD_FILL, () -> generateAlphaMask(this.img))
+        RegionTransform transform = new AlphaMaskTransform(alphaMask)
+        alphaMask.release()
+        return transform
+    }
+
+    void setRecorder(StageRecorder recorder) {
+        this.recorder = recorder != null ? recorder : StageRecorder.NONE
+    }
+
+    void setEngine(Engine engine) {
+        this.engine = engine != null ? engine : Engine.AUTO
+    }
+
+    void setStripHeight(int stripHeight) {
+        this.stripHeight = stripHeight
+    }
+
+    protected boolean useStrips(Mat inMat) {
+        if (engine == Engine.AUTO) {
+            return inMat.total() >= STRIP_PIXELS && inMat.rows() > 1
+        }
+        return engine == Engine.STRIPS
+    }
+
     protected Mat generateAlphaMask(Mat inMat) {
         if (inMat.channels() > 3) {
             throw new IllegalStateException("Number of channels in input image must be 1 or 3")
         }
-        Mat wrkMat = new Mat()
         int w = inMat.cols()
         int h = inMat.rows()
 
@@ -88,18 +127,24 @@ class BackgroundRemover extends AbstractImageManipulator implements AutoCloseabl
             initialThreshold = (int) inMat.get(INITIAL.x as int, INITIAL.y as int)[0]
         }
 
-        if (initialThreshold < 127) {
-            inMat = CV.bitwise_not(inMat)
+        if (useStrips(inMat)) {
+            return new StripBackgroundMask(inMat, INITIAL.x as int, INITIAL.y as int, THRESHOLD, initialThreshold < 127, stripHeight).generate()
         }
 
-        wrkMat = CV.threshold(inMat, 255 - THRESHOLD, 255, CV.THRESH_BINARY_INV)
-        Mat floodfill = CV.copy(wrkMat)
+        try (MatScope scope = new MatScope()) {
+            if (initialThreshold < 127) {
+                inMat = scope.track(CV.bitwise_not(inMat))
+            }
 
-        Mat mask = Mat.zeros(h + 2, w + 2, CvType.CV_8U) //inMat.type()
+            Mat wrkMat = scope.track(CV.threshold(inMat, 255 - THRESHOLD, 255, CV.THRESH_BINARY_INV))
+            Mat floodfill = scope.track(CV.copy(wrkMat))
 
-        CV.floodFill(floodfill, mask, INITIAL, FILL)
-        Mat floodfill_inv = CV.bitwise_not(floodfill)
-        return OpenCVUtil.extractChannel(CV.bitwise_or(wrkMat, floodfill_inv), 0)
+            Mat mask = scope.track(Mat.zeros(h + 2, w + 2, CvType.CV_8U)) //inMat.type()
+
+            CV.floodFill(floodfill, mask, INITIAL, FILL)
+            Mat floodfill_inv = scope.track(CV.bitwise_not(floodfill))
+            return OpenCVUtil.extractChannel(scope.track(CV.bitwise_or(wrkMat, floodfill_inv)), 0)
+        }
     }
 
     @Override
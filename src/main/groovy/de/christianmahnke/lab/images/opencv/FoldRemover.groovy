@@ -19,10 +19,12 @@ package de.christianmahnke.lab.images.opencv
 
 import com.google.common.base.Enums
 import de.christianmahnke.lab.images.opencv.OpenCVUtil as CV
+import de.christianmahnke.lab.images.opencv.region.IdentityTransform
+import de.christianmahnke.lab.images.opencv.region.RegionTransform
+import de.christianmahnke.lab.images.opencv.region.WarpTransform
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
 import groovy.util.logging.Slf4j
-import nu.pattern.OpenCV
 import org.opencv.core.*
 
 import java.awt.*
@@ -38,6 +40,9 @@ import static java.lang.Math.*
 class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
     protected boolean keepSize = false
     protected boolean fitBox = true
+    // Width of the image used to detect lines, 0 uses the full resolution
+    protected int analysisWidth = 0
+    protected StageRecorder recorder = StageRecorder.NONE
 
     // Tweaks (These are just te defaults for every operation)
     static double minLineLengthDiv = 1.2
@@ -53,7 +58,7 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
     // TODO: Make the pattern configurable
     protected static List<Pattern> identifierPatterns = [~/.*.[^\d](?<identifier>\d{5,8}).*?$/]
     static {
-        OpenCV.loadShared()
+        OpenCVUtil.load()
     }
 
     FoldRemover(Mat mat, String sideHint = "None") {
@@ -78,6 +83,7 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
             return OpenCVUtil.matToBufferedImage(this.process())
         } catch (RecognitionException | CvException e) {
             log.warn("Got exception ${e.getMessage()}, returning input image")
+            recorder.fallback(e)
             BufferedImage input = OpenCVUtil.matToBufferedImage(this.img)
             input.setRGB(1, 1, Color.RED.getRGB())
             return input
@@ -89,6 +95,7 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
             return this.process()
         } catch (RecognitionException | CvException e) {
             log.warn("Got exception ${e.getMessage()}, returning input image")
+            recorder.fallback(e)
             this.img.submat(1, 1, 1, 1).setTo(new Scalar(255, 0, 0))
             return this.img
         }
@@ -96,12 +103,41 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
 
     protected Mat process() {
         this.page = new Page(this.img, this.side)
-        Mat rotated = this.page.rotate(keepSize)
+        try {
+            detectCut(this.page)
+            return recorder.time(StageRecorder.WARP, () -> this.page.rotate(keepSize))
+        } finally {
+            // The input image is owned by the caller, it's released by close()
+            this.page.release()
+        }
+    }
+
+    /**
+     * Analysis only, the returned transformation can be applied to regions of the image
+     */
+    RegionTransform analyze() {
+        this.page = new Page(this.img, this.side)
+        try {
+            detectCut(this.page)
+            return this.page.transform(keepSize)
+        } catch (RecognitionException | CvException e) {
+            log.warn("Got exception ${e.getMessage()}, returning identity")
+            recorder.fallback(e)
+            return new IdentityTransform(this.img.cols(), this.img.rows())
+        } finally {
+            this.page.release()
+        }
+    }
 
-        // TODO: Check when it's safe to clean up
-        //this.page.release()
-        //this.img.release()
-        return rotated
+    /**
+     * Detects the lines and picks the cut, each as a separate stage for the recorder
+     */
+    protected void detectCut(Page page) {
+        if (page.side == Side.NONE) {
+            return
+        }
+        recorder.time(StageRecorder.LINE_DETECTION, () -> page.findLines())
+        recorder.time(StageRecorder.CUT_SCORING, () -> page.findCut())
     }
 
     def setKeepSize(boolean keepSize) {
@@ -120,6 +156,18 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
         return this.fitBox
     }
 
+    def setAnalysisWidth(int analysisWidth) {
+        this.analysisWidth = analysisWidth
+    }
+
+    int getAnalysisWidth() {
+        return this.analysisWidth
+    }
+
+    void setRecorder(StageRecorder recorder) {
+        this.recorder = recorder != null ? recorder : StageRecorder.NONE
+    }
+
     protected Page getPage() {
         if (this.page == null) {
             this.page = new Page(this.img, this.side)
@@ -308,7 +356,9 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
         int w
         int h
         Point center
+        // Line objects are only created on demand, for debugging
         List<Line> lines
+        protected LineStore store
         Cut cut
         Tuple<Point> box
         List<Point> rotatedBox
@@ -317,6 +367,8 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
         int rotatedBoxWidth = 5
         Scalar rotatedBoxColor = new Scalar(0, 127, 127, 255)
         Scalar boxColor = new Scalar(0, 255, 255, 255)
+        // Intermediate results, released by release()
+        protected MatScope scope
 
         Page(Mat img, Side side) {
             this.img = img
@@ -327,80 +379,81 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
         }
 
         void addAll(List<List<Double>> lines) {
-            this.lines = []
-            lines.each {
-                this.lines.add(new Line(it))
-            }
+            setStore(LineStore.of(lines))
         }
 
-        def findLines(double minLineLength = this.h / FoldRemover.minLineLengthDiv, double maxLineGap = this.h / FoldRemover.maxLineGapDiv) {
-            Mat wrkMat
-
-            if (this.img.channels() < 3) {
-                wrkMat = OpenCVUtil.cvtColor(this.img, CV.COLOR_RGB2BGR)
-            } else {
-                wrkMat = CV.copy(this.img)
-            }
-            // Edge detection
-            log.trace("Finding Lines with at least ${minLineLength} px, maximum allowed gap is ${maxLineGap}")
-            wrkMat = CV.Canny(wrkMat, 30, 120, 3)
-            def lines = CV.HoughLinesP(wrkMat, 5, (Math.PI / 180) as Double, 50, minLineLength, maxLineGap)
-            this.addAll(lines)
+        protected void setStore(LineStore store) {
+            this.store = store
+            this.lines = null
         }
 
-        static List<Line> filterDeg(List<Line> lines, double min = FoldRemover.minAngle, double max = FoldRemover.maxAngle) {
-            //lines = lines.sort({ Line line -> line.distance })
-            lines = lines.findAll { Line line -> min >= line.angleDeg && line.angleDeg >= max }
-            return lines
+        List<Line> getLines() {
+            if (this.lines == null && this.store != null) {
+                this.lines = new ArrayList<Line>(this.store.size())
+                for (int i = 0; i < this.store.size(); i++) {
+                    this.lines.add(new Line(this.store.x1(i), this.store.y1(i), this.store.x2(i), this.store.y2(i)))
+                }
+            }
+            return this.lines
         }
 
-        static List<Line> filterXPos(List<Line> lines, int min, int max) {
-            return lines.findAll { Line line -> min <= line.averageX && line.averageX <= max }
-        }
+        def findLines(double minLineLength = this.h / FoldRemover.minLineLengthDiv, double maxLineGap = this.h / FoldRemover.maxLineGapDiv) {
+            // Canny doesn't alter the input, no need for a copy
+            Mat wrkMat = this.img
+            double scale = 1
+            int analysisWidth = FoldRemover.this.analysisWidth
+            if (analysisWidth > 0 && this.w > analysisWidth) {
+                // Only the position and angle of the lines are needed, a smaller version is good enough
+                scale = (double) this.w / analysisWidth
+                wrkMat = getScope().track(CV.resize(this.img, new Size(analysisWidth, round(this.h / scale)), CV.INTER_AREA))
+            }
 
-        def calcCutScore(Line line, double xWheight = FoldRemover.xWheight) {
-            double x
-            if (this.side == Side.VERSO) {
-                x = line.width
-            } else {
-                x = this.w - line.averageX
+            if (wrkMat.channels() < 3) {
+                wrkMat = getScope().track(OpenCVUtil.cvtColor(wrkMat, CV.COLOR_RGB2BGR))
             }
-            line.score = (x * xWheight) * line.distance
-            log.trace("""Calculate score of ${line.score} (x weighted by ${xWheight}, avarage x at ${line.averageX}) for ${line}""")
+            // Edge detection
+            log.trace("Finding Lines with at least ${minLineLength} px, maximum allowed gap is ${maxLineGap} (analysis scale 1:${scale})")
+            wrkMat = getScope().track(CV.Canny(wrkMat, 30, 120, 3))
+            setStore(LineStore.detect(wrkMat, 5, Math.PI / 180, 50, minLineLength / scale, maxLineGap / scale, scale))
         }
 
         def findCut(double xWheight = FoldRemover.xWheight, double xWindow = FoldRemover.xWindow) {
             //TODO: also take the angle into account, maybe by by detecting the upper and lower border first
-            if (this.lines == null) {
+            if (this.store == null) {
                 this.findLines()
             }
-            if (this.lines.size() == 0) {
+            if (this.store.size() == 0) {
                 throw new RecognitionException("No lines found!")
             }
-            log.trace("Num of lines before filtering is ${this.lines.size()}")
-            this.lines = filterDeg(this.lines)
-            log.trace("Num of lines after filtering is ${this.lines.size()}")
-            def foldLines
+            log.trace("Num of lines before filtering is ${this.store.size()}")
+            List<Line> debugLines = this.lines
+            setStore(this.store.filterAngle(FoldRemover.minAngle, FoldRemover.maxAngle))
+            if (debugLines != null) {
+                // Keep the lines colorized for debugging
+                this.lines = debugLines.findAll { Line line -> LineStore.inAngle(line.angleDeg, FoldRemover.minAngle, FoldRemover.maxAngle) }
+            }
+            log.trace("Num of lines after filtering is ${this.store.size()}")
+            LineStore foldLines
             if (this.side == Side.VERSO) {
                 //Fold right
-                foldLines = filterXPos(this.lines, this.w - (this.w * xWindow) as Integer, this.w)
-                //foldLines = this.lines.findAll { Line line -> line.x1 > this.w / 2 }
+                foldLines = this.store.filterAverageX(this.w - (this.w * xWindow) as Integer, this.w)
             } else {
                 //Fold left
-                foldLines = filterXPos(this.lines, 0, (this.w * xWindow) as Integer)
-                //foldLines = this.lines.findAll { Line line -> line.x1 < this.w / 2 }
-            }
-            if (FoldRemover.xWheight > 0) {
-                foldLines.each { Line line -> calcCutScore(line, xWheight) }
-                foldLines.sort({ Line line -> line.score })
-            } else {
-                foldLines.sort({ Line line -> line.distance })
+                foldLines = this.store.filterAverageX(0, (this.w * xWindow) as Integer)
             }
             log.trace("Candidates for ${this.side} fold lines ${foldLines.size()}")
             if (foldLines.size() < 1) {
                 throw new RecognitionException("Cant find a possible cut line")
             }
-            this.cut = new Cut(foldLines.get(0), this.img.size())
+            // The first of the candidates with the lowest score (or length)
+            int picked
+            if (FoldRemover.xWheight > 0) {
+                picked = LineStore.min(foldLines.scores(this.side == Side.VERSO, this.w, xWheight))
+            } else {
+                picked = LineStore.min(foldLines.getDistances())
+            }
+            Line line = new Line(foldLines.x1(picked), foldLines.y1(picked), foldLines.x2(picked), foldLines.y2(picked))
+            this.cut = new Cut(line, this.img.size())
             log.trace("Picked ${this.cut} as cut line")
         }
 
@@ -473,34 +526,24 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
             if (this.box == null) {
                 this.calculateBox()
             }
-            this.rotatedBox = new ArrayList<Point>(this.box)
-            this.box.eachWithIndex { coord, i ->
-                Mat matrix = CV.getRotationMatrix2D(this.center, this.cut.angleDeg + 90, null)
-                double cos = abs(matrix.get(0, 0)[0])
-                double sin = abs(matrix.get(0, 1)[0])
-                List<Double> vector = [coord.x, coord.y, 1]
-                Mat mul = new Mat()
-                def calculated = matMul(matrix, vector)
-                //this.rotatedBox.set(i, new Point(calculated[0], calculated[1]))
-                this.rotatedBox.set(i, new Point(calculated[0].toInteger(), calculated[1].toInteger()))
+            this.rotatedBox = new ArrayList<Point>(this.box.size())
+            Mat matrix = getScope().track(CV.getRotationMatrix2D(this.center, this.cut.angleDeg + 90, null))
+            // The 2x3 affine matrix, read at once
+            double[] affine = new double[6]
+            matrix.get(0, 0, affine)
+            for (int i = 0; i < this.box.size(); i++) {
+                Point coord = (Point) this.box.get(i)
+                this.rotatedBox.add(new Point((int) affineX(affine, coord), (int) affineY(affine, coord)))
             }
             log.trace("Rotated box is at ${this.rotatedBox}")
         }
 
-        protected double[] matMul(Mat mat, List<Double> vector) {
-            int rows = mat.height()
-            int columns = mat.width()
-
-            double[] result = new double[rows]
+        protected static double affineX(double[] affine, Point p) {
+            return affine[0] * p.x + affine[1] * p.y + affine[2]
+        }
 
-            for (int row = 0; row < rows; row++) {
-                double sum = 0
-                for (int column = 0; column < columns; column++) {
-                    sum += mat.get(row, column)[0] * vector.get(column)
-                }
-                result[row] = sum
-            }
-            return result
+        protected static double affineY(double[] affine, Point p) {
+            return affine[3] * p.x + affine[4] * p.y + affine[5]
         }
 
         Mat rotate(boolean keepSize = false) {
@@ -511,10 +554,56 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
             if (this.rotatedBox == null) {
                 this.calculateRotatedBox()
             }
-            Mat matrix = CV.getRotationMatrix2D(this.center, this.cut.angleDeg + 90, null)
+            Rect cropRect = getCropRect()
+            Mat matrix = getMatrix(cropRect, keepSize)
+
+            log.debug("Rotating by ${this.cut.angleDeg + 90}")
+            Mat rotated = CV.warpAffine(this.img, matrix, this.img.size(), CV.INTER_CUBIC, CV.BORDER_REPLICATE)
+
+            if (keepSize) {
+                return rotated
+            }
+
+            log.trace("Croping at ${cropRect}")
+            // The crop keeps a reference to the pixel data of the rotated image
+            getScope().track(rotated)
+            return new Mat(rotated, cropRect)
+        }
+
+        /**
+         * Returns the rotation as transformation, without rotating the image
+         */
+        RegionTransform transform(boolean keepSize = false) {
+            if (this.side == Side.NONE) {
+                log.trace("Side is set to ${this.side}, returning identity.")
+                return new IdentityTransform(this.w, this.h)
+            }
+            if (this.rotatedBox == null) {
+                this.calculateRotatedBox()
+            }
+            Rect cropRect = getCropRect()
+            Mat matrix = getMatrix(cropRect, keepSize)
+            if (keepSize) {
+                return new WarpTransform(matrix, this.w, this.h, CV.INTER_CUBIC, CV.BORDER_REPLICATE)
+            }
+            if (cropRect.x < 0 || cropRect.y < 0 || cropRect.width <= 0 || cropRect.height <= 0 || cropRect.x + cropRect.width > this.w || cropRect.y + cropRect.height > this.h) {
+                throw new RecognitionException("Crop ${cropRect} is outside of the image")
+            }
+            // Move the crop to the origin
+            matrix.put(0, 2, matrix.get(0, 2)[0] - cropRect.x)
+            matrix.put(1, 2, matrix.get(1, 2)[0] - cropRect.y)
+            return new WarpTransform(matrix, cropRect.width, cropRect.height, CV.INTER_CUBIC, CV.BORDER_REPLICATE)
+        }
+
+        protected Rect getCropRect() {
             def (Point p1, Point p2) = [this.rotatedBox.get(0), this.rotatedBox.get(3)]
             log.debug("extracting from top left ${p1.toString()} lo lower right ${p2.toString()} (of ${this.w}x${this.h})")
-            Rect cropRect = new Rect(p1.x, p1.y, (p2.x - p1.x), (p2.y - p1.y))
+            return new Rect(p1.x, p1.y, (p2.x - p1.x), (p2.y - p1.y))
+        }
+
+        protected Mat getMatrix(Rect cropRect, boolean keepSize) {
+            Mat matrix = getScope().track(CV.getRotationMatrix2D(this.center, this.cut.angleDeg + 90, null))
+            def (Point p1, Point p2) = [this.rotatedBox.get(0), this.rotatedBox.get(3)]
 
             if (keepSize) {
                 def translateX
@@ -532,29 +621,20 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
 
                 log.trace("Setting translation parameter to x ${newX}, y ${newY} (adjustmets x ${translateX}, y ${translateY}) to keep the size")
             }
-
-            log.debug("Rotating by ${this.cut.angleDeg + 90}")
-            Mat rotated = CV.warpAffine(this.img, matrix, this.img.size(), CV.INTER_CUBIC, CV.BORDER_REPLICATE)
-
-            if (keepSize) {
-                return rotated.clone()
-            }
-
-            log.trace("Croping at ${cropRect}")
-            return new Mat(rotated, cropRect)
+            return matrix
         }
 
         boolean debugColorize() {
             if (this.side == Side.NONE) {
                 return false
             }
-            if (this.lines == null) {
+            if (this.store == null) {
                 findLines()
             }
             List<Line> coloredLines = []
             int color
 
-            if (this.lines.size() > 0) {
+            if (getLines().size() > 0) {
                 color = 255
                 def leftLines = this.lines.findAll { Line line -> line.x1 < this.w / 2 }
                 leftLines.sort({ Line line -> line.distance })
@@ -613,7 +693,7 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
             drawBox(inMat, this.box, this.boxColor, this.boxWidth)
             drawBox(inMat, this.rotatedBox, this.rotatedBoxColor, this.rotatedBoxWidth)
 
-            for (Line l : this.lines) {
+            for (Line l : getLines()) {
                 l.debugDraw(inMat)
             }
 
@@ -622,9 +702,17 @@ class FoldRemover extends AbstractImageManipulator implements AutoCloseable {
             this.cut.debugDraw(inMat)
         }
 
+        protected MatScope getScope() {
+            if (this.scope == null) {
+                this.scope = new MatScope()
+            }
+            return this.scope
+        }
+
         void release() {
-            if (this.img != null) {
-                this.img.release()
+            if (this.scope != null) {
+                this.scope.close()
+                this.scope = null
             }
         }
     }
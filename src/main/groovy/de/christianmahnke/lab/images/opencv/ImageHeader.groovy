@@ -0,0 +1,92 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+
+import javax.imageio.ImageIO
+import javax.imageio.ImageReader
+import javax.imageio.ImageTypeSpecifier
+import javax.imageio.stream.ImageInputStream
+import java.nio.ByteBuffer
+
+/**
+ * Size and format of an encoded image, read from the header without decoding it
+ */
+@Slf4j
+@TypeChecked
+@CompileStatic
+class ImageHeader {
+    final String format
+    final int width
+    final int height
+    final int channels
+
+    ImageHeader(String format, int width, int height, int channels) {
+        this.format = format
+        this.width = width
+        this.height = height
+        this.channels = channels
+    }
+
+    /**
+     * Returns null if the format isn't known to ImageIO
+     */
+    static ImageHeader read(ByteBuffer content) {
+        ImageInputStream iis = ImageIO.createImageInputStream(new ByteBufferBackedInputStream(content.duplicate()))
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis)
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next()
+                try {
+                    reader.setInput(iis, true, true)
+                    ImageTypeSpecifier type = reader.getRawImageType(0)
+                    int channels = type != null ? type.getNumBands() : 3
+                    return new ImageHeader(reader.getFormatName(), reader.getWidth(0), reader.getHeight(0), channels)
+                } finally {
+                    reader.dispose()
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Can't read image header", e)
+        } finally {
+            iis.close()
+        }
+        return null
+    }
+
+    /**
+     * Only the JPEG decoder scales while decoding, other formats would be decoded at full resolution and resized.
+     * Images with alpha channels can't be reduced, since the reduced modes always convert to gray or BGR.
+     */
+    boolean isReducible() {
+        return format.equalsIgnoreCase('jpeg') && (channels == 1 || channels == 3)
+    }
+
+    long getWeight(int reduction) {
+        return (long) Math.ceil(width / (double) reduction) * (long) Math.ceil(height / (double) reduction) * channels
+    }
+
+    @Override
+    String toString() {
+        return "${format} ${width}x${height}, channels ${channels}".toString()
+    }
+}
@@ -20,8 +20,6 @@ package de.christianmahnke.lab.json
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
 
-import java.util.regex.Pattern
-
 @TypeChecked
 @CompileStatic
 class IIIFURLRewriteOperation extends RegexRewriteOperation {
@@ -35,13 +33,12 @@ class IIIFURLRewriteOperation extends RegexRewriteOperation {
     }
 
     RegexRewriteOperation addURL(String from, String to) {
-        this.replacements.put(Pattern.compile(from), to)
-        return this
+        return addPattern(from, to)
     }
 
     RegexRewriteOperation addURLs(Map<String, String> replacements) {
         for (String from: replacements.keySet()) {
-            this.replacements.put(Pattern.compile(from), replacements.get(from))
+            addPattern(from, replacements.get(from))
         }
         return this
     }
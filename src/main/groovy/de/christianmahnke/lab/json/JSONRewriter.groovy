@@ -40,6 +40,8 @@ import java.nio.charset.StandardCharsets
 class JSONRewriter {
     List<JSONRewriteOperation> operations = new ArrayList<JSONRewriteOperation>()
     String defaultCharset = StandardCharsets.UTF_8
+    // Use the StreamingJSONRewriter if it supports the paths of all operations
+    boolean streaming = true
     private TypeRef<List<String>> typeRef = new TypeRef<List<String>>() {}
     private Configuration pathConf = Configuration.builder().options(Option.AS_PATH_LIST).build()
 
@@ -60,6 +62,26 @@ class JSONRewriter {
     }
 
     InputStream rewrite(InputStream json) {
+        if (streaming && StreamingJSONRewriter.supports(operations)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream()
+            new StreamingJSONRewriter(operations).rewrite(json, out)
+            return new ByteArrayInputStream(out.toByteArray())
+        }
+        return rewriteTree(json)
+    }
+
+    void rewrite(InputStream json, OutputStream out) {
+        if (streaming && StreamingJSONRewriter.supports(operations)) {
+            new StreamingJSONRewriter(operations).rewrite(json, out)
+        } else {
+            rewriteTree(json).transferTo(out)
+        }
+    }
+
+    /**
+     * Rewrites a document using JSONPath, supports all paths but needs to parse the document into a tree twice
+     */
+    protected InputStream rewriteTree(InputStream json) {
         DocumentContext pathCtx, valueCtx
         ByteArrayInputStream bais = new ByteArrayInputStream(json.getBytes())
         // Path context is only used for queries
@@ -110,12 +132,12 @@ class JSONRewriter {
                 }
             }
         }
-        return new ByteArrayInputStream(valueCtx.jsonString().getBytes())
+        return new ByteArrayInputStream(valueCtx.jsonString().getBytes(defaultCharset))
 
     }
 
     String rewrite(String json) {
-        InputStream is = new ByteArrayInputStream(json.getBytes())
+        InputStream is = new ByteArrayInputStream(json.getBytes(defaultCharset))
         return new String(rewrite(is).readAllBytes(), defaultCharset)
         return new ByteArrayInputStream(json.getBytes())
     }
@@ -0,0 +1,189 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.json
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+/**
+ * Replaces strings matching one of many patterns. The patterns are indexed by their literal prefix in a trie, so a
+ * value is only matched against the patterns whose prefix it starts with, and each value is matched only once: The
+ * replacement is built from the groups of the first match.
+ * <p>
+ * Patterns take precedence in the order they are given, values not matching any pattern are returned unchanged. If
+ * {@code cacheSize} is greater than 0, the results for the most recently used values are cached.
+ */
+@TypeChecked
+@CompileStatic
+class PatternRewriter {
+    protected static final String META = '.[]()*+?{}|^$\\'
+    protected static final String OPTIONAL = '*?{'
+
+    protected List<Pattern> patterns = new ArrayList<Pattern>()
+    protected List<String> replacements = new ArrayList<String>()
+    protected Node root = new Node()
+    protected Cache<String, String> cache
+
+    PatternRewriter(Map<Pattern, String> replacements, long cacheSize = 0) {
+        for (Map.Entry<Pattern, String> entry in replacements.entrySet()) {
+            add(entry.getKey(), entry.getValue())
+        }
+        if (cacheSize > 0) {
+            cache = Caffeine.newBuilder().maximumSize(cacheSize).<String, String> build()
+        }
+    }
+
+    protected void add(Pattern pattern, String replacement) {
+        Node node = root
+        for (char c in literalPrefix(pattern).toCharArray()) {
+            node = node.addChild(c)
+        }
+        node.entries.set(patterns.size())
+        patterns.add(pattern)
+        replacements.add(replacement)
+    }
+
+    String rewrite(String value) {
+        if (cache != null) {
+            return cache.get(value, (String v) -> apply(v))
+        }
+        return apply(value)
+    }
+
+    protected String apply(String value) {
+        BitSet candidates = root.entries
+        Node node = root
+        for (int i = 0; i < value.length(); i++) {
+            node = node.child(value.charAt(i))
+            if (node == null) {
+                break
+            }
+            if (!node.entries.isEmpty()) {
+                candidates = candidates | node.entries
+            }
+        }
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            Matcher matcher = patterns.get(i).matcher(value)
+            if (matcher.matches()) {
+                StringBuilder sb = new StringBuilder()
+                matcher.appendReplacement(sb, replacements.get(i))
+                return sb.toString()
+            }
+        }
+        return value
+    }
+
+    /**
+     * @return the prefix all strings matching the pattern start with, may be empty
+     */
+    protected static String literalPrefix(Pattern pattern) {
+        if ((pattern.flags() & Pattern.LITERAL) != 0) {
+            return pattern.pattern()
+        }
+        String p = pattern.pattern()
+        if ((pattern.flags() & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS)) != 0 || hasAlternation(p)) {
+            return ''
+        }
+        StringBuilder prefix = new StringBuilder()
+        int i = p.startsWith('^') ? 1 : 0
+        while (i < p.length()) {
+            char c = p.charAt(i)
+            if (c == '\\' as char && i + 1 < p.length()) {
+                char next = p.charAt(i + 1)
+                if (next == 'Q' as char) {
+                    int end = p.indexOf('\\E', i + 2)
+                    prefix.append(end < 0 ? p.substring(i + 2) : p.substring(i + 2, end))
+                    // A quantifier after \E only applies to the last character
+                    i = end < 0 ? p.length() : end + 2
+                    if (i < p.length() && OPTIONAL.indexOf((int) p.charAt(i)) >= 0 && prefix.length() > 0) {
+                        prefix.setLength(prefix.length() - 1)
+                        break
+                    }
+                    continue
+                }
+                if (Character.isLetterOrDigit(next)) {
+                    break
+                }
+                prefix.append(next)
+                i += 2
+            } else if (META.indexOf((int) c) >= 0) {
+                break
+            } else {
+                prefix.append(c)
+                i++
+            }
+            if (i < p.length() && OPTIONAL.indexOf((int) p.charAt(i)) >= 0) {
+                prefix.setLength(prefix.length() - 1)
+                break
+            }
+        }
+        return prefix.toString()
+    }
+
+    /**
+     * @return true if the pattern contains an alternation outside of a group
+     */
+    protected static boolean hasAlternation(String p) {
+        int depth = 0
+        boolean inClass = false
+        for (int i = 0; i < p.length(); i++) {
+            char c = p.charAt(i)
+            if (c == '\\' as char) {
+                if (i + 1 < p.length() && p.charAt(i + 1) == 'Q' as char) {
+                    int end = p.indexOf('\\E', i + 2)
+                    i = end < 0 ? p.length() : end + 1
+                } else {
+                    i++
+                }
+            } else if (inClass) {
+                inClass = c != ']' as char
+            } else if (c == '[' as char) {
+                inClass = true
+            } else if (c == '(' as char) {
+                depth++
+            } else if (c == ')' as char) {
+                depth--
+            } else if (c == '|' as char && depth == 0) {
+                return true
+            }
+        }
+        return false
+    }
+
+    protected static class Node {
+        protected Map<Character, Node> children
+        // Indexes of the patterns with the prefix ending at this node
+        protected BitSet entries = new BitSet()
+
+        protected Node child(char c) {
+            return children != null ? children.get(c) : null
+        }
+
+        protected Node addChild(char c) {
+            if (children == null) {
+                children = new HashMap<Character, Node>()
+            }
+            return children.computeIfAbsent(c, (Character k) -> new Node())
+        }
+    }
+}
@@ -21,17 +21,20 @@ import com.jayway.jsonpath.TypeRef
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
 
-import java.util.regex.Matcher
 import java.util.regex.Pattern
 
 @TypeChecked
 @CompileStatic
 class RegexRewriteOperation implements JSONRewriteOperation {
     List<String> jsonPath = ['']
-    Map<Pattern, String> replacements = new HashMap<>()
+    // Patterns take precedence in the order they were added, use addPattern() to change them
+    Map<Pattern, String> replacements = new LinkedHashMap<>()
+    // Number of cached results for recently rewritten values, 0 disables the cache
+    long cacheSize = 0
+    private volatile PatternRewriter rewriter
 
     protected RegexRewriteOperation(String from, String to) {
-        this.replacements = new HashMap<Pattern, String>()
+        this.replacements = new LinkedHashMap<Pattern, String>()
         this.replacements.put(Pattern.compile(from), to)
     }
 
@@ -52,12 +55,31 @@ class RegexRewriteOperation implements JSONRewriteOperation {
 
     RegexRewriteOperation addPattern(Pattern from, String to) {
         this.replacements.put(from, to)
+        this.rewriter = null
         return this
     }
 
     RegexRewriteOperation addPattern(String from, String to) {
-        this.replacements.put(Pattern.compile(from), to)
-        return this
+        return addPattern(Pattern.compile(from), to)
+    }
+
+    void setReplacements(Map<Pattern, String> replacements) {
+        this.replacements = replacements
+        this.rewriter = null
+    }
+
+    void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize
+        this.rewriter = null
+    }
+
+    protected PatternRewriter getRewriter() {
+        PatternRewriter current = rewriter
+        if (current == null) {
+            current = new PatternRewriter(replacements, cacheSize)
+            rewriter = current
+        }
+        return current
     }
 
     @Override
@@ -68,16 +90,7 @@ class RegexRewriteOperation implements JSONRewriteOperation {
     @Override
     Object rewrite(String path, Object value) {
         if (value instanceof String) {
-            for (Pattern pattern: replacements.keySet()) {
-                Matcher matcher = pattern.matcher((String) value)
-                if (matcher.matches()) {
-                    String to = replacements.get(pattern)
-                    return ((String) value).replaceAll(pattern, to)
-                }
-
-            }
-            //No match found
-            return value
+            return getRewriter().rewrite((String) value)
         }
         throw new IllegalStateException(this.getClass().getSimpleName() + ' can only replace string values')
     }
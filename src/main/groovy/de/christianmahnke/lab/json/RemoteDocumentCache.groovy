@@ -0,0 +1,107 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.json
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+
+import java.time.Duration
+import java.util.function.Function
+
+/**
+ * Loads documents by URL and caches the parsed results. Results older than {@code ttl} are revalidated with the
+ * {@code ETag} and {@code Last-Modified} headers of the last response, if the server answers with
+ * {@code 304 Not Modified} the cached result is used for another {@code ttl}.
+ */
+@Slf4j
+@TypeChecked
+@CompileStatic
+class RemoteDocumentCache<V> {
+    static final Duration DEFAULT_TTL = Duration.ofMinutes(10)
+    static final long DEFAULT_SIZE = 1024
+
+    int connectTimeout = 5000
+    int readTimeout = 10000
+    protected Duration ttl
+    protected Function<InputStream, V> parser
+    protected Cache<String, Entry<V>> cache
+
+    RemoteDocumentCache(Function<InputStream, V> parser, Duration ttl = DEFAULT_TTL, long maximumSize = DEFAULT_SIZE) {
+        this.parser = parser
+        this.ttl = ttl
+        this.cache = Caffeine.newBuilder().maximumSize(maximumSize).<String, Entry<V>> build()
+    }
+
+    V get(URL url) {
+        String key = url.toString()
+        Entry<V> cached = cache.getIfPresent(key)
+        long now = System.nanoTime()
+        if (cached != null && now - cached.loaded < ttl.toNanos()) {
+            return cached.value
+        }
+        URLConnection connection = url.openConnection()
+        connection.setConnectTimeout(connectTimeout)
+        connection.setReadTimeout(readTimeout)
+        if (cached != null && connection instanceof HttpURLConnection) {
+            if (cached.etag != null) {
+                connection.setRequestProperty('If-None-Match', cached.etag)
+            }
+            if (cached.lastModified != null) {
+                connection.setRequestProperty('If-Modified-Since', cached.lastModified)
+            }
+            if (((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                log.debug("${url} not modified")
+                ((HttpURLConnection) connection).disconnect()
+                cache.put(key, new Entry<V>(cached.value, cached.etag, cached.lastModified, now))
+                return cached.value
+            }
+        }
+        log.debug("Loading ${url}")
+        V value
+        InputStream is = connection.getInputStream()
+        try {
+            value = parser.apply(is)
+        } finally {
+            is.close()
+        }
+        cache.put(key, new Entry<V>(value, connection.getHeaderField('ETag'), connection.getHeaderField('Last-Modified'), now))
+        return value
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll()
+    }
+
+    protected static class Entry<V> {
+        final V value
+        final String etag
+        final String lastModified
+        // System.nanoTime() of the last load or revalidation
+        final long loaded
+
+        Entry(V value, String etag, String lastModified, long loaded) {
+            this.value = value
+            this.etag = etag
+            this.lastModified = lastModified
+            this.loaded = loaded
+        }
+    }
+}
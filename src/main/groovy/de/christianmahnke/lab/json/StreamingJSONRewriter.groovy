@@ -0,0 +1,291 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.json
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonEncoding
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonStreamContext
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.JavaType
+import com.fasterxml.jackson.databind.ObjectMapper
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+/**
+ * Applies all operations in a single pass over the tokens of a document, only values matched by a path are read into
+ * memory. Supports child paths like {@code $.service.label} and deep scans for a member like {@code $..@id}, use
+ * {@link #supports(List)} to check the operations first.
+ * <p>
+ * The results are the same as for the tree based {@link JSONRewriter}: Operations are applied in the given order,
+ * locations are taken from the original document and values are converted to the type hint of an operation, values
+ * that can't be converted are skipped.
+ */
+@Slf4j
+@TypeChecked
+@CompileStatic
+class StreamingJSONRewriter {
+    protected static final ObjectMapper MAPPER = new ObjectMapper()
+    protected static final JsonFactory FACTORY = MAPPER.getFactory()
+        .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+    protected static final Object MISSING = new Object()
+
+    protected List<JSONRewriteOperation> operations
+    protected List<List<PathPattern>> patterns = new ArrayList<List<PathPattern>>()
+    protected List<JavaType> types = new ArrayList<JavaType>()
+
+    StreamingJSONRewriter(List<JSONRewriteOperation> operations) {
+        this.operations = operations
+        for (JSONRewriteOperation op in operations) {
+            List<PathPattern> opPatterns = new ArrayList<PathPattern>()
+            for (String path in op.path()) {
+                PathPattern pattern = PathPattern.parse(path)
+                if (pattern == null) {
+                    throw new IllegalArgumentException("Path ${path} isn't supported for streaming")
+                }
+                opPatterns.add(pattern)
+            }
+            patterns.add(opPatterns)
+            types.add(MAPPER.getTypeFactory().constructType(op.typeHint().getType()))
+        }
+    }
+
+    /**
+     * @return true if all paths of the operations can be matched while streaming
+     */
+    static boolean supports(List<JSONRewriteOperation> operations) {
+        for (JSONRewriteOperation op in operations) {
+            for (String path in op.path()) {
+                if (PathPattern.parse(path) == null) {
+                    return false
+                }
+            }
+        }
+        return true
+    }
+
+    void rewrite(InputStream json, OutputStream out) {
+        JsonParser parser = FACTORY.createParser(json)
+        JsonGenerator generator = FACTORY.createGenerator(out, JsonEncoding.UTF8)
+        try {
+            JsonToken token
+            while ((token = parser.nextToken()) != null) {
+                if (token != JsonToken.FIELD_NAME) {
+                    generator.copyCurrentEvent(parser)
+                    continue
+                }
+                List<Object> path = getPath(parser.getParsingContext())
+                if (!matchesAny(path)) {
+                    generator.copyCurrentEvent(parser)
+                    continue
+                }
+                String name = parser.getCurrentName()
+                parser.nextToken()
+                // Only the matched value is read into memory
+                Object result = apply(path, parser.readValueAs(Object.class))
+                if (result != MISSING) {
+                    generator.writeFieldName(name)
+                    generator.writeObject(result)
+                }
+            }
+        } finally {
+            generator.flush()
+            generator.close()
+            parser.close()
+        }
+    }
+
+    protected boolean matchesAny(List<Object> path) {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (matches(i, path)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    protected boolean matches(int op, List<Object> path) {
+        for (PathPattern pattern in patterns.get(op)) {
+            if (pattern.matches(path)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Applies the operations to a value and to the members inside, in the order of the operations
+     *
+     * @return the new value or {@link #MISSING} if it has been deleted
+     */
+    protected Object apply(List<Object> base, Object value) {
+        List<List<Object>> locations = new ArrayList<List<Object>>()
+        collect(value, new ArrayList<Object>(), locations)
+        // Holder for the value, allows to replace or delete it like any other member
+        List<Object> holder = new ArrayList<Object>([value])
+        List<Object> root = new ArrayList<Object>([(Object) 0])
+        for (int i = 0; i < operations.size(); i++) {
+            for (List<Object> location in locations) {
+                List<Object> path = new ArrayList<Object>(base)
+                path.addAll(location)
+                if (!matches(i, path)) {
+                    continue
+                }
+                List<Object> local = new ArrayList<Object>(root)
+                local.addAll(location)
+                Object current = resolve(holder, local)
+                if (current == MISSING) {
+                    continue
+                }
+                Object oldValue
+                try {
+                    oldValue = MAPPER.convertValue(current, types.get(i))
+                } catch (IllegalArgumentException e) {
+                    //Type mismatch, nothing to do
+                    log.trace("${toPathString(path)} doesn't return ${types.get(i)}", e)
+                    continue
+                }
+                Object newValue = operations.get(i).rewrite(toPathString(path), oldValue)
+                update(holder, local, newValue)
+            }
+        }
+        return holder.isEmpty() ? MISSING : holder.get(0)
+    }
+
+    protected static void collect(Object value, List<Object> location, List<List<Object>> locations) {
+        locations.add(location)
+        if (value instanceof Map) {
+            for (Map.Entry entry in ((Map) value).entrySet()) {
+                List<Object> child = new ArrayList<Object>(location)
+                child.add(entry.getKey() as String)
+                collect(entry.getValue(), child, locations)
+            }
+        } else if (value instanceof List) {
+            List list = (List) value
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i) instanceof Map || list.get(i) instanceof List) {
+                    List<Object> child = new ArrayList<Object>(location)
+                    child.add(i)
+                    // Array elements themselves are never matched
+                    List<List<Object>> nested = new ArrayList<List<Object>>()
+                    collect(list.get(i), child, nested)
+                    locations.addAll(nested.subList(1, nested.size()))
+                }
+            }
+        }
+    }
+
+    protected static Object resolve(Object container, List<Object> location) {
+        Object current = container
+        for (Object segment in location) {
+            if (segment instanceof String && current instanceof Map && ((Map) current).containsKey(segment)) {
+                current = ((Map) current).get(segment)
+            } else if (segment instanceof Integer && current instanceof List && (int) segment < ((List) current).size()) {
+                current = ((List) current).get((int) segment)
+            } else {
+                return MISSING
+            }
+        }
+        return current
+    }
+
+    protected static void update(Object container, List<Object> location, Object value) {
+        Object parent = resolve(container, location.subList(0, location.size() - 1))
+        Object segment = location.last()
+        if (parent instanceof Map) {
+            if (value == null) {
+                ((Map) parent).remove(segment)
+            } else {
+                ((Map) parent).put(segment, value)
+            }
+        } else if (parent instanceof List) {
+            if (value == null) {
+                ((List) parent).remove((int) segment)
+            } else {
+                ((List) parent).set((int) segment, value)
+            }
+        }
+    }
+
+    protected static List<Object> getPath(JsonStreamContext context) {
+        LinkedList<Object> path = new LinkedList<Object>()
+        for (JsonStreamContext ctx = context; ctx != null && !ctx.inRoot(); ctx = ctx.getParent()) {
+            if (ctx.inObject()) {
+                path.addFirst(ctx.getCurrentName())
+            } else {
+                path.addFirst(ctx.getCurrentIndex())
+            }
+        }
+        return path
+    }
+
+    // Same notation as the path lists of JsonPath
+    protected static String toPathString(List<Object> path) {
+        StringBuilder sb = new StringBuilder('$')
+        for (Object segment in path) {
+            if (segment instanceof Integer) {
+                sb.append('[').append(segment).append(']')
+            } else {
+                sb.append("['").append(segment).append("']")
+            }
+        }
+        return sb.toString()
+    }
+
+    /**
+     * The supported subset of JSONPath
+     */
+    static class PathPattern {
+        protected static final Pattern DEEP_SCAN = ~/^\$\.\.([^.\[\]*]+)$/
+        protected static final Pattern CHILDREN = ~/^\$((?:\.[^.\[\]*]+)+)$/
+
+        // Null for deep scans
+        protected List<String> segments
+        protected String member
+
+        protected PathPattern(List<String> segments, String member) {
+            this.segments = segments
+            this.member = member
+        }
+
+        static PathPattern parse(String path) {
+            Matcher deep = DEEP_SCAN.matcher(path)
+            if (deep.matches()) {
+                return new PathPattern(null, deep.group(1))
+            }
+            Matcher children = CHILDREN.matcher(path)
+            if (children.matches()) {
+                return new PathPattern(Arrays.asList(children.group(1).substring(1).split('\\.')), null)
+            }
+            return null
+        }
+
+        boolean matches(List<Object> path) {
+            if (segments == null) {
+                return !path.isEmpty() && member == path.last()
+            }
+            return segments == path
+        }
+    }
+}
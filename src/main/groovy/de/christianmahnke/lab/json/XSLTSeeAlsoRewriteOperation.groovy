@@ -17,7 +17,9 @@
  */
 package de.christianmahnke.lab.json
 
-import com.jayway.jsonpath.JsonPath
+import com.fasterxml.jackson.core.type.TypeReference
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.jayway.jsonpath.TypeRef
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
@@ -25,18 +27,42 @@ import groovy.util.logging.Slf4j
 import net.sf.saxon.s9api.*
 
 import javax.xml.transform.stream.StreamSource
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
+/**
+ * Adds the metadata of referenced XML records ({@code seeAlso} with the given {@code label} and format
+ * {@code text/xml}), transformed to JSON by a XSLT stylesheet. The stylesheet is compiled once, the transformed
+ * records are cached by URL (see {@link RemoteDocumentCache}) and multiple records are loaded in parallel. Records that
+ * can't be loaded or transformed are skipped.
+ */
 @TypeChecked
 @CompileStatic
 @Slf4j
 class XSLTSeeAlsoRewriteOperation implements JSONRewriteOperation {
+    protected static final Processor PROCESSOR = new Processor(false)
+    protected static final ObjectMapper MAPPER = new ObjectMapper()
+    protected static final ExecutorService LOADER = Executors.newFixedThreadPool(4, new ThreadFactoryBuilder().setNameFormat('seealso-%d').setDaemon(true).build())
+
     List<String> jsonPath = Arrays.asList('$')
     String label
-    InputStream transformation
+    // Compiled stylesheets are thread safe and can be shared between operations
+    XsltExecutable stylesheet
+    RemoteDocumentCache<String> documents = new RemoteDocumentCache<String>(this::transform)
 
     XSLTSeeAlsoRewriteOperation(String label, InputStream transformation) {
+        this(label, compile(transformation))
+    }
+
+    XSLTSeeAlsoRewriteOperation(String label, XsltExecutable stylesheet) {
         this.label = label
-        this.transformation = transformation
+        this.stylesheet = stylesheet
+    }
+
+    static XsltExecutable compile(InputStream transformation) {
+        XsltCompiler compiler = PROCESSOR.newXsltCompiler()
+        return compiler.compile(new StreamSource(transformation))
     }
 
     @Override
@@ -49,41 +75,78 @@ class XSLTSeeAlsoRewriteOperation implements JSONRewriteOperation {
         def root = value as Map<String, Object>
         def seeAlso = root.get('seeAlso')
 
-        URL url
+        List<URL> urls = new ArrayList<URL>()
         if (seeAlso instanceof Map) {
-            if (seeAlso.get('label').equals(label) && seeAlso.get('format').equals('text/xml')) {
-                url = new URL(seeAlso.get('@id') as String)
+            if (matches((Map) seeAlso)) {
+                urls.add(new URL(seeAlso.get('@id') as String))
             }
         } else if (seeAlso instanceof List) {
             for (entry in seeAlso as List<Map>) {
-                if (entry.containsKey('label') && entry.get('label').equals(label) && entry.get('format').equals('text/xml')) {
-                    url = new URL(entry.get('@id') as String)
+                if (matches(entry)) {
+                    urls.add(new URL(entry.get('@id') as String))
                 }
             }
-        } else {
-            throw new IllegalStateException('List of seeAlso references not implemented')
+        } else if (seeAlso != null) {
+            throw new IllegalStateException('seeAlso of type ' + seeAlso.getClass().getSimpleName() + ' not implemented')
         }
-        if (url == null) {
-            log.info("JSON fragments contain LIDO reference")
+        if (urls.isEmpty()) {
+            log.info("JSON fragments don't contain a ${label} reference")
             return root
         }
-        log.debug("Downloading and transforming ${url}")
-        InputStream xml = url.openStream()
-        Processor processor = new Processor(false)
-        XsltCompiler compiler = processor.newXsltCompiler()
-        XsltExecutable stylesheet = compiler.compile(new StreamSource(transformation))
+
+        List<String> results = new ArrayList<String>()
+        if (urls.size() == 1) {
+            results.add(load(urls.get(0)))
+        } else {
+            List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>()
+            for (URL url in urls) {
+                futures.add(loadAsync(url))
+            }
+            for (CompletableFuture<String> future in futures) {
+                results.add(future.join())
+            }
+        }
+
+        for (String result in results) {
+            if (result != null && result != "") {
+                List<Map<String, Object>> newValues = MAPPER.readValue(result, new TypeReference<List<Map<String, Object>>>() {})
+                if (root.get('metadata') == null) {
+                    root.put('metadata', new ArrayList<Object>())
+                }
+                ((List) root.get('metadata')).addAll(newValues)
+            }
+        }
+        return root
+    }
+
+    protected boolean matches(Map entry) {
+        return entry.get('label') == label && entry.get('format') == 'text/xml'
+    }
+
+    /**
+     * @return the transformed record or null if it can't be loaded
+     */
+    protected String load(URL url) {
+        try {
+            return documents.get(url)
+        } catch (IOException | SaxonApiException | SaxonApiUncheckedException e) {
+            log.warn("Failed to load ${url}", e)
+            return null
+        }
+    }
+
+    protected CompletableFuture<String> loadAsync(URL url) {
+        return CompletableFuture.supplyAsync(() -> load(url), LOADER)
+    }
+
+    protected String transform(InputStream xml) {
+        log.debug("Transforming ${label} record")
         Xslt30Transformer transformer = stylesheet.load30()
-        Serializer dest = processor.newSerializer()
+        Serializer dest = PROCESSOR.newSerializer()
         StringWriter sw = new StringWriter()
         dest.setOutputWriter(sw)
         transformer.transform(new StreamSource(xml), dest)
-        String result = sw.toString()
-        if (result != "") {
-            def parser = JsonPath.parse(result)
-            def newValues = parser.read('$', new TypeRef<List<Map<String, Object>>>() {})
-            ((List) root.get('metadata')).addAll(newValues)
-        }
-        return root
+        return sw.toString()
     }
 
     @Override
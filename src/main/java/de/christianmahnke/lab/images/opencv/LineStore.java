@@ -0,0 +1,199 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+
+/**
+ * Line segments in primitive arrays, used by the {@link FoldRemover} to filter and score the results of the Hough
+ * transform without creating an object per line. The derived values are calculated the same way as by
+ * {@link FoldRemover.Line}.
+ */
+public class LineStore {
+    protected final int size;
+    // x1, y1, x2, y2 of each line
+    protected final int[] coords;
+    protected final double[] distance;
+    protected final double[] angleDeg;
+    protected final double[] angleRad;
+    protected final double[] averageX;
+
+    public LineStore(int[] coords) {
+        this.size = coords.length / 4;
+        this.coords = coords;
+        this.distance = new double[size];
+        this.angleDeg = new double[size];
+        this.angleRad = new double[size];
+        this.averageX = new double[size];
+        for (int i = 0; i < size; i++) {
+            double x1 = coords[i * 4];
+            double y1 = coords[i * 4 + 1];
+            double x2 = coords[i * 4 + 2];
+            double y2 = coords[i * 4 + 3];
+            distance[i] = Math.sqrt(Math.pow(x2 - x1, 2) + Math.pow(y2 - y1, 2));
+            angleDeg[i] = Math.atan2(y2 - y1, x2 - x1) * 180.0 / Math.PI;
+            angleRad[i] = Math.atan2(y1 - y2, x1 - x2);
+            averageX[i] = (x1 + x2) / 2;
+        }
+    }
+
+    protected LineStore(LineStore source, int[] indices, int count) {
+        this.size = count;
+        this.coords = new int[count * 4];
+        this.distance = new double[count];
+        this.angleDeg = new double[count];
+        this.angleRad = new double[count];
+        this.averageX = new double[count];
+        for (int i = 0; i < count; i++) {
+            int index = indices[i];
+            System.arraycopy(source.coords, index * 4, coords, i * 4, 4);
+            distance[i] = source.distance[index];
+            angleDeg[i] = source.angleDeg[index];
+            angleRad[i] = source.angleRad[index];
+            averageX[i] = source.averageX[index];
+        }
+    }
+
+    /**
+     * Runs the probabilistic Hough transform on an edge image, the coordinates are multiplied by scale and rounded
+     */
+    public static LineStore detect(Mat edges, double rho, double theta, int threshold, double minLineLength, double maxLineGap, double scale) {
+        Mat linesP = new Mat();
+        Imgproc.HoughLinesP(edges, linesP, rho, theta, threshold, minLineLength, maxLineGap);
+        // CV_32SC4, a single bulk read instead of one per line
+        int[] coords = new int[(int) linesP.total() * 4];
+        if (coords.length > 0) {
+            linesP.get(0, 0, coords);
+        }
+        linesP.release();
+        if (scale != 1) {
+            for (int i = 0; i < coords.length; i++) {
+                coords[i] = (int) Math.round(coords[i] * scale);
+            }
+        }
+        return new LineStore(coords);
+    }
+
+    public static LineStore of(List<List<Double>> lines) {
+        int[] coords = new int[lines.size() * 4];
+        for (int i = 0; i < lines.size(); i++) {
+            List<Double> line = lines.get(i);
+            for (int j = 0; j < 4; j++) {
+                coords[i * 4 + j] = line.get(j).intValue();
+            }
+        }
+        return new LineStore(coords);
+    }
+
+    public static boolean inAngle(double angleDeg, double min, double max) {
+        return min >= angleDeg && angleDeg >= max;
+    }
+
+    /**
+     * Lines with an angle between min and max, note that min is the larger one
+     */
+    public LineStore filterAngle(double min, double max) {
+        int[] indices = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (inAngle(angleDeg[i], min, max)) {
+                indices[count++] = i;
+            }
+        }
+        return select(indices, count);
+    }
+
+    public LineStore filterAverageX(int min, int max) {
+        int[] indices = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (min <= averageX[i] && averageX[i] <= max) {
+                indices[count++] = i;
+            }
+        }
+        return select(indices, count);
+    }
+
+    protected LineStore select(int[] indices, int count) {
+        if (count == size) {
+            return this;
+        }
+        return new LineStore(this, indices, count);
+    }
+
+    /**
+     * Scores of the lines as candidates for the cut, the horizontal position is only taken into account for recto pages
+     */
+    public double[] scores(boolean verso, int width, double xWeight) {
+        double[] scores = new double[size];
+        for (int i = 0; i < size; i++) {
+            // A line of the Hough transform has a width of 1
+            double x = verso ? 1 : width - averageX[i];
+            scores[i] = (x * xWeight) * distance[i];
+        }
+        return scores;
+    }
+
+    /**
+     * Index of the smallest value, the first one if there are several, -1 if empty
+     */
+    public static int min(double[] values) {
+        int result = -1;
+        for (int i = 0; i < values.length; i++) {
+            if (result < 0 || Double.compare(values[i], values[result]) < 0) {
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int x1(int index) {
+        return coords[index * 4];
+    }
+
+    public int y1(int index) {
+        return coords[index * 4 + 1];
+    }
+
+    public int x2(int index) {
+        return coords[index * 4 + 2];
+    }
+
+    public int y2(int index) {
+        return coords[index * 4 + 3];
+    }
+
+    public double[] getDistances() {
+        return distance;
+    }
+
+    public double angleDeg(int index) {
+        return angleDeg[index];
+    }
+
+    public double averageX(int index) {
+        return averageX[index];
+    }
+}
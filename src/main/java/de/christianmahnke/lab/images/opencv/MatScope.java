@@ -0,0 +1,120 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks intermediate Mat's of an operation and releases them once the scope is closed, instead of waiting for the
+ * finalizers to free the native memory.
+ * <p>
+ * Releasing only decrements the reference counter of the native data, results that share data with a tracked Mat
+ * (like a submat) stay valid.
+ */
+public class MatScope implements AutoCloseable {
+    // Weak, scopes that are never closed (like debugging) shouldn't be kept alive by the accounting
+    private static final Set<MatScope> OPEN = Collections.newSetFromMap(Collections.synchronizedMap(new WeakHashMap<>()));
+    private static final AtomicLong RELEASED_BYTES = new AtomicLong();
+
+    private final Deque<Mat> mats = new ConcurrentLinkedDeque<>();
+
+    public MatScope() {
+        OPEN.add(this);
+    }
+
+    /**
+     * Adds a Mat to this scope
+     *
+     * @param mat the Mat to be released on close, might be null
+     * @return the given Mat
+     */
+    public <T extends Mat> T track(T mat) {
+        if (mat != null) {
+            mats.push(mat);
+        }
+        return mat;
+    }
+
+    /**
+     * Removes a Mat from this scope, use this for results that are created as intermediate
+     *
+     * @param mat the Mat that should survive the scope
+     * @return the given Mat
+     */
+    public <T extends Mat> T keep(T mat) {
+        if (mat != null) {
+            mats.removeIf(m -> m == mat);
+        }
+        return mat;
+    }
+
+    @Override
+    public void close() {
+        Mat mat;
+        while ((mat = mats.poll()) != null) {
+            RELEASED_BYTES.addAndGet(bytes(mat));
+            mat.release();
+        }
+        OPEN.remove(this);
+    }
+
+    /**
+     * @return bytes of pixel data held by Mat's of the currently open scopes
+     */
+    public static long liveBytes() {
+        List<MatScope> scopes;
+        synchronized (OPEN) {
+            scopes = new ArrayList<>(OPEN);
+        }
+        long bytes = 0;
+        for (MatScope scope : scopes) {
+            for (Mat mat : scope.mats) {
+                bytes += bytes(mat);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return bytes of pixel data released by closed scopes since startup
+     */
+    public static long releasedBytes() {
+        return RELEASED_BYTES.get();
+    }
+
+    public static long openScopes() {
+        return OPEN.size();
+    }
+
+    static long bytes(Mat mat) {
+        // Submatrices share the data of their parent
+        if (mat.empty() || mat.isSubmatrix()) {
+            return 0;
+        }
+        return mat.total() * mat.elemSize();
+    }
+}
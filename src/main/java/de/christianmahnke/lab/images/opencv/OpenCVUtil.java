@@ -29,13 +29,18 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-//TODO: There might be some memory leaks in here since the used OpenCV Mat's aren't cleared
+// Helpers return new Mat's, callers are responsible to release them, see MatScope
 public class OpenCVUtil {
     // See https://docs.opencv.org/4.x/javadoc/constant-values.html
     public static final int THRESH_BINARY = 0;
@@ -52,6 +57,7 @@ public class OpenCVUtil {
     public static final int COLOR_BGRA2RGBA = 5;
 
     public static final int INTER_CUBIC = 2;
+    public static final int INTER_AREA = 3;
     public static final int INTER_LANCZOS4 = 4;
 
     public static final int BORDER_REPLICATE = 1;
@@ -62,13 +68,28 @@ public class OpenCVUtil {
     public static final int COLOR_RGBA2BGR = 1001;
     public static final int COLOR_ARGB2BGR = 1002;
 
+    // Scratch Mats bigger then this are released after a conversion instead of being kept by the thread
+    protected static final long SCRATCH_MAX_BYTES = 64L * 1024 * 1024;
+    private static final ThreadLocal<Mat> SCRATCH = ThreadLocal.withInitial(Mat::new);
+
     private static final OpenCVUtil instance;
+    private static boolean loaded;
 
     static {
-        OpenCV.loadShared();
+        load();
         instance = new OpenCVUtil();
     }
 
+    /**
+     * Loads the native library of OpenCV, only the first call has an effect
+     */
+    public static synchronized void load() {
+        if (!loaded) {
+            OpenCV.loadShared();
+            loaded = true;
+        }
+    }
+
     private OpenCVUtil() {
 
     }
@@ -94,10 +115,13 @@ public class OpenCVUtil {
     }
 
     public static Mat loadImage(InputStream is, Integer mode) throws IOException {
+        return loadImage(is.readAllBytes(), mode);
+    }
+
+    public static Mat loadImage(byte[] content, Integer mode) {
         if (mode == null) {
             mode = Imgcodecs.IMREAD_UNCHANGED;
         }
-        byte[] content = is.readAllBytes();
         return Imgcodecs.imdecode(new MatOfByte(content), mode);
     }
 
@@ -105,6 +129,84 @@ public class OpenCVUtil {
         return loadImage(is, Imgcodecs.IMREAD_UNCHANGED);
     }
 
+    public static Mat loadImage(ByteBuffer content, Integer mode) {
+        if (mode == null) {
+            mode = Imgcodecs.IMREAD_UNCHANGED;
+        }
+        Mat buffer = bufferToMat(content);
+        try {
+            return Imgcodecs.imdecode(buffer, mode);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    // Decodes the image scaled down by the given factor (1, 2, 4 or 8), JPEG decoders do this while decoding
+    public static Mat loadImage(ByteBuffer content, Integer mode, int reduction) {
+        return loadImage(content, reducedMode(mode, reduction));
+    }
+
+    // Like IMREAD_UNCHANGED for the full resolution, the reduced modes don't apply the EXIF orientation
+    public static int reducedMode(Integer mode, int reduction) {
+        boolean gray = mode != null && mode == Imgcodecs.IMREAD_GRAYSCALE;
+        switch (reduction) {
+            case 1:
+                return mode != null ? mode : Imgcodecs.IMREAD_UNCHANGED;
+            case 2:
+                return (gray ? Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2 : Imgcodecs.IMREAD_REDUCED_COLOR_2) | Imgcodecs.IMREAD_IGNORE_ORIENTATION;
+            case 4:
+                return (gray ? Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4 : Imgcodecs.IMREAD_REDUCED_COLOR_4) | Imgcodecs.IMREAD_IGNORE_ORIENTATION;
+            case 8:
+                return (gray ? Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8 : Imgcodecs.IMREAD_REDUCED_COLOR_8) | Imgcodecs.IMREAD_IGNORE_ORIENTATION;
+            default:
+                throw new IllegalArgumentException("Unsupported reduction " + reduction);
+        }
+    }
+
+    // Largest reduction that still results in an image of at least the given size
+    public static int reductionFactor(int width, int height, int minWidth, int minHeight) {
+        for (int reduction = 8; reduction > 1; reduction /= 2) {
+            if ((width + reduction - 1) / reduction >= minWidth && (height + reduction - 1) / reduction >= minHeight) {
+                return reduction;
+            }
+        }
+        return 1;
+    }
+
+    // Streams of local files are mapped instead of being copied to the heap
+    public static ByteBuffer readBuffer(InputStream is) throws IOException {
+        if (is instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) is).getChannel();
+            long position = channel.position();
+            long size = channel.size() - position;
+            if (size > 0 && size < Integer.MAX_VALUE) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                channel.position(position + size);
+                return buffer;
+            }
+        }
+        return ByteBuffer.wrap(is.readAllBytes());
+    }
+
+    public static ByteBuffer readBuffer(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    // Direct buffers are wrapped without a copy, the returned Mat is only valid as long as the buffer
+    protected static Mat bufferToMat(ByteBuffer content) {
+        if (content.isDirect()) {
+            return new Mat(1, content.remaining(), CvType.CV_8UC1, content.slice());
+        }
+        if (content.hasArray() && content.arrayOffset() == 0 && content.position() == 0 && content.remaining() == content.array().length) {
+            return new MatOfByte(content.array());
+        }
+        byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return new MatOfByte(bytes);
+    }
+
     /*
     public static Mat loadImage(URL url) throws IOException {
         return bufferedImageToMat(ImageIO.read(url));
@@ -128,36 +230,58 @@ public class OpenCVUtil {
         return matToBufferedImage(mat, null);
     }
 
+    public static int getBufferedImageType(int channels) {
+        if (channels > 1 && channels < 4) {
+            return BufferedImage.TYPE_3BYTE_BGR;
+        } else if (channels > 3) {
+            return BufferedImage.TYPE_4BYTE_ABGR;
+        }
+        return BufferedImage.TYPE_BYTE_GRAY;
+    }
+
     public static BufferedImage matToBufferedImage(Mat mat, Boolean removeAlpha) {
-        int type = BufferedImage.TYPE_BYTE_GRAY;
-        if (mat.channels() > 1 && mat.channels() < 4) {
-            type = BufferedImage.TYPE_3BYTE_BGR;
-        } else if (mat.channels() > 3) {
-            type = BufferedImage.TYPE_4BYTE_ABGR;
-            Mat wrkMat;
+        int type = getBufferedImageType(mat.channels());
+        Mat wrkMat = mat;
+        if (mat.channels() > 3) {
             if (removeAlpha != null && removeAlpha != false) {
-                wrkMat = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC3);
+                wrkMat = scratch(mat.rows(), mat.cols(), CvType.CV_8UC3);
                 Imgproc.cvtColor(mat, wrkMat, Imgproc.COLOR_BGRA2BGR, 3);
-                mat = wrkMat;
                 type = BufferedImage.TYPE_3BYTE_BGR;
             } else {
-                wrkMat = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC4);
+                wrkMat = scratch(mat.rows(), mat.cols(), CvType.CV_8UC4);
                 //Converts from BGRA to ABGR
                 int[] fromTo = {0, 1, 1, 2, 2, 3, 3, 0};
                 Core.mixChannels(Arrays.asList(mat), Arrays.asList(wrkMat), new MatOfInt(fromTo));
-                mat = wrkMat;
             }
         }
-        int bufferSize = mat.channels() * mat.cols() * mat.rows();
-        byte[] b = new byte[bufferSize];
-        mat.get(0, 0, b); // get all the pixels
         BufferedImage image = new BufferedImage(mat.cols(), mat.rows(), type);
+        // Copy the pixels straight into the raster
         final byte[] targetPixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-        System.arraycopy(b, 0, targetPixels, 0, b.length);
-
+        wrkMat.get(0, 0, targetPixels);
+        releaseScratch(wrkMat, mat);
         return image;
     }
 
+    /**
+     * Returns a Mat to be used for intermediate results of conversions, it's reused by the calling thread unless it
+     * gets bigger then {@link #SCRATCH_MAX_BYTES}.
+     */
+    protected static Mat scratch(int rows, int cols, int type) {
+        if ((long) rows * cols * CvType.ELEM_SIZE(type) > SCRATCH_MAX_BYTES) {
+            return new Mat(rows, cols, type);
+        }
+        Mat mat = SCRATCH.get();
+        // Only reallocates if the size or type changes
+        mat.create(rows, cols, type);
+        return mat;
+    }
+
+    protected static void releaseScratch(Mat wrkMat, Mat mat) {
+        if (wrkMat != mat && wrkMat != SCRATCH.get()) {
+            wrkMat.release();
+        }
+    }
+
     protected static BufferedImage bufferedImageToBGR(BufferedImage img) {
         if (BufferedImage.TYPE_3BYTE_BGR == img.getType()) {
             return img;
@@ -182,7 +306,7 @@ public class OpenCVUtil {
     }
 
     public static void cvtColor(Mat src, Mat dst, int mode) {
-        cvtColor(src, dst, mode);
+        cvtColor(src, dst, mode, null);
     }
 
     protected static void cvtColor(Mat src, Mat dst, int mode, Integer dstCn) {
@@ -245,7 +369,7 @@ public class OpenCVUtil {
      * @param a   the Mat containing the alpha channel
      * @return
      */
-    static Mat addAlphaBGR(Mat bgr, Mat a) {
+    public static Mat addAlphaBGR(Mat bgr, Mat a) {
         if (a.type() != CvType.CV_8UC1) {
             throw new IllegalStateException("Wrong channel count for alpha - should be one");
         }
@@ -255,10 +379,14 @@ public class OpenCVUtil {
         Core.split(bgr, bgra);
 
         if (bgr.type() == CvType.CV_8UC4) {
-            bgra.remove(bgra.size() - 1);
+            bgra.remove(bgra.size() - 1).release();
         }
+        List<Mat> channels = new ArrayList<Mat>(bgra);
         bgra.add(a);
         Core.merge(bgra, wrkMat);
+        for (Mat channel : channels) {
+            channel.release();
+        }
         return wrkMat;
     }
 
@@ -269,17 +397,17 @@ public class OpenCVUtil {
         if (inMat.channels() > 3) {
             throw new IllegalStateException("Wrong channel count for input Matrix - should be three");
         }
-        Mat wrkMat = new Mat();
-        List<Mat> rgb = new ArrayList<Mat>();
-        Core.split(inMat, rgb);
-        List<Mat> abgr = new ArrayList<Mat>();
-        abgr.addAll(Arrays.asList(alpha, rgb.get(0), rgb.get(1), rgb.get(2)));
-        Core.merge(abgr, wrkMat);
-        // Convert
-        int bufferSize = wrkMat.channels() * wrkMat.cols() * wrkMat.rows();
-        byte[] b = new byte[bufferSize];
-        wrkMat.get(0, 0, b); // get all the pixels
+        Mat wrkMat = scratch(inMat.rows(), inMat.cols(), CvType.CV_8UC4);
+        // Alpha first, grayscale images are used for all colors
+        int[] fromTo = {0, 0, 1, 1, 2, 2, 3, 3};
+        if (inMat.channels() == 1) {
+            fromTo = new int[]{0, 0, 1, 1, 1, 2, 1, 3};
+        }
+        Core.mixChannels(Arrays.asList(alpha, inMat), Arrays.asList(wrkMat), new MatOfInt(fromTo));
         BufferedImage image = new BufferedImage(wrkMat.cols(), wrkMat.rows(), BufferedImage.TYPE_4BYTE_ABGR);
+        final byte[] targetPixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        wrkMat.get(0, 0, targetPixels);
+        releaseScratch(wrkMat, inMat);
         return image;
     }
 
@@ -317,24 +445,31 @@ public class OpenCVUtil {
                 throw new IllegalStateException("Unsupported BufferedImage type");
         }
 
-        Mat mat = new Mat(img.getHeight(), img.getWidth(), curCVtype);
         byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
-        mat.put(0, 0, pixels);
+        Mat mat;
 
         if (swapAlpha) {
-            Mat swappedMat = new Mat(img.getHeight(), img.getWidth(), CvType.CV_8UC4);
-            //Maps to ARGB
-            int[] fromTo = {0, 3, 1, 0, 2, 1, 3, 2};
-
-            Core.mixChannels(Arrays.asList(mat), Arrays.asList(swappedMat), new MatOfInt(fromTo));
+            // The raw ABGR pixels are only needed until the channels are rearranged
+            Mat abgrMat = scratch(img.getHeight(), img.getWidth(), curCVtype);
+            abgrMat.put(0, 0, pixels);
+            int[] fromTo;
             if (removeAlpha != null && removeAlpha) {
-                mat = cvtColor(swappedMat, Imgproc.COLOR_BGRA2BGR);
+                //Maps to BGR
+                mat = new Mat(img.getHeight(), img.getWidth(), CvType.CV_8UC3);
+                fromTo = new int[]{1, 0, 2, 1, 3, 2};
             } else {
-                mat = swappedMat;
+                //Maps to BGRA
+                mat = new Mat(img.getHeight(), img.getWidth(), CvType.CV_8UC4);
+                fromTo = new int[]{0, 3, 1, 0, 2, 1, 3, 2};
+            }
+            Core.mixChannels(Arrays.asList(abgrMat), Arrays.asList(mat), new MatOfInt(fromTo));
+            releaseScratch(abgrMat, mat);
+        } else {
+            mat = new Mat(img.getHeight(), img.getWidth(), curCVtype);
+            mat.put(0, 0, pixels);
+            if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+                mat = cvtColor(mat, Imgproc.COLOR_RGB2BGR);
             }
-
-        } else if (img.getType() == BufferedImage.TYPE_INT_RGB) {
-            mat = cvtColor(mat, Imgproc.COLOR_RGB2BGR);
         }
         return mat;
     }
@@ -381,6 +516,12 @@ public class OpenCVUtil {
         return wrkMat;
     }
 
+    static Mat resize(Mat inMat, Size size, int interpolation) {
+        Mat wrkMat = new Mat();
+        Imgproc.resize(inMat, wrkMat, size, 0, 0, interpolation);
+        return wrkMat;
+    }
+
     static Mat getRotationMatrix2D(Point center, double angle, Double scale) {
         if (scale == null) {
             scale = 1.0;
@@ -408,6 +549,7 @@ public class OpenCVUtil {
             List<Double> dots = Doubles.asList(linesP.get(i, 0));
             lines.add(dots);
         }
+        linesP.release();
         return lines;
     }
 
@@ -0,0 +1,69 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv;
+
+import java.util.function.Supplier;
+
+/**
+ * Receives the durations of the stages of an image operation and the cases where an operation fell back to returning
+ * its input, implementations can forward them to a metrics system.
+ */
+public interface StageRecorder {
+    String DECODE = "decode";
+    String LINE_DETECTION = "line-detection";
+    String CUT_SCORING = "cut-scoring";
+    String WARP = "warp";
+    String FLOOD_FILL = "flood-fill";
+    String ALPHA_MERGE = "alpha-merge";
+    // Conversion of the result to a BufferedImage or encoding it with OpenCV
+    String ENCODE = "encode";
+
+    StageRecorder NONE = new StageRecorder() {
+        @Override
+        public void record(String stage, long nanos) {
+        }
+
+        @Override
+        public void fallback(Throwable cause) {
+        }
+    };
+
+    /**
+     * Records the duration of a stage
+     *
+     * @param stage the name of the stage
+     * @param nanos the duration in nanoseconds
+     */
+    void record(String stage, long nanos);
+
+    /**
+     * Records that an operation failed and the input was returned instead
+     *
+     * @param cause the exception that caused the fallback
+     */
+    void fallback(Throwable cause);
+
+    default <T> T time(String stage, Supplier<T> operation) {
+        long start = System.nanoTime();
+        try {
+            return operation.get();
+        } finally {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.stream.IntStream;
+
+/**
+ * Computes the alpha mask of the {@link BackgroundRemover} in horizontal strips, in parallel. The result is the same
+ * as the one of the flood fill: every pixel that is 4-connected to the seed and has the same thresholded value is
+ * background, everything else is opaque.
+ * <p>
+ * Each strip is thresholded and labelled on its own, components that touch across the borders of the strips are
+ * merged with a union-find. Only the border rows of the labels are kept between the passes, the labels are computed
+ * again for the final mask, so only the strips currently processed need memory in addition to the result.
+ */
+public class StripBackgroundMask {
+    // Strips per thread, smaller strips balance better
+    protected static final int STRIPS_PER_THREAD = 4;
+    protected static final int MIN_STRIP_HEIGHT = 64;
+
+    protected final Mat img;
+    protected final int seedX;
+    protected final int seedY;
+    protected final int stripHeight;
+    protected final Scalar lower;
+    protected final Scalar upper;
+    // Value of the background in the mask
+    protected final int background;
+
+    /**
+     * @param img the image, 1 or 3 channels
+     * @param threshold the threshold of the {@link BackgroundRemover}
+     * @param inverted if the image is inverted (dark background) before thresholding
+     * @param stripHeight the height of the strips, 0 chooses it by the number of cores
+     */
+    public StripBackgroundMask(Mat img, int seedX, int seedY, int threshold, boolean inverted, int stripHeight) {
+        this.img = img;
+        this.seedX = seedX;
+        this.seedY = seedY;
+        if (stripHeight <= 0) {
+            int strips = Runtime.getRuntime().availableProcessors() * STRIPS_PER_THREAD;
+            stripHeight = Math.max(MIN_STRIP_HEIGHT, (img.rows() + strips - 1) / strips);
+        }
+        this.stripHeight = stripHeight;
+
+        // Pixels with the same thresholded value as the seed in every channel, see BackgroundRemover
+        double[] seed = img.get(seedY, seedX);
+        double[] low = new double[seed.length];
+        double[] high = new double[seed.length];
+        boolean[] zero = new boolean[seed.length];
+        for (int c = 0; c < seed.length; c++) {
+            // Without inversion the threshold maps values above 255 - threshold to 0, with inversion values below threshold
+            zero[c] = inverted ? seed[c] < threshold : seed[c] > 255 - threshold;
+            if (inverted) {
+                low[c] = zero[c] ? 0 : threshold;
+                high[c] = zero[c] ? threshold - 1 : 255;
+            } else {
+                low[c] = zero[c] ? 256 - threshold : 0;
+                high[c] = zero[c] ? 255 : 255 - threshold;
+            }
+        }
+        this.lower = new Scalar(low);
+        this.upper = new Scalar(high);
+        this.background = zero[0] ? 0 : 255;
+    }
+
+    public Mat generate() {
+        int rows = img.rows();
+        int cols = img.cols();
+        int count = (rows + stripHeight - 1) / stripHeight;
+        Strip[] strips = new Strip[count];
+        IntStream.range(0, count).parallel().forEach(i -> strips[i] = label(i));
+
+        int[] offsets = new int[count];
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = total;
+            total += strips[i].components;
+        }
+        UnionFind components = new UnionFind(total);
+        for (int i = 0; i < count - 1; i++) {
+            int[] bottom = strips[i].bottom;
+            int[] top = strips[i + 1].top;
+            for (int x = 0; x < cols; x++) {
+                if (bottom[x] != 0 && top[x] != 0) {
+                    components.union(offsets[i] + bottom[x], offsets[i + 1] + top[x]);
+                }
+            }
+        }
+        Strip seedStrip = strips[seedY / stripHeight];
+        int root = components.find(offsets[seedY / stripHeight] + seedStrip.seed);
+        for (int i = 0; i < count; i++) {
+            strips[i].top = inBackground(strips[i].top, offsets[i], components, root);
+            strips[i].bottom = inBackground(strips[i].bottom, offsets[i], components, root);
+        }
+
+        Mat mask = new Mat(rows, cols, CvType.CV_8UC1);
+        IntStream.range(0, count).parallel().forEach(i -> fill(i, strips[i], mask));
+        return mask;
+    }
+
+    protected Strip label(int index) {
+        int start = index * stripHeight;
+        int end = Math.min(img.rows(), start + stripHeight);
+        Mat labels = new Mat();
+        Strip strip = new Strip();
+        strip.components = labels(start, end, labels);
+        strip.top = new int[img.cols()];
+        strip.bottom = new int[img.cols()];
+        labels.get(0, 0, strip.top);
+        labels.get(end - start - 1, 0, strip.bottom);
+        if (seedY >= start && seedY < end) {
+            strip.seed = (int) labels.get(seedY - start, seedX)[0];
+        }
+        labels.release();
+        return strip;
+    }
+
+    // Returns the number of labels, including the one of the pixels that don't match
+    protected int labels(int start, int end, Mat labels) {
+        Mat region = img.submat(start, end, 0, img.cols());
+        Mat binary = new Mat();
+        Core.inRange(region, lower, upper, binary);
+        region.release();
+        int count = Imgproc.connectedComponents(binary, labels, 4, CvType.CV_32S);
+        binary.release();
+        return count;
+    }
+
+    // Marks the border pixels that belong to the background with 1, others with 0
+    protected static int[] inBackground(int[] border, int offset, UnionFind components, int root) {
+        int[] result = new int[border.length];
+        for (int x = 0; x < border.length; x++) {
+            result[x] = border[x] != 0 && components.find(offset + border[x]) == root ? 1 : 0;
+        }
+        return result;
+    }
+
+    protected void fill(int index, Strip strip, Mat mask) {
+        int start = index * stripHeight;
+        int end = Math.min(img.rows(), start + stripHeight);
+        int cols = img.cols();
+        Mat target = mask.submat(start, end, 0, cols);
+        // The labels differ from the first pass, the background components are found again by their border pixels
+        Mat labels = new Mat();
+        boolean[] background = new boolean[labels(start, end, labels)];
+        int[] values = new int[(end - start) * cols];
+        labels.get(0, 0, values);
+        labels.release();
+        boolean any = false;
+        for (int x = 0; x < cols; x++) {
+            if (strip.top[x] != 0) {
+                background[values[x]] = true;
+                any = true;
+            }
+            if (strip.bottom[x] != 0) {
+                background[values[(end - start - 1) * cols + x]] = true;
+                any = true;
+            }
+        }
+        if (seedY >= start && seedY < end) {
+            background[values[(seedY - start) * cols + seedX]] = true;
+            any = true;
+        }
+        if (!any) {
+            target.setTo(new Scalar(255));
+        } else {
+            byte[] result = new byte[values.length];
+            byte opaque = (byte) 255;
+            byte transparent = (byte) this.background;
+            for (int i = 0; i < values.length; i++) {
+                result[i] = background[values[i]] ? transparent : opaque;
+            }
+            target.put(0, 0, result);
+        }
+        target.release();
+    }
+
+    protected static class Strip {
+        int components;
+        int[] top;
+        int[] bottom;
+        int seed;
+    }
+
+    protected static class UnionFind {
+        private final int[] parent;
+
+        UnionFind(int size) {
+            parent = new int[size];
+            for (int i = 0; i < size; i++) {
+                parent[i] = i;
+            }
+        }
+
+        int find(int i) {
+            while (parent[i] != i) {
+                // Path halving
+                parent[i] = parent[parent[i]];
+                i = parent[i];
+            }
+            return i;
+        }
+
+        void union(int a, int b) {
+            int rootA = find(a);
+            int rootB = find(b);
+            if (rootA != rootB) {
+                parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+            }
+        }
+    }
+}
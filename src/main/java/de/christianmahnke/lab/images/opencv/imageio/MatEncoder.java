@@ -0,0 +1,126 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.imageio;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Encodes Mat's with the codecs of OpenCV (libjpeg-turbo, libpng, libwebp), they are considerably faster then the
+ * ImageIO writers, especially for PNG.
+ */
+public class MatEncoder {
+    public static final MatEncoder DEFAULT = new MatEncoder(90, 3, 90);
+
+    // 0 - 100
+    protected final int jpegQuality;
+    // 0 - 9, higher values are smaller but slower
+    protected final int pngCompression;
+    // 1 - 100, values above 100 are lossless
+    protected final int webpQuality;
+
+    public MatEncoder(int jpegQuality, int pngCompression, int webpQuality) {
+        this.jpegQuality = jpegQuality;
+        this.pngCompression = pngCompression;
+        this.webpQuality = webpQuality;
+    }
+
+    /**
+     * Returns the extension used by OpenCV for the given format name or null if it can't be encoded
+     */
+    public static String getExtension(String format) {
+        if (format == null) {
+            return null;
+        }
+        String extension = format.toLowerCase(Locale.ROOT);
+        if (extension.startsWith(".")) {
+            extension = extension.substring(1);
+        }
+        if (extension.equals("jpeg")) {
+            extension = "jpg";
+        }
+        if (!extension.equals("jpg") && !extension.equals("png") && !extension.equals("webp")) {
+            return null;
+        }
+        return Imgcodecs.haveImageWriter("." + extension) ? "." + extension : null;
+    }
+
+    public static boolean supports(String format) {
+        return getExtension(format) != null;
+    }
+
+    public byte[] encode(Mat mat, String format) throws IOException {
+        String extension = getExtension(format);
+        if (extension == null) {
+            throw new IllegalArgumentException("Can't encode " + format);
+        }
+        Mat source = mat;
+        MatOfInt params;
+        switch (extension) {
+            case ".jpg":
+                // JPEG has no alpha channel
+                if (mat.channels() == 4) {
+                    source = new Mat();
+                    Imgproc.cvtColor(mat, source, Imgproc.COLOR_BGRA2BGR);
+                }
+                params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, jpegQuality);
+                break;
+            case ".png":
+                params = new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, pngCompression);
+                break;
+            default:
+                params = new MatOfInt(Imgcodecs.IMWRITE_WEBP_QUALITY, webpQuality);
+        }
+        MatOfByte buffer = new MatOfByte();
+        try {
+            if (!Imgcodecs.imencode(extension, source, buffer, params)) {
+                throw new IOException("Encoding as " + format + " failed");
+            }
+            return buffer.toArray();
+        } finally {
+            buffer.release();
+            params.release();
+            if (source != mat) {
+                source.release();
+            }
+        }
+    }
+
+    public void encode(Mat mat, String format, OutputStream out) throws IOException {
+        out.write(encode(mat, format));
+    }
+
+    public int getJpegQuality() {
+        return jpegQuality;
+    }
+
+    public int getPngCompression() {
+        return pngCompression;
+    }
+
+    public int getWebpQuality() {
+        return webpQuality;
+    }
+}
@@ -18,8 +18,12 @@
 package de.christianmahnke.lab.images.opencv.imageio;
 
 import de.christianmahnke.lab.images.opencv.OpenCVUtil;
+import de.christianmahnke.lab.images.opencv.StageRecorder;
+import de.christianmahnke.lab.images.opencv.region.MatRegionProvider;
+import de.christianmahnke.lab.images.opencv.region.RegionProvider;
 import org.opencv.core.Mat;
 import org.opencv.core.Rect;
+import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 
 import javax.imageio.ImageIO;
@@ -28,17 +32,23 @@ import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.spi.ImageReaderSpi;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Locale;
 
 public class OpenCVImageReader extends ImageReader {
     protected Mat img;
+    protected RegionProvider provider;
     protected String identifier;
+    protected StageRecorder recorder = StageRecorder.NONE;
+    protected MatEncoder encoder = MatEncoder.DEFAULT;
 
     protected OpenCVImageReader(ImageReaderSpi originatingProvider) {
         super(originatingProvider);
@@ -48,6 +58,13 @@ public class OpenCVImageReader extends ImageReader {
         super(spi);
         this.identifier = identifier;
         this.img = img;
+        this.provider = img != null ? new MatRegionProvider(img) : null;
+    }
+
+    protected OpenCVImageReader(String identifier, RegionProvider provider, ImageReaderSpi spi) {
+        super(spi);
+        this.identifier = identifier;
+        this.provider = provider;
     }
 
     static OpenCVImageReader getInstance(String identifier, InputStream is) {
@@ -71,7 +88,29 @@ public class OpenCVImageReader extends ImageReader {
         return new OpenCVImageReader(null, img, spi);
     }
 
+    /**
+     * Creates a reader that only computes the requested regions
+     */
+    public static OpenCVImageReader getInstance(RegionProvider provider) {
+        ImageReaderSpi spi = new OpenCvImageReaderSpi();
+        return new OpenCVImageReader(null, provider, spi);
+    }
+
+    /**
+     * Sets the recorder for the time spent on creating the requested images
+     */
+    public void setRecorder(StageRecorder recorder) {
+        this.recorder = recorder != null ? recorder : StageRecorder.NONE;
+    }
+
+    public void setEncoder(MatEncoder encoder) {
+        this.encoder = encoder != null ? encoder : MatEncoder.DEFAULT;
+    }
+
     public static InputStream getInputStreamFromImageReader(ImageReader reader) throws IOException {
+        if (reader instanceof OpenCVImageReader) {
+            return new ByteArrayInputStream(((OpenCVImageReader) reader).encode(null, "png"));
+        }
         ByteArrayOutputStream content = new ByteArrayOutputStream();
         ImageIO.write(reader.read(0), "PNG", content);
         return new ByteArrayInputStream(content.toByteArray());
@@ -84,53 +123,114 @@ public class OpenCVImageReader extends ImageReader {
 
     @Override
     public int getWidth(int imageIndex) throws IOException {
-        return img.cols();
+        checkIndex(imageIndex);
+        return provider.getWidth();
     }
 
     @Override
     public int getHeight(int imageIndex) throws IOException {
-        return img.rows();
+        checkIndex(imageIndex);
+        return provider.getHeight();
     }
 
     @Override
     public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex) throws IOException {
-        throw new UnsupportedOperationException("Not implemented.");
+        checkIndex(imageIndex);
+        int type = OpenCVUtil.getBufferedImageType(provider.getChannels());
+        return Collections.singletonList(ImageTypeSpecifier.createFromBufferedImageType(type)).iterator();
     }
 
     @Override
     public IIOMetadata getStreamMetadata() throws IOException {
-        throw new UnsupportedOperationException("Not implemented.");
+        return null;
     }
 
     @Override
     public IIOMetadata getImageMetadata(int imageIndex) throws IOException {
-        throw new UnsupportedOperationException("Not implemented.");
+        checkIndex(imageIndex);
+        return null;
     }
 
     @Override
     public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
+        checkIndex(imageIndex);
+        if (param == null) {
+            param = getDefaultReadParam();
+        }
+        long start = System.nanoTime();
+        // Crop and scale in native memory, only the requested pixels end up on the heap
+        Mat mat = getSourceMat(param);
+        BufferedImage bi = OpenCVUtil.matToBufferedImage(mat);
+        mat.release();
+        recorder.record(StageRecorder.ENCODE, System.nanoTime() - start);
+        return bi;
+    }
+
+    /**
+     * Encodes the requested region directly with OpenCV, without creating a BufferedImage
+     *
+     * @param param the region and subsampling, might be null
+     * @param format jpg, png or webp, see {@link MatEncoder#supports(String)}
+     */
+    public byte[] encode(ImageReadParam param, String format) throws IOException {
+        checkIndex(0);
+        if (param == null) {
+            param = getDefaultReadParam();
+        }
+        long start = System.nanoTime();
+        Mat mat = getSourceMat(param);
+        try {
+            return encoder.encode(mat, format);
+        } finally {
+            mat.release();
+            recorder.record(StageRecorder.ENCODE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Writes the encoded region to the given stream, for example a response
+     */
+    public void write(ImageReadParam param, String format, OutputStream out) throws IOException {
+        out.write(encode(param, format));
+    }
+
+    protected Mat getSourceMat(ImageReadParam param) {
+        Rectangle bounds = new Rectangle(0, 0, provider.getWidth(), provider.getHeight());
+        Rectangle region = bounds;
+        if (param.getSourceRegion() != null) {
+            region = bounds.intersection(param.getSourceRegion());
+            if (region.isEmpty()) {
+                throw new IllegalArgumentException("Source region doesn't intersect the image");
+            }
+        }
+        int xSubsampling = param.getSourceXSubsampling();
+        int ySubsampling = param.getSourceYSubsampling();
+        int xOffset = Math.min(param.getSubsamplingXOffset(), region.width - 1);
+        int yOffset = Math.min(param.getSubsamplingYOffset(), region.height - 1);
+        region = new Rectangle(region.x + xOffset, region.y + yOffset, region.width - xOffset, region.height - yOffset);
+
+        // Only the requested region is computed, for Mat's it's just a new header
+        Rect rect = new Rect(region.x, region.y, region.width, region.height);
+        if (xSubsampling > 1 || ySubsampling > 1) {
+            int width = (region.width + xSubsampling - 1) / xSubsampling;
+            int height = (region.height + ySubsampling - 1) / ySubsampling;
+            // Pyramids read the region from a reduced level
+            return provider.region(rect, new Size(width, height));
+        }
+        return provider.region(rect);
+    }
+
+    public RegionProvider getProvider() {
+        return provider;
+    }
+
+    protected void checkIndex(int imageIndex) {
         if (imageIndex != 0) {
             throw new IndexOutOfBoundsException();
         }
-        if (this.img == null) {
+        if (this.provider == null) {
             throw new IllegalStateException();
         }
-        //processImageStarted(imageIndex)
-        //throw new UnsupportedOperationException("Not implemented.")
-        if (param != null && param.getSourceRegion() != null) {
-
-            int x = param.getSourceRegion().x;
-            int y = param.getSourceRegion().y;
-            int w = param.getSourceRegion().width;
-            int h = param.getSourceRegion().height;
-
-            Rect region = new Rect(x, y, w, h);
-            Mat mat = this.img.submat(region);
-            BufferedImage bi = OpenCVUtil.matToBufferedImage(mat);
-            return bi;
-        }
-        //processImageComplete()
-        return OpenCVUtil.matToBufferedImage(this.img);
     }
 
     static class OpenCvImageReaderSpi extends ImageReaderSpi {
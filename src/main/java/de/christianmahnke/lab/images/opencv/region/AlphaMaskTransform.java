@@ -0,0 +1,69 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region;
+
+import de.christianmahnke.lab.images.opencv.OpenCVUtil;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Adds a precomputed alpha channel to the input
+ */
+public class AlphaMaskTransform implements RegionTransform {
+    private static final long serialVersionUID = 1L;
+
+    protected final RunLengthMask mask;
+
+    public AlphaMaskTransform(RunLengthMask mask) {
+        this.mask = mask;
+    }
+
+    public AlphaMaskTransform(Mat mask) {
+        this(RunLengthMask.encode(mask));
+    }
+
+    @Override
+    public int getWidth() {
+        return mask.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mask.getHeight();
+    }
+
+    @Override
+    public int getChannels(int inputChannels) {
+        return 4;
+    }
+
+    @Override
+    public Mat apply(RegionProvider input, Rect region) {
+        Mat src = input.region(region);
+        Mat alpha = mask.decode(region);
+        Mat result = OpenCVUtil.addAlphaBGR(src, alpha);
+        src.release();
+        alpha.release();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " -> size: " + getWidth() + "x" + getHeight() + ", runs: " + mask.getRunCount();
+    }
+}
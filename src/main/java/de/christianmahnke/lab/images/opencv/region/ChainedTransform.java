@@ -0,0 +1,77 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies transforms one after another, each one only gets asked for the regions the next one needs
+ */
+public class ChainedTransform implements RegionTransform {
+    private static final long serialVersionUID = 1L;
+
+    protected final List<RegionTransform> transforms;
+
+    public ChainedTransform(List<RegionTransform> transforms) {
+        if (transforms.isEmpty()) {
+            throw new IllegalArgumentException("At least one transform is needed");
+        }
+        this.transforms = new ArrayList<>(transforms);
+    }
+
+    @Override
+    public int getWidth() {
+        return transforms.get(transforms.size() - 1).getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return transforms.get(transforms.size() - 1).getHeight();
+    }
+
+    @Override
+    public int getChannels(int inputChannels) {
+        int channels = inputChannels;
+        for (RegionTransform transform : transforms) {
+            channels = transform.getChannels(channels);
+        }
+        return channels;
+    }
+
+    @Override
+    public Mat apply(RegionProvider input, Rect region) {
+        RegionProvider provider = input;
+        for (int i = 0; i < transforms.size() - 1; i++) {
+            provider = new TransformedRegionProvider(provider, transforms.get(i));
+        }
+        return transforms.get(transforms.size() - 1).apply(provider, region);
+    }
+
+    public List<RegionTransform> getTransforms() {
+        return new ArrayList<>(transforms);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " -> " + transforms;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Returns the input unaltered, used if the analysis didn't find anything to change
+ */
+public class IdentityTransform implements RegionTransform {
+    private static final long serialVersionUID = 1L;
+
+    protected final int width;
+    protected final int height;
+
+    public IdentityTransform(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getChannels(int inputChannels) {
+        return inputChannels;
+    }
+
+    @Override
+    public Mat apply(RegionProvider input, Rect region) {
+        return input.region(region);
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Provides regions of an already computed image
+ */
+public class MatRegionProvider implements RegionProvider {
+    protected final Mat img;
+
+    public MatRegionProvider(Mat img) {
+        this.img = img;
+    }
+
+    @Override
+    public int getWidth() {
+        return img.cols();
+    }
+
+    @Override
+    public int getHeight() {
+        return img.rows();
+    }
+
+    @Override
+    public int getChannels() {
+        return img.channels();
+    }
+
+    @Override
+    public Mat region(Rect region) {
+        // Only a new header, releasing it doesn't affect the image
+        return img.submat(region);
+    }
+
+    public Mat getMat() {
+        return img;
+    }
+}
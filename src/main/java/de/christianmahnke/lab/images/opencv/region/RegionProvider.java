@@ -0,0 +1,61 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Source of image regions, used to only compute the pixels of the requested tile
+ */
+public interface RegionProvider {
+
+    int getWidth();
+
+    int getHeight();
+
+    int getChannels();
+
+    /**
+     * Returns the pixels of the given region
+     *
+     * @param region the region, needs to be inside of the bounds
+     * @return a new Mat (or at least a new header), the caller is responsible for releasing it
+     */
+    Mat region(Rect region);
+
+    /**
+     * Returns the pixels of the given region scaled to the given size, providers that keep reduced resolutions of the
+     * image can use them instead of the full one
+     *
+     * @return a new Mat, the caller is responsible for releasing it
+     */
+    default Mat region(Rect region, Size size) {
+        Mat mat = region(region);
+        Mat resized = new Mat();
+        Imgproc.resize(mat, resized, size, 0, 0, Imgproc.INTER_AREA);
+        mat.release();
+        return resized;
+    }
+
+    default Rect getBounds() {
+        return new Rect(0, 0, getWidth(), getHeight());
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.Serializable;
+
+/**
+ * Result of the analysis phase of an image manipulation, applying it only computes the requested region. Instances
+ * are small and serializable, so they can be cached for every image.
+ */
+public interface RegionTransform extends Serializable {
+
+    /**
+     * @return width of the result
+     */
+    int getWidth();
+
+    /**
+     * @return height of the result
+     */
+    int getHeight();
+
+    /**
+     * @param inputChannels the channels of the input
+     * @return channels of the result
+     */
+    int getChannels(int inputChannels);
+
+    /**
+     * Computes a region of the result
+     *
+     * @param input  the source of the pixels, might be the result of another transform
+     * @param region the region in coordinates of the result
+     * @return a new Mat, the caller is responsible for releasing it
+     */
+    Mat apply(RegionProvider input, Rect region);
+}
@@ -0,0 +1,114 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Run length encoded single channel mask, regions can be decoded without touching rows outside of them. Masks like
+ * the ones generated by the BackgroundRemover only need a few runs per row.
+ */
+public class RunLengthMask implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    protected final int width;
+    protected final int height;
+    // Index of the first run of each row, the last entry marks the end
+    protected final int[] rows;
+    // Value in the upper 8 bits, length in the lower 24 bits
+    protected final int[] runs;
+
+    protected RunLengthMask(int width, int height, int[] rows, int[] runs) {
+        this.width = width;
+        this.height = height;
+        this.rows = rows;
+        this.runs = runs;
+    }
+
+    public static RunLengthMask encode(Mat mask) {
+        if (mask.type() != CvType.CV_8UC1) {
+            throw new IllegalStateException("Wrong type of mask - should be a single 8 bit channel");
+        }
+        if (mask.cols() >= 1 << 24) {
+            throw new IllegalStateException("Mask too wide");
+        }
+        int width = mask.cols();
+        int height = mask.rows();
+        int[] rows = new int[height + 1];
+        int[] runs = new int[Math.max(16, height * 4)];
+        int count = 0;
+        byte[] row = new byte[width];
+        for (int y = 0; y < height; y++) {
+            rows[y] = count;
+            mask.get(y, 0, row);
+            int start = 0;
+            for (int x = 1; x <= width; x++) {
+                if (x == width || row[x] != row[start]) {
+                    if (count == runs.length) {
+                        runs = Arrays.copyOf(runs, runs.length * 2);
+                    }
+                    runs[count++] = (row[start] & 0xFF) << 24 | (x - start);
+                    start = x;
+                }
+            }
+        }
+        rows[height] = count;
+        return new RunLengthMask(width, height, rows, Arrays.copyOf(runs, count));
+    }
+
+    public Mat decode() {
+        return decode(new Rect(0, 0, width, height));
+    }
+
+    public Mat decode(Rect region) {
+        byte[] data = new byte[region.width * region.height];
+        int regionEnd = region.x + region.width;
+        for (int y = 0; y < region.height; y++) {
+            int row = region.y + y;
+            int offset = y * region.width - region.x;
+            int x = 0;
+            for (int i = rows[row]; i < rows[row + 1] && x < regionEnd; i++) {
+                int end = x + (runs[i] & 0xFFFFFF);
+                if (end > region.x) {
+                    Arrays.fill(data, offset + Math.max(x, region.x), offset + Math.min(end, regionEnd), (byte) (runs[i] >>> 24));
+                }
+                x = end;
+            }
+        }
+        Mat mat = new Mat(region.height, region.width, CvType.CV_8UC1);
+        mat.put(0, 0, data);
+        return mat;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRunCount() {
+        return runs.length;
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Raw tiled multi-resolution image, every level has half the size of the previous one. The file consists of a small
+ * header, followed by the tiles of the levels, row by row, the tiles at the right and bottom edges are padded to the
+ * full tile size. The file is mapped, regions are copied from the tiles they intersect, the rest of the image isn't
+ * touched. Scaled regions are read from the smallest level that's still at least as large as the requested size.
+ * <p>
+ * Header (little endian): magic, version, width, height, OpenCV type, tile size, number of levels, followed by the
+ * width, height and offset of each level.
+ */
+public class TiledPyramid implements RegionProvider, Closeable {
+    public static final int MAGIC = 0x50545148;
+    public static final int VERSION = 1;
+    public static final int DEFAULT_TILE_SIZE = 256;
+    protected static final int HEADER = 7 * 4;
+    protected static final int LEVEL_HEADER = 2 * 4 + 8;
+
+    protected final FileChannel channel;
+    protected final int type;
+    protected final int tileSize;
+    protected final int tileBytes;
+    protected final Level[] levels;
+
+    protected TiledPyramid(FileChannel channel, int type, int tileSize, Level[] levels) {
+        this.channel = channel;
+        this.type = type;
+        this.tileSize = tileSize;
+        this.tileBytes = tileSize * tileSize * CvType.channels(type);
+        this.levels = levels;
+    }
+
+    public static TiledPyramid open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(channel, 0, HEADER);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + " isn't a tiled pyramid");
+            }
+            header.getInt();
+            header.getInt();
+            int type = header.getInt();
+            int tileSize = header.getInt();
+            int count = header.getInt();
+            ByteBuffer levelHeader = read(channel, HEADER, count * LEVEL_HEADER);
+            Level[] levels = new Level[count];
+            for (int i = 0; i < count; i++) {
+                levels[i] = new Level(levelHeader.getInt(), levelHeader.getInt(), levelHeader.getLong(), tileSize);
+            }
+            TiledPyramid pyramid = new TiledPyramid(channel, type, tileSize, levels);
+            Level last = levels[count - 1];
+            if (channel.size() < last.offset + (long) last.columns * last.rows * pyramid.tileBytes) {
+                throw new IOException(file + " is truncated");
+            }
+            return pyramid;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the regions of the given provider as pyramid, only a band of tiles of the full resolution and the second
+     * level are kept in memory. The provider needs to return 8 bit images.
+     */
+    public static void write(RegionProvider provider, Path file, int tileSize) throws IOException {
+        if (tileSize <= 0 || tileSize % 2 != 0) {
+            throw new IllegalArgumentException("Tile size needs to be even");
+        }
+        int type = CvType.makeType(CvType.CV_8U, provider.getChannels());
+        int tileBytes = tileSize * tileSize * provider.getChannels();
+        List<Level> levels = new ArrayList<>();
+        long offset = HEADER;
+        int width = provider.getWidth();
+        int height = provider.getHeight();
+        while (true) {
+            levels.add(new Level(width, height, 0, tileSize));
+            if (width <= tileSize && height <= tileSize) {
+                break;
+            }
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+        }
+        offset += (long) levels.size() * LEVEL_HEADER;
+        ByteBuffer header = ByteBuffer.allocate(HEADER + levels.size() * LEVEL_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(provider.getWidth()).putInt(provider.getHeight()).putInt(type).putInt(tileSize).putInt(levels.size());
+        for (Level level : levels) {
+            header.putInt(level.width).putInt(level.height).putLong(offset);
+            offset += (long) level.columns * level.rows * tileBytes;
+        }
+        header.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(channel, header);
+            Mat tile = new Mat(tileSize, tileSize, type);
+            byte[] bytes = new byte[tileBytes];
+            Mat next = levels.size() > 1 ? new Mat(levels.get(1).height, levels.get(1).width, type) : null;
+            for (int row = 0; row < levels.get(0).rows; row++) {
+                int y = row * tileSize;
+                Mat band = provider.region(new Rect(0, y, provider.getWidth(), Math.min(tileSize, provider.getHeight() - y)));
+                writeTiles(channel, band, tile, bytes);
+                if (next != null) {
+                    // Bands start at even rows, so scaling them one by one gives the same result as scaling the level
+                    Mat target = next.submat(y / 2, y / 2 + (band.rows() + 1) / 2, 0, next.cols());
+                    Imgproc.resize(band, target, target.size(), 0, 0, Imgproc.INTER_AREA);
+                    target.release();
+                }
+                band.release();
+            }
+            for (int i = 1; i < levels.size(); i++) {
+                Mat level = next;
+                for (int row = 0; row < levels.get(i).rows; row++) {
+                    int y = row * tileSize;
+                    Mat band = level.submat(y, Math.min(level.rows(), y + tileSize), 0, level.cols());
+                    writeTiles(channel, band, tile, bytes);
+                    band.release();
+                }
+                if (i + 1 < levels.size()) {
+                    next = new Mat(levels.get(i + 1).height, levels.get(i + 1).width, type);
+                    Imgproc.resize(level, next, next.size(), 0, 0, Imgproc.INTER_AREA);
+                }
+                level.release();
+            }
+            tile.release();
+        }
+    }
+
+    protected static void writeTiles(FileChannel channel, Mat band, Mat tile, byte[] bytes) throws IOException {
+        int tileSize = tile.cols();
+        for (int x = 0; x < band.cols(); x += tileSize) {
+            int width = Math.min(tileSize, band.cols() - x);
+            if (width < tileSize || band.rows() < tileSize) {
+                tile.setTo(Scalar.all(0));
+            }
+            Mat source = band.submat(0, band.rows(), x, x + width);
+            Mat target = tile.submat(0, band.rows(), 0, width);
+            source.copyTo(target);
+            source.release();
+            target.release();
+            tile.get(0, 0, bytes);
+            write(channel, ByteBuffer.wrap(bytes));
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return levels[0].width;
+    }
+
+    @Override
+    public int getHeight() {
+        return levels[0].height;
+    }
+
+    @Override
+    public int getChannels() {
+        return CvType.channels(type);
+    }
+
+    public int getLevels() {
+        return levels.length;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    @Override
+    public Mat region(Rect region) {
+        return region(0, region);
+    }
+
+    @Override
+    public Mat region(Rect region, Size size) {
+        int level = level(region, size);
+        int scale = 1 << level;
+        Level l = levels[level];
+        int x = region.x / scale;
+        int y = region.y / scale;
+        int width = Math.max(1, Math.min(l.width, (region.x + region.width + scale - 1) / scale) - x);
+        int height = Math.max(1, Math.min(l.height, (region.y + region.height + scale - 1) / scale) - y);
+        Mat mat = region(level, new Rect(x, y, width, height));
+        if (mat.cols() == (int) size.width && mat.rows() == (int) size.height) {
+            return mat;
+        }
+        Mat resized = new Mat();
+        Imgproc.resize(mat, resized, size, 0, 0, Imgproc.INTER_AREA);
+        mat.release();
+        return resized;
+    }
+
+    /**
+     * Index of the smallest level that still has at least the given size for the region
+     */
+    public int level(Rect region, Size size) {
+        int level = 0;
+        while (level + 1 < levels.length
+                && region.width >> (level + 1) >= size.width && region.height >> (level + 1) >= size.height) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Copies the given region of a level from the tiles it intersects
+     */
+    public Mat region(int level, Rect region) {
+        Level l = levels[level];
+        Mat result = new Mat(region.height, region.width, type);
+        int firstColumn = region.x / tileSize;
+        int lastColumn = (region.x + region.width - 1) / tileSize;
+        int firstRow = region.y / tileSize;
+        int lastRow = (region.y + region.height - 1) / tileSize;
+        for (int row = firstRow; row <= lastRow; row++) {
+            ByteBuffer band = band(l, row);
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int x0 = Math.max(region.x, column * tileSize);
+                int y0 = Math.max(region.y, row * tileSize);
+                int x1 = Math.min(region.x + region.width, (column + 1) * tileSize);
+                int y1 = Math.min(region.y + region.height, (row + 1) * tileSize);
+                // Only a header on the mapped file
+                ByteBuffer data = band.duplicate();
+                data.position(column * tileBytes).limit((column + 1) * tileBytes);
+                Mat tile = new Mat(tileSize, tileSize, type, data.slice());
+                Mat source = tile.submat(y0 - row * tileSize, y1 - row * tileSize, x0 - column * tileSize, x1 - column * tileSize);
+                Mat target = result.submat(y0 - region.y, y1 - region.y, x0 - region.x, x1 - region.x);
+                source.copyTo(target);
+                source.release();
+                target.release();
+                tile.release();
+            }
+        }
+        return result;
+    }
+
+    protected ByteBuffer band(Level level, int row) {
+        synchronized (level) {
+            if (level.bands[row] == null) {
+                long size = (long) level.columns * tileBytes;
+                if (size > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Rows of tiles larger than 2 GB aren't supported");
+                }
+                try {
+                    level.bands[row] = channel.map(FileChannel.MapMode.READ_ONLY, level.offset + row * size, size);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to map tiles", e);
+                }
+            }
+            return level.bands[row];
+        }
+    }
+
+    /**
+     * Closes the file, mapped tiles stay valid as long as the pyramid is referenced
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    protected static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    protected static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    protected static class Level {
+        protected final int width;
+        protected final int height;
+        protected final int columns;
+        protected final int rows;
+        protected final long offset;
+        protected final MappedByteBuffer[] bands;
+
+        protected Level(int width, int height, long offset, int tileSize) {
+            this.width = width;
+            this.height = height;
+            this.columns = (width + tileSize - 1) / tileSize;
+            this.rows = (height + tileSize - 1) / tileSize;
+            this.offset = offset;
+            this.bands = new MappedByteBuffer[rows];
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Applies a {@link RegionTransform} to the regions of another provider
+ */
+public class TransformedRegionProvider implements RegionProvider {
+    protected final RegionProvider input;
+    protected final RegionTransform transform;
+
+    public TransformedRegionProvider(RegionProvider input, RegionTransform transform) {
+        this.input = input;
+        this.transform = transform;
+    }
+
+    public TransformedRegionProvider(Mat input, RegionTransform transform) {
+        this(new MatRegionProvider(input), transform);
+    }
+
+    @Override
+    public int getWidth() {
+        return transform.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return transform.getHeight();
+    }
+
+    @Override
+    public int getChannels() {
+        return transform.getChannels(input.getChannels());
+    }
+
+    @Override
+    public Mat region(Rect region) {
+        return transform.apply(input, region);
+    }
+}
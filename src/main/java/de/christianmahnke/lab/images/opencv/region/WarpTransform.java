@@ -0,0 +1,146 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/**
+ * An affine transformation, for a region only the area of the input the region is mapped from is warped
+ */
+public class WarpTransform implements RegionTransform {
+    private static final long serialVersionUID = 1L;
+    // Additional pixels of the input needed for interpolation
+    protected static final int MARGIN = 4;
+
+    protected final double[] matrix;
+    protected final int width;
+    protected final int height;
+    protected final int flags;
+    protected final int borderMode;
+
+    /**
+     * @param matrix the 2x3 matrix as used by warpAffine
+     */
+    public WarpTransform(Mat matrix, int width, int height, int flags, int borderMode) {
+        this(toArray(matrix), width, height, flags, borderMode);
+    }
+
+    public WarpTransform(double[] matrix, int width, int height, int flags, int borderMode) {
+        if (matrix.length != 6) {
+            throw new IllegalArgumentException("Matrix needs to have 2x3 elements");
+        }
+        this.matrix = matrix.clone();
+        this.width = width;
+        this.height = height;
+        this.flags = flags;
+        this.borderMode = borderMode;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getChannels(int inputChannels) {
+        return inputChannels;
+    }
+
+    public double[] getMatrix() {
+        return matrix.clone();
+    }
+
+    @Override
+    public Mat apply(RegionProvider input, Rect region) {
+        Rect source = getSourceRegion(input, region);
+        // Move the origin of input and output to the requested regions
+        double[] shifted = matrix.clone();
+        shifted[2] = matrix[0] * source.x + matrix[1] * source.y + matrix[2] - region.x;
+        shifted[5] = matrix[3] * source.x + matrix[4] * source.y + matrix[5] - region.y;
+
+        Mat src = input.region(source);
+        Mat m = toMat(shifted);
+        Mat result = new Mat();
+        Imgproc.warpAffine(src, result, m, region.size(), flags, borderMode);
+        src.release();
+        m.release();
+        return result;
+    }
+
+    /**
+     * Calculates the area of the input needed to compute the given region of the result
+     */
+    protected Rect getSourceRegion(RegionProvider input, Rect region) {
+        Mat m = toMat(matrix);
+        Mat inverse = new Mat();
+        Imgproc.invertAffineTransform(m, inverse);
+        double[] inv = toArray(inverse);
+        m.release();
+        inverse.release();
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        int[][] corners = {{region.x, region.y}, {region.x + region.width, region.y}, {region.x, region.y + region.height}, {region.x + region.width, region.y + region.height}};
+        for (int[] corner : corners) {
+            double x = inv[0] * corner[0] + inv[1] * corner[1] + inv[2];
+            double y = inv[3] * corner[0] + inv[4] * corner[1] + inv[5];
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+        // Regions mapped from outside of the input still need the border pixels
+        int x0 = clamp((int) Math.floor(minX) - MARGIN, 0, input.getWidth() - 1);
+        int y0 = clamp((int) Math.floor(minY) - MARGIN, 0, input.getHeight() - 1);
+        int x1 = clamp((int) Math.ceil(maxX) + MARGIN + 1, x0 + 1, input.getWidth());
+        int y1 = clamp((int) Math.ceil(maxY) + MARGIN + 1, y0 + 1, input.getHeight());
+        return new Rect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    protected static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    protected static double[] toArray(Mat matrix) {
+        double[] values = new double[6];
+        for (int i = 0; i < 6; i++) {
+            values[i] = matrix.get(i / 3, i % 3)[0];
+        }
+        return values;
+    }
+
+    protected static Mat toMat(double[] values) {
+        Mat m = new Mat(2, 3, CvType.CV_64F);
+        m.put(0, 0, values);
+        return m;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " -> matrix: " + Arrays.toString(matrix) + ", size: " + width + "x" + height;
+    }
+}
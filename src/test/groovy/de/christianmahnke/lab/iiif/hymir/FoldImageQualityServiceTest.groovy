@@ -17,6 +17,10 @@
  */
 package de.christianmahnke.lab.iiif.hymir
 
+import de.christianmahnke.lab.iiif.hymir.admission.QualityExecutor
+import de.christianmahnke.lab.iiif.hymir.admission.QualityOverloadException
+import de.christianmahnke.lab.iiif.hymir.util.RequestedSize
+import de.digitalcollections.iiif.model.image.ImageApiProfile
 import groovy.transform.TypeChecked
 import groovy.util.logging.Slf4j
 import org.junit.jupiter.api.BeforeEach
@@ -27,6 +31,15 @@ import org.springframework.util.ResourceUtils
 
 import javax.imageio.ImageIO
 import javax.imageio.ImageReader
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertNotNull
+import static org.junit.jupiter.api.Assertions.assertThrows
+import static org.junit.jupiter.api.Assertions.assertTrue
 
 @TypeChecked
 @Slf4j
@@ -54,4 +67,57 @@ class FoldImageQualityServiceTest {
             ImageIO.write(reader.read(0), "png", new File(fileName))
         }
     }
+
+    @Test
+    void testProcessStreamReduced() {
+        File v = files.get(2)
+        FoldImageQualityService fiqs = new FoldImageQualityService()
+        ImageReader full = fiqs.processStream(v.getAbsolutePath(), new FileInputStream(v), null)
+        ImageReader reduced = fiqs.processStream(v.getAbsolutePath(), new FileInputStream(v), RequestedSize.parse('!400,400'))
+        // The source is 1600x2200, the smallest reduction that still fits 400x400 is 4
+        assertEquals(full.getWidth(0).intdiv(4), reduced.getWidth(0))
+        assertEquals(full.getHeight(0).intdiv(4), reduced.getHeight(0))
+    }
+
+    @Test
+    void testQualityName() {
+        // Not configured by Spring, there is no name
+        assertEquals('FoldImageQualityService', new FoldImageQualityService().getQualityName())
+        FoldImageQualityService unnamed = new FoldImageQualityService() {
+            @Override
+            ImageApiProfile.Quality getQuality() {
+                return null
+            }
+        }
+        assertNotNull(unnamed.getQualityName())
+    }
+
+    @Test
+    void testRegionAdmission() {
+        QualityExecutor executor = new QualityExecutor(2, 1, 1024L * 1024 * 1024, 4, 200)
+        CountDownLatch started = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        try {
+            File v = files.get(2)
+            FoldImageQualityService fiqs = new FoldImageQualityService()
+            fiqs.setQualityExecutor(executor)
+            ImageReader reader = fiqs.processStream(v.getAbsolutePath(), new FileInputStream(v), null)
+            // The regions are computed by the read, it needs a slot of its own
+            CompletableFuture<String> blocked = CompletableFuture.supplyAsync({
+                executor.execute(fiqs.getQualityName(), 1024, {
+                    started.countDown()
+                    release.await()
+                    return 'blocked'
+                } as Supplier<String>)
+            } as Supplier<String>)
+            assertTrue(started.await(5, TimeUnit.SECONDS))
+            assertThrows(QualityOverloadException.class, () -> reader.read(0))
+            release.countDown()
+            blocked.get(5, TimeUnit.SECONDS)
+            assertEquals(reader.getWidth(0), reader.read(0).getWidth())
+        } finally {
+            release.countDown()
+            executor.close()
+        }
+    }
 }
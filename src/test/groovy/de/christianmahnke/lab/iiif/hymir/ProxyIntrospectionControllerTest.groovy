@@ -34,6 +34,7 @@ import org.springframework.test.web.servlet.result.MockMvcResultMatchers
 
 import javax.script.ScriptEngine
 import javax.script.ScriptEngineManager
+import java.util.regex.Pattern
 
 import static org.junit.jupiter.api.Assertions.*
 
@@ -72,6 +73,62 @@ class ProxyIntrospectionControllerTest {
         }
     }
 
+    @Test
+    void testRewriteURL() {
+        MvcResult result = this.mockMvc.perform(MockMvcRequestBuilders.get("/mappings/js")).andExpect(MockMvcResultMatchers.status().isOk()).andReturn()
+        ScriptEngine engine = getEngine()
+        engine.eval(result.getResponse().getContentAsString())
+        String base = engine.eval('proxyBaseUrl')
+        assertEquals(base + 'PPN123/manifest?version=r3rpa',
+            engine.eval("rewriteURL('https://manifests.sub.uni-goettingen.de/iiif/presentation/PPN123/manifest?version=r3rpa')"))
+        assertEquals(base + 'gdz:abc:12345678/full/full/0/default.jpg',
+            engine.eval("rewriteURL('https://images.sub.uni-goettingen.de/iiif/image/gdz:abc:12345678/full/full/0/default.jpg')"))
+        assertEquals('https://example.com/iiif/1', engine.eval("rewriteURL('https://example.com/iiif/1')"))
+
+        // Same results as the patterns, matched one after another
+        Map<String, String> patterns = controller.bmu.getSnapshot().patterns(base)
+        for (String url in ['https://sammlungen.uni-goettingen.de/api/v1/records/record_a.jpg/manifest/', 'https://manifests.sub.uni-goettingen.de/iiif/presentation/DE-611-HS-1/manifest']) {
+            String expected = url
+            for (Map.Entry<String, String> pattern in patterns.entrySet()) {
+                if (Pattern.compile(pattern.getKey()).matcher(url).find()) {
+                    expected = url.replaceFirst(pattern.getKey(), pattern.getValue())
+                    break
+                }
+            }
+            assertNotEquals(url, expected)
+            assertEquals(expected, engine.eval("rewriteURL('${url}')".toString()))
+        }
+    }
+
+    @Test
+    void testPatternOrder() {
+        // The second pattern matches further left, the first one configured still wins
+        Map<String, String> patterns = new LinkedHashMap<String, String>()
+        patterns.put('manifest$', 'first')
+        patterns.put('https://example.com/', 'second/')
+        ScriptEngine engine = getEngine()
+        engine.eval(ProxyIntrospectionController.renderJS('http://localhost/', patterns))
+        assertEquals('https://example.com/iiif/first', engine.eval("rewriteURL('https://example.com/iiif/manifest')"))
+        assertEquals('second/iiif/info.json', engine.eval("rewriteURL('https://example.com/iiif/info.json')"))
+    }
+
+    @Test
+    void testETag() {
+        MvcResult result = this.mockMvc.perform(MockMvcRequestBuilders.get("/mappings/js"))
+            .andExpect(MockMvcResultMatchers.status().isOk())
+            .andExpect(MockMvcResultMatchers.header().exists('Cache-Control'))
+            .andReturn()
+        String etag = result.getResponse().getHeader('ETag')
+        assertNotNull(etag)
+        this.mockMvc.perform(MockMvcRequestBuilders.get("/mappings/js").header('If-None-Match', etag))
+            .andExpect(MockMvcResultMatchers.status().isNotModified())
+        // The URL base is part of the response
+        MvcResult other = this.mockMvc.perform(MockMvcRequestBuilders.get("/mappings/js").header('X-Forwarded-Host', 'example.com'))
+            .andExpect(MockMvcResultMatchers.status().isOk()).andReturn()
+        assertNotEquals(etag, other.getResponse().getHeader('ETag'))
+        assertTrue(other.getResponse().getContentAsString().contains('example.com'))
+    }
+
     @Test
     void testJSON() {
         MvcResult result = this.mockMvc.perform(MockMvcRequestBuilders.get("/mappings/json")).andExpect(MockMvcResultMatchers.status().isOk()).andReturn()
@@ -24,15 +24,19 @@ import groovy.util.logging.Slf4j
 import org.junit.jupiter.api.Tag
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.TestInfo
+import org.opencv.core.Mat
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.boot.test.context.SpringBootTest
 import org.springframework.test.context.ActiveProfiles
 import org.springframework.test.context.TestPropertySource
 
 import javax.imageio.ImageIO
+import javax.imageio.ImageReadParam
 import javax.imageio.ImageReader
+import java.awt.Rectangle
 import java.awt.image.BufferedImage
 
+import static org.junit.jupiter.api.Assertions.assertEquals
 import static org.junit.jupiter.api.Assertions.assertTrue
 
 @TypeChecked
@@ -64,4 +68,43 @@ class StackImageQualityServiceTest extends FoldImageQualityServiceTest {
             assertTrue(OpenCVUtil.isTransparent(result, 1, 1))
         }
     }
+
+    @Test
+    @Tag('stack-mat')
+    void testProcessMat(TestInfo testInfo) {
+        files.forEach (k, v) -> {
+            log.info("Transforming ${v} using StackImageQualityService with Mat")
+            List<ImageQualityService> services = new ArrayList<ImageQualityService>()
+            services.addAll(Arrays.asList(fiqs, biqs))
+            StackImageQualityService siqs = new StackImageQualityService("nofold,transparent-background", services)
+            Mat result = siqs.processMat(v.getAbsolutePath(), OpenCVUtil.loadImage(v))
+            assertTrue(result.channels() == 4)
+            assertTrue(OpenCVUtil.isTransparent(OpenCVUtil.matToBufferedImage(result), 1, 1))
+        }
+    }
+
+    @Test
+    @Tag('stack-regions')
+    void testProcessRegions(TestInfo testInfo) {
+        files.forEach (k, v) -> {
+            log.info("Transforming regions of ${v} using StackImageQualityService")
+            List<ImageQualityService> services = new ArrayList<ImageQualityService>()
+            services.addAll(Arrays.asList(fiqs, biqs))
+            StackImageQualityService siqs = new StackImageQualityService("nofold,transparent-background", services)
+            ImageReader reader = siqs.processStream(v.getAbsolutePath(), new FileInputStream(v))
+            BufferedImage full = reader.read(0)
+            assertTrue(OpenCVUtil.isTransparent(full, 1, 1))
+
+            ImageReadParam param = reader.getDefaultReadParam()
+            param.setSourceRegion(new Rectangle(0, 0, 512, 512))
+            BufferedImage tile = reader.read(0, param)
+            assertEquals(512, tile.getWidth())
+            assertTrue(OpenCVUtil.isTransparent(tile, 1, 1))
+
+            param.setSourceRegion(null)
+            param.setSourceSubsampling(8, 8, 0, 0)
+            BufferedImage thumbnail = reader.read(0, param)
+            assertEquals((reader.getWidth(0) + 7).intdiv(8), thumbnail.getWidth())
+        }
+    }
 }
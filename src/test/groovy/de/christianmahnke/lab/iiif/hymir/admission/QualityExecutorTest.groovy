@@ -0,0 +1,180 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.admission
+
+import com.google.common.util.concurrent.Uninterruptibles
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.util.ResourceUtils
+
+import java.nio.file.Files
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertThrows
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@TypeChecked
+@Slf4j
+class QualityExecutorTest {
+    QualityExecutor executor
+    CountDownLatch release = new CountDownLatch(1)
+
+    @AfterEach
+    void tearDown() {
+        release.countDown()
+        executor.close()
+    }
+
+    // Occupies a slot until the test ends
+    CompletableFuture<String> block(String quality, long weight) {
+        CountDownLatch started = new CountDownLatch(1)
+        CompletableFuture<String> future = CompletableFuture.supplyAsync({
+            executor.execute(quality, weight, {
+                started.countDown()
+                release.await()
+                return 'blocked'
+            } as Supplier<String>)
+        } as Supplier<String>)
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        return future
+    }
+
+    @Test
+    void testExecute() {
+        executor = new QualityExecutor(2, 1, 1024 * 1024, 4, 1000)
+        String thread = executor.execute('test', 1024, { Thread.currentThread().getName() } as Supplier<String>)
+        assertTrue(thread.startsWith('quality-'))
+        // Nested tasks don't need another slot
+        String nested = executor.execute('test', 1024, {
+            executor.execute('test', 1024, { 'nested' } as Supplier<String>)
+        } as Supplier<String>)
+        assertEquals('nested', nested)
+        assertThrows(IllegalStateException.class, () -> executor.execute('test', 1024, { throw new IllegalStateException() } as Supplier<String>))
+    }
+
+    @Test
+    void testConcurrencyLimit() {
+        executor = new QualityExecutor(4, 1, 1024 * 1024, 4, 200)
+        CompletableFuture<String> blocked = block('nofold', 1024)
+        QualityOverloadException e = assertThrows(QualityOverloadException.class, () -> executor.execute('nofold', 1024, { 'rejected' } as Supplier<String>))
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus())
+        assertEquals('1', e.getResponseHeaders().getFirst(HttpHeaders.RETRY_AFTER))
+        // Other qualities have their own limit
+        assertEquals('admitted', executor.execute('transparent-background', 1024, { 'admitted' } as Supplier<String>))
+        release.countDown()
+        assertEquals('blocked', blocked.get(5, TimeUnit.SECONDS))
+        assertEquals('admitted', executor.execute('nofold', 1024, { 'admitted' } as Supplier<String>))
+    }
+
+    @Test
+    void testMemoryBudget() {
+        executor = new QualityExecutor(4, 4, 100 * 1024, 4, 200)
+        CompletableFuture<String> blocked = block('nofold', 80 * 1024)
+        assertEquals(20 * 1024, executor.getAvailableMemory())
+        assertThrows(QualityOverloadException.class, () -> executor.execute('nofold', 50 * 1024, { 'rejected' } as Supplier<String>))
+        assertEquals('admitted', executor.execute('nofold', 10 * 1024, { 'admitted' } as Supplier<String>))
+        release.countDown()
+        blocked.get(5, TimeUnit.SECONDS)
+        // Larger than the budget, runs alone
+        assertEquals('admitted', executor.execute('nofold', 1024 * 1024, { 'admitted' } as Supplier<String>))
+        assertEquals(100 * 1024, executor.getAvailableMemory())
+    }
+
+    @Test
+    void testQueue() {
+        executor = new QualityExecutor(4, 1, 1024 * 1024, 1, 2000)
+        block('nofold', 1024)
+        CompletableFuture<String> waiting = CompletableFuture.supplyAsync({
+            executor.execute('nofold', 1024, { 'waited' } as Supplier<String>)
+        } as Supplier<String>)
+        long start = System.currentTimeMillis()
+        while (executor.getWaiting() < 1 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10)
+        }
+        // The queue is full, fail without waiting
+        start = System.currentTimeMillis()
+        assertThrows(QualityOverloadException.class, () -> executor.execute('nofold', 1024, { 'rejected' } as Supplier<String>))
+        assertTrue(System.currentTimeMillis() - start < 1000)
+        release.countDown()
+        assertEquals('waited', waiting.get(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    void testInterrupt() {
+        executor = new QualityExecutor(4, 1, 100 * 1024, 4, 1000)
+        CountDownLatch started = new CountDownLatch(1)
+        Throwable[] thrown = new Throwable[1]
+        Thread caller = new Thread({
+            try {
+                executor.execute('nofold', 80 * 1024, {
+                    started.countDown()
+                    // Ignores the cancellation, like a running OpenCV operation
+                    Uninterruptibles.awaitUninterruptibly(release)
+                    return 'finished'
+                } as Supplier<String>)
+            } catch (Throwable t) {
+                thrown[0] = t
+            }
+        } as Runnable)
+        caller.start()
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        caller.interrupt()
+        caller.join(5000)
+        assertTrue(thrown[0] instanceof QualityOverloadException)
+        // Still reserved by the running task
+        assertEquals(20 * 1024, executor.getAvailableMemory())
+        release.countDown()
+        long start = System.currentTimeMillis()
+        while (executor.getAvailableMemory() < 100 * 1024 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10)
+        }
+        assertEquals(100 * 1024, executor.getAvailableMemory())
+    }
+
+    @Test
+    void testEstimateWeight() {
+        executor = new QualityExecutor(1, 1, 1024, 1, 100)
+        byte[] content = Files.readAllBytes(ResourceUtils.getFile("classpath:images/DE-611-HS-3461927/00000001.jpg").toPath())
+        assertEquals(1600L * 2200 * 3, QualityExecutor.estimateWeight(content))
+        assertEquals(120L, QualityExecutor.estimateWeight('not an image'.getBytes()))
+    }
+
+    @Test
+    void testBackground() {
+        // Long timeout, a waiting background task would block the test
+        executor = new QualityExecutor(4, 1, 1024 * 1024, 4, 60000)
+        block('nofold', 1024)
+        long start = System.nanoTime()
+        assertThrows(QualityOverloadException.class, () -> QualityExecutor.background({
+            executor.execute('nofold', 1024, { 'rejected' } as Supplier<String>)
+        } as Supplier<String>))
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000)
+        assertEquals(0, executor.getWaiting())
+        assertEquals('admitted', QualityExecutor.background({
+            executor.execute('transparent-background', 1024, { 'admitted' } as Supplier<String>)
+        } as Supplier<String>))
+    }
+}
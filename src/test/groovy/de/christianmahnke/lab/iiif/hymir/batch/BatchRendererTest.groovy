@@ -0,0 +1,92 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.batch
+
+import de.christianmahnke.lab.iiif.hymir.FoldImageQualityService
+import de.christianmahnke.lab.iiif.hymir.admission.QualityExecutor
+import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
+import groovy.transform.TypeChecked
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.springframework.util.ResourceUtils
+
+import javax.imageio.ImageIO
+import java.awt.image.BufferedImage
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@TypeChecked
+class BatchRendererTest {
+
+    @TempDir
+    Path directory
+
+    static InputStream open(String identifier) {
+        return new FileInputStream(ResourceUtils.getFile("classpath:images/${identifier}.jpg"))
+    }
+
+    @Test
+    void testRenderAndResume() {
+        List<String> identifiers = ['DE-611-HS-3461927/00000001', 'DE-611-HS-3461927/00000002', 'missing']
+        List<ImageQualityService.Source> services = [new FoldImageQualityService()] as List<ImageQualityService.Source>
+        BatchRenderer renderer = new BatchRenderer(services, BatchRendererTest::open)
+        renderer.setDirectory(directory)
+        renderer.setParallelism(2)
+        // Only one image fits into the budget at a time
+        renderer.setMemory(1600L * 2200 * 3)
+        BatchReport report = renderer.render(identifiers)
+        assertEquals(2, report.getProcessed())
+        assertEquals(1, report.getFailed())
+        assertEquals(2 * 1.6d * 2.2d, report.getMegapixels(), 0.01d)
+        assertTrue(report.getImagesPerSecond() > 0)
+
+        Path output = renderer.output(BatchRenderer.quality(services.first()), identifiers.first())
+        BufferedImage result = ImageIO.read(output.toFile())
+        assertEquals(1600, result.getWidth())
+        List<String> progress = Files.readAllLines(directory.resolve(BatchRenderer.PROGRESS_FILE), StandardCharsets.UTF_8)
+        assertEquals(2, progress.size())
+
+        BatchRenderer resume = new BatchRenderer(services, BatchRendererTest::open)
+        resume.setDirectory(directory)
+        BatchReport resumed = resume.render(identifiers)
+        assertEquals(0, resumed.getProcessed())
+        assertEquals(2, resumed.getSkipped())
+        assertEquals(1, resumed.getFailed())
+    }
+
+    @Test
+    void testWithoutAdmission() {
+        // Every admitted task would be rejected, the batch has to bypass the executor
+        QualityExecutor executor = new QualityExecutor(1, 1, 1024, 0, 1)
+        FoldImageQualityService service = new FoldImageQualityService()
+        service.setQualityExecutor(executor)
+        List<ImageQualityService.Source> services = [service] as List<ImageQualityService.Source>
+        BatchRenderer renderer = new BatchRenderer(services, BatchRendererTest::open)
+        renderer.setParallelism(2)
+        // Writing the results computes the lazy regions
+        renderer.setDirectory(directory)
+        BatchReport report = renderer.render(['DE-611-HS-3461927/00000001', 'DE-611-HS-3461927/00000002'])
+        executor.close()
+        assertEquals(2, report.getProcessed())
+        assertEquals(0, report.getFailed())
+    }
+}
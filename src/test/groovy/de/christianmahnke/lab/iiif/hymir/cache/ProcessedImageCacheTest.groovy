@@ -0,0 +1,216 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.cache
+
+import de.christianmahnke.lab.images.opencv.OpenCVUtil
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import de.christianmahnke.lab.iiif.hymir.admission.QualityOverloadException
+import de.christianmahnke.lab.images.opencv.region.MatRegionProvider
+import de.christianmahnke.lab.images.opencv.region.RegionProvider
+import de.christianmahnke.lab.images.opencv.region.TiledPyramid
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Scalar
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Consumer
+import java.util.function.Supplier
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertFalse
+import static org.junit.jupiter.api.Assertions.assertNotNull
+import static org.junit.jupiter.api.Assertions.assertNull
+import static org.junit.jupiter.api.Assertions.assertSame
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@Slf4j
+@TypeChecked
+class ProcessedImageCacheTest {
+
+    @BeforeAll
+    static void setup() {
+        OpenCVUtil.load()
+    }
+
+    static Mat image(int size) {
+        return new Mat(size, size, CvType.CV_8UC4, new Scalar(255, 255, 255, 0))
+    }
+
+    @Test
+    @Tag('cache')
+    void testComputeOnce() {
+        ProcessedImageCache cache = new ProcessedImageCache(16, 0, null)
+        AtomicInteger calls = new AtomicInteger()
+        ProcessedImageKey key = ProcessedImageKey.of('test', 'nofold', 'content'.getBytes())
+        for (int i = 0; i < 5; i++) {
+            Mat result = cache.get(key, { calls.incrementAndGet(); image(10) } as Supplier<Mat>)
+            assertEquals(10, result.cols())
+        }
+        assertEquals(1, calls.get())
+        ProcessedImageKey changed = ProcessedImageKey.of('test', 'nofold', 'changed'.getBytes())
+        cache.get(changed, { calls.incrementAndGet(); image(10) } as Supplier<Mat>)
+        assertEquals(2, calls.get())
+    }
+
+    @Test
+    @Tag('cache')
+    void testSingleFlight() {
+        ProcessedImageCache cache = new ProcessedImageCache(16, 0, null)
+        AtomicInteger calls = new AtomicInteger()
+        ProcessedImageKey key = ProcessedImageKey.of('test', 'nofold', 'content'.getBytes())
+        ExecutorService executor = Executors.newFixedThreadPool(8)
+        List<Future<Mat>> results = new ArrayList<Future<Mat>>()
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit({
+                cache.get(key, {
+                    calls.incrementAndGet()
+                    Thread.sleep(200)
+                    image(10)
+                } as Supplier<Mat>)
+            } as Callable<Mat>))
+        }
+        for (Future<Mat> result in results) {
+            assertEquals(10, result.get().rows())
+        }
+        executor.shutdown()
+        assertEquals(1, calls.get())
+    }
+
+    @Test
+    @Tag('cache')
+    void testWeightEviction() {
+        // Room for two 100x100 RGBA images
+        ProcessedImageCache cache = new ProcessedImageCache(0, 100 * 100 * 4 * 2, null)
+        for (int i = 0; i < 10; i++) {
+            Mat result = cache.get(ProcessedImageKey.of("test-${i}".toString(), 'nofold', 'content'.getBytes()), { image(100) } as Supplier<Mat>)
+            // Evicted entries must not invalidate images already handed out
+            assertEquals(100, result.cols())
+        }
+        cache.cache.synchronous().cleanUp()
+        assertTrue(cache.size() <= 2)
+    }
+
+    @Test
+    @Tag('cache')
+    void testDiskTier(@TempDir Path directory) {
+        ProcessedImageCache cache = new ProcessedImageCache(16, 0, directory.toString())
+        ProcessedImageKey key = ProcessedImageKey.of('test/with/slashes', 'transparent-background', 'content'.getBytes())
+        cache.get(key, { image(20) } as Supplier<Mat>)
+        cache.writer.shutdown()
+        cache.writer.awaitTermination(10, TimeUnit.SECONDS)
+        assertTrue(Files.exists(directory.resolve(key.getFileName() + '.png')))
+
+        ProcessedImageCache restarted = new ProcessedImageCache(16, 0, directory.toString())
+        AtomicInteger calls = new AtomicInteger()
+        Mat result = restarted.get(key, { calls.incrementAndGet(); image(20) } as Supplier<Mat>)
+        assertEquals(0, calls.get())
+        assertEquals(4, result.channels())
+        assertEquals(20, result.cols())
+        restarted.close()
+    }
+
+    @Test
+    @Tag('cache')
+    void testPyramid(@TempDir Path directory) {
+        ProcessedImageCache cache = new ProcessedImageCache(16, 0, directory.toString())
+        ProcessedImageKey key = ProcessedImageKey.of('test', 'transparent-background', 'content'.getBytes())
+        assertNull(cache.getPyramid(key))
+        Mat img = image(600)
+        cache.storePyramid(key, new MatRegionProvider(img))
+        cache.writer.shutdown()
+        cache.writer.awaitTermination(10, TimeUnit.SECONDS)
+        assertTrue(Files.exists(directory.resolve(key.getFileName() + '.pyr')))
+
+        RegionProvider pyramid = cache.getPyramid(key)
+        assertTrue(pyramid instanceof TiledPyramid)
+        assertEquals(600, pyramid.getWidth())
+        assertEquals(4, pyramid.getChannels())
+        assertSame(pyramid, cache.getPyramid(key))
+        cache.close()
+    }
+
+    @Test
+    @Tag('cache')
+    void testMaximumDiskSize(@TempDir Path directory) {
+        ProcessedImageKey first = ProcessedImageKey.of('first', 'transparent-background', 'content'.getBytes())
+        ProcessedImageKey second = ProcessedImageKey.of('second', 'transparent-background', 'content'.getBytes())
+        ProcessedImageKey third = ProcessedImageKey.of('third', 'transparent-background', 'content'.getBytes())
+        Mat img = image(200)
+        ProcessedImageCache unlimited = new ProcessedImageCache(16, 0, directory.resolve('size').toString())
+        unlimited.storePyramid(first, new MatRegionProvider(img))
+        unlimited.writer.submit({} as Runnable).get()
+        long size = Files.size(directory.resolve('size').resolve(first.getFileName() + '.pyr'))
+        unlimited.close()
+
+        // Room for two pyramids
+        Path tier = directory.resolve('limited')
+        ProcessedImageCache cache = new ProcessedImageCache(16, 0, tier.toString(), (long) (size * 2.5d))
+        for (ProcessedImageKey key in [first, second]) {
+            cache.storePyramid(key, new MatRegionProvider(img))
+            cache.writer.submit({} as Runnable).get()
+            Thread.sleep(50)
+        }
+        // The first one is used again, the second one is the least recently used
+        assertNotNull(cache.getPyramid(first))
+        Thread.sleep(50)
+        cache.storePyramid(third, new MatRegionProvider(img))
+        cache.writer.submit({} as Runnable).get()
+        assertTrue(Files.exists(tier.resolve(first.getFileName() + '.pyr')))
+        assertFalse(Files.exists(tier.resolve(second.getFileName() + '.pyr')))
+        assertTrue(Files.exists(tier.resolve(third.getFileName() + '.pyr')))
+        assertNull(cache.getPyramid(second))
+        cache.close()
+    }
+
+    @Test
+    @Tag('cache')
+    void testPyramidAdmission(@TempDir Path directory) {
+        ProcessedImageCache cache = new ProcessedImageCache(16, 0, directory.toString())
+        ProcessedImageKey key = ProcessedImageKey.of('test', 'nofold', 'content'.getBytes())
+        AtomicInteger admissions = new AtomicInteger()
+        cache.storePyramid(key, new MatRegionProvider(image(300)), { Runnable write ->
+            admissions.incrementAndGet()
+            throw new QualityOverloadException('busy', 1)
+        } as Consumer<Runnable>)
+        cache.writer.submit({} as Runnable).get()
+        assertEquals(1, admissions.get())
+        assertNull(cache.getPyramid(key))
+
+        // A rejected write is tried again by the next request
+        cache.storePyramid(key, new MatRegionProvider(image(300)), { Runnable write ->
+            admissions.incrementAndGet()
+            write.run()
+        } as Consumer<Runnable>)
+        cache.writer.submit({} as Runnable).get()
+        assertEquals(2, admissions.get())
+        assertTrue(cache.getPyramid(key) instanceof TiledPyramid)
+        cache.close()
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.metrics
+
+import de.christianmahnke.lab.images.opencv.BackgroundRemover
+import de.christianmahnke.lab.images.opencv.FoldRemover
+import de.christianmahnke.lab.images.opencv.OpenCVUtil
+import de.christianmahnke.lab.images.opencv.StageRecorder
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Scalar
+import org.springframework.util.ResourceUtils
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertNull
+
+@TypeChecked
+@Slf4j
+class QualityMetricsTest {
+    MeterRegistry registry
+    QualityMetrics metrics
+
+    @BeforeEach
+    void setup() {
+        registry = new SimpleMeterRegistry()
+        metrics = new QualityMetrics(registry, 'test')
+    }
+
+    long stageCount(String stage) {
+        return registry.get(QualityMetrics.STAGE).tag(QualityMetrics.QUALITY_TAG, 'test').tag('stage', stage).timer().count()
+    }
+
+    @Test
+    void testFoldStages() {
+        File file = ResourceUtils.getFile("classpath:images/DE-611-HS-3461927/00000003.jpg")
+        Mat img = OpenCVUtil.loadImage(file)
+        FoldRemover fr = new FoldRemover(img, FoldRemover.guessSide(file.toString()))
+        fr.setRecorder(metrics)
+        fr.processMat().release()
+        assertEquals(1, stageCount(StageRecorder.LINE_DETECTION))
+        assertEquals(1, stageCount(StageRecorder.CUT_SCORING))
+        assertEquals(1, stageCount(StageRecorder.WARP))
+        assertNull(registry.find(QualityMetrics.FALLBACK).counter())
+        img.release()
+    }
+
+    @Test
+    void testFallback() {
+        // Nothing to detect on an empty page
+        Mat img = new Mat(500, 400, CvType.CV_8UC3, new Scalar(255, 255, 255))
+        FoldRemover fr = new FoldRemover(img, FoldRemover.Side.RECTO.name())
+        fr.setRecorder(metrics)
+        assertEquals(img, fr.processMat())
+        fr.analyze()
+        assertEquals(2d, registry.get(QualityMetrics.FALLBACK).tag('exception', 'RecognitionException').counter().count())
+        assertNull(registry.find(QualityMetrics.STAGE).tag('stage', StageRecorder.WARP).timer())
+        img.release()
+    }
+
+    @Test
+    void testBackgroundStages() {
+        File file = ResourceUtils.getFile("classpath:images/record_DE-MUS-062622_kenom_127703/vs.jpg")
+        BackgroundRemover br = new BackgroundRemover(OpenCVUtil.loadImage(file))
+        br.setRecorder(metrics)
+        br.processMat().release()
+        assertEquals(1, stageCount(StageRecorder.FLOOD_FILL))
+        assertEquals(1, stageCount(StageRecorder.ALPHA_MERGE))
+    }
+
+    @Test
+    void testInput() {
+        Mat img = new Mat(1000, 2000, CvType.CV_8UC3)
+        long pixels = metrics.input(img)
+        assertEquals(2d, registry.get(QualityMetrics.INPUT).summary().totalAmount())
+        assertEquals(2d, registry.get(QualityMetrics.IN_FLIGHT).gauge().value(), 0.0001d)
+        metrics.done(pixels)
+        assertEquals(0d, registry.get(QualityMetrics.IN_FLIGHT).gauge().value(), 0.0001d)
+        img.release()
+    }
+}
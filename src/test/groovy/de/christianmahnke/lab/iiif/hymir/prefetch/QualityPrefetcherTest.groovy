@@ -0,0 +1,150 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.prefetch
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import de.christianmahnke.lab.iiif.hymir.FoldImageQualityService
+import de.christianmahnke.lab.iiif.hymir.admission.QualityExecutor
+import de.christianmahnke.lab.iiif.hymir.util.ImageSource
+import de.christianmahnke.lab.iiif.hymir.util.RequestedSize
+import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
+import de.digitalcollections.iiif.model.image.ImageApiProfile
+import groovy.transform.TypeChecked
+import org.junit.jupiter.api.Test
+
+import javax.imageio.ImageReader
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CopyOnWriteArrayList
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@TypeChecked
+class QualityPrefetcherTest {
+    static final ImageSource SOURCE = { String identifier -> new ByteArrayInputStream(identifier.getBytes(StandardCharsets.UTF_8)) } as ImageSource
+
+    static class RecordingService implements ImageQualityService.Source {
+        List<String> processed = new CopyOnWriteArrayList<String>()
+
+        @Override
+        String name() {
+            return "Recording"
+        }
+
+        @Override
+        ImageApiProfile.Quality getQuality() {
+            return new ImageApiProfile.Quality("recording")
+        }
+
+        @Override
+        boolean enabled() {
+            return true
+        }
+
+        @Override
+        boolean hasAlpha() {
+            return false
+        }
+
+        @Override
+        ImageReader processStream(String identifier, InputStream inputStream) {
+            processed.add(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8))
+            return null
+        }
+    }
+
+    static JsonNode manifest(int count) {
+        List<Map<String, Object>> canvases = (1..count).collect { int i ->
+            [images: [[resource: [service: ['@context': 'http://iiif.io/api/image/2/context.json', '@id': "https://example.com/image/v2/page-${i}".toString()]]]]] as Map<String, Object>
+        }
+        return new ObjectMapper().valueToTree([sequences: [[canvases: canvases]]])
+    }
+
+    static void await(QualityPrefetcher prefetcher) {
+        long deadline = System.currentTimeMillis() + 10000
+        while ((!prefetcher.inFlight.isEmpty()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        assertTrue(prefetcher.inFlight.isEmpty())
+    }
+
+    @Test
+    void testManifestAndNeighbours() {
+        RecordingService service = new RecordingService()
+        QualityPrefetcher prefetcher = new QualityPrefetcher([service] as List<ImageQualityService.Source>, SOURCE, 2, 1)
+        prefetcher.manifestLoaded('manifest', () -> manifest(8))
+        await(prefetcher)
+        assertEquals(['page-1', 'page-2'], service.processed)
+
+        prefetcher.viewed('page-5', service)
+        await(prefetcher)
+        assertEquals(['page-1', 'page-2', 'page-6', 'page-4'], service.processed)
+
+        // Already prefetched images aren't processed again
+        prefetcher.viewed('page-2', service)
+        await(prefetcher)
+        assertEquals(['page-1', 'page-2', 'page-6', 'page-4', 'page-3'], service.processed)
+        prefetcher.close()
+    }
+
+    @Test
+    void testBusy() {
+        RecordingService service = new RecordingService()
+        QualityPrefetcher prefetcher = new QualityPrefetcher([service] as List<ImageQualityService.Source>, SOURCE, 2, 1)
+        QualityExecutor executor = new QualityExecutor(1, 1, 1024 * 1024, 1, 100) {
+            @Override
+            int getWaiting() {
+                return 1
+            }
+        }
+        prefetcher.setQualityExecutor(executor)
+        prefetcher.manifestLoaded('manifest', () -> manifest(8))
+        prefetcher.prefetch(service, 'page-1')
+        await(prefetcher)
+        assertTrue(service.processed.isEmpty())
+        prefetcher.close()
+        executor.close()
+    }
+
+    static class SizeRecordingService extends FoldImageQualityService {
+        List<String> processed = new CopyOnWriteArrayList<String>()
+
+        @Override
+        ImageReader processStream(String identifier, InputStream inputStream, RequestedSize size) {
+            processed.add("${new String(inputStream.readAllBytes(), StandardCharsets.UTF_8)} ${size != null ? size : 'full'}".toString())
+            return null
+        }
+    }
+
+    @Test
+    void testSizes() {
+        SizeRecordingService service = new SizeRecordingService()
+        QualityPrefetcher prefetcher = new QualityPrefetcher([service] as List<ImageQualityService.Source>, SOURCE, 1, 1)
+        prefetcher.setSizes('full !400,400')
+        prefetcher.manifestLoaded('manifest', () -> manifest(3))
+        await(prefetcher)
+        assertEquals(['page-1 full', 'page-1 !400,400'], service.processed)
+
+        // Neighbours are processed in the requested size, which decides about the reduction
+        prefetcher.viewed('page-2', service, RequestedSize.parse(',200'))
+        await(prefetcher)
+        assertEquals(['page-1 full', 'page-1 !400,400', 'page-3 ,200', 'page-1 ,200'], service.processed)
+        prefetcher.close()
+    }
+}
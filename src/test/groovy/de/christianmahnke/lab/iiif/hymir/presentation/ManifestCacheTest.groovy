@@ -0,0 +1,124 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.presentation
+
+import de.digitalcollections.iiif.model.jackson.IiifObjectMapper
+import de.digitalcollections.iiif.model.sharedcanvas.Manifest
+import groovy.transform.TypeChecked
+import org.junit.jupiter.api.Test
+import org.springframework.http.server.ServletServerHttpRequest
+import org.springframework.http.server.ServletServerHttpResponse
+import org.springframework.http.MediaType
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.mock.web.MockHttpServletResponse
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertNotEquals
+import static org.junit.jupiter.api.Assertions.assertNull
+import static org.junit.jupiter.api.Assertions.assertSame
+
+@TypeChecked
+class ManifestCacheTest {
+    static IiifObjectMapper mapper = new IiifObjectMapper()
+
+    static CachedManifest manifest(String identifier, String version, String label = 'Test') {
+        Manifest manifest = new Manifest("http://example.com/${identifier}/manifest".toString(), label)
+        return new CachedManifest(identifier, version, manifest, mapper.writeValueAsBytes(manifest))
+    }
+
+    @Test
+    void testSingleFlight() {
+        ManifestCache cache = new ManifestCache(1024 * 1024)
+        AtomicInteger loads = new AtomicInteger()
+        CountDownLatch start = new CountDownLatch(1)
+        ExecutorService executor = Executors.newFixedThreadPool(8)
+        List<Future<CachedManifest>> results = new ArrayList<>()
+        for (int i = 0; i < 16; i++) {
+            results.add(executor.submit({
+                start.await()
+                return cache.get('a', '1', () -> {
+                    loads.incrementAndGet()
+                    Thread.sleep(200)
+                    return manifest('a', '1')
+                })
+            } as Callable<CachedManifest>))
+        }
+        start.countDown()
+        CachedManifest first = results.get(0).get()
+        for (Future<CachedManifest> result in results) {
+            assertSame(first, result.get())
+        }
+        executor.shutdown()
+        assertEquals(1, loads.get())
+        assertSame(first, cache.lookup(first.manifest))
+    }
+
+    @Test
+    void testVersion() {
+        ManifestCache cache = new ManifestCache(1024 * 1024)
+        CachedManifest first = cache.get('a', '1', () -> manifest('a', '1'))
+        assertSame(first, cache.get('a', '1', () -> manifest('a', '1')))
+        CachedManifest changed = cache.get('a', '2', () -> manifest('a', '2', 'Changed'))
+        assertEquals('2', changed.version)
+        assertNotEquals(first.etag, changed.etag)
+        assertSame(changed, cache.get('a', '2', () -> manifest('a', '2')))
+        // Without a version nothing is cached
+        CachedManifest unversioned = cache.get('b', null, () -> manifest('b', null))
+        assertNull(cache.lookup(unversioned.manifest))
+        assertEquals(1, cache.size())
+    }
+
+    @Test
+    void testETag() {
+        ManifestCache cache = new ManifestCache(1024 * 1024)
+        CachedManifest cached = cache.get('a', '1', () -> manifest('a', '1'))
+        ManifestETagAdvice advice = new ManifestETagAdvice(cache)
+
+        MockHttpServletResponse response = new MockHttpServletResponse()
+        ServletServerHttpResponse serverResponse = new ServletServerHttpResponse(response)
+        // The body is left to the message converter
+        assertSame(cached.manifest, advice.beforeBodyWrite(cached.manifest, null, MediaType.APPLICATION_JSON, null,
+            new ServletServerHttpRequest(new MockHttpServletRequest()), serverResponse))
+        serverResponse.flush()
+        assertEquals(cached.etag, response.getHeader('ETag'))
+        assertEquals(200, response.getStatus())
+        assertEquals(0, response.getContentAsByteArray().length)
+
+        MockHttpServletRequest conditional = new MockHttpServletRequest()
+        conditional.addHeader('If-None-Match', cached.etag)
+        response = new MockHttpServletResponse()
+        serverResponse = new ServletServerHttpResponse(response)
+        assertNull(advice.beforeBodyWrite(cached.manifest, null, MediaType.APPLICATION_JSON, null,
+            new ServletServerHttpRequest(conditional), serverResponse))
+        serverResponse.flush()
+        assertEquals(304, response.getStatus())
+        assertEquals(0, response.getContentAsByteArray().length)
+
+        // Manifests not in the cache are passed on
+        Manifest other = manifest('b', '1').manifest
+        assertSame(other, advice.beforeBodyWrite(other, null, MediaType.APPLICATION_JSON, null,
+            new ServletServerHttpRequest(new MockHttpServletRequest()), new ServletServerHttpResponse(new MockHttpServletResponse())))
+    }
+}
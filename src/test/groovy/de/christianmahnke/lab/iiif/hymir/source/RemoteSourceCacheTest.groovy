@@ -0,0 +1,170 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.source
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import groovy.transform.TypeChecked
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertFalse
+import static org.junit.jupiter.api.Assertions.assertThrows
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@TypeChecked
+class RemoteSourceCacheTest {
+    @TempDir
+    Path directory
+
+    HttpServer server
+    volatile byte[] content = 'first'.getBytes(StandardCharsets.UTF_8)
+    volatile String etag = '"1"'
+    AtomicInteger requests = new AtomicInteger()
+    AtomicInteger downloads = new AtomicInteger()
+
+    @BeforeEach
+    void start() {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+        server.setExecutor(Executors.newCachedThreadPool())
+        server.createContext('/image.jpg', { HttpExchange exchange -> serve(exchange) })
+        server.createContext('/missing.jpg', { HttpExchange exchange ->
+            exchange.sendResponseHeaders(404, -1)
+            exchange.close()
+        })
+        server.start()
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0)
+    }
+
+    protected void serve(HttpExchange exchange) {
+        requests.incrementAndGet()
+        if (exchange.getRequestHeaders().getFirst('If-None-Match') == etag) {
+            exchange.sendResponseHeaders(304, -1)
+            exchange.close()
+            return
+        }
+        downloads.incrementAndGet()
+        // Give concurrent requests a chance to pile up
+        Thread.sleep(200)
+        exchange.getResponseHeaders().add('ETag', etag)
+        exchange.sendResponseHeaders(200, content.length)
+        exchange.getResponseBody().write(content)
+        exchange.close()
+    }
+
+    URI uri(String path) {
+        return URI.create("http://localhost:${server.getAddress().getPort()}${path}")
+    }
+
+    static byte[] read(RemoteSourceCache cache, URI uri) {
+        InputStream is = cache.open(uri)
+        try {
+            return is.readAllBytes()
+        } finally {
+            is.close()
+        }
+    }
+
+    @Test
+    void testSingleFlight() {
+        RemoteSourceCache cache = new RemoteSourceCache(directory.toString(), 1024 * 1024, 300)
+        CountDownLatch start = new CountDownLatch(1)
+        ExecutorService executor = Executors.newFixedThreadPool(8)
+        List<Future<byte[]>> results = new ArrayList<>()
+        for (int i = 0; i < 16; i++) {
+            results.add(executor.submit({
+                start.await()
+                return read(cache, uri('/image.jpg'))
+            } as Callable<byte[]>))
+        }
+        start.countDown()
+        for (Future<byte[]> result in results) {
+            assertArrayEquals(content, result.get())
+        }
+        executor.shutdown()
+        assertEquals(1, downloads.get())
+        assertEquals(1, requests.get())
+        assertTrue(cache.open(uri('/image.jpg')) instanceof FileInputStream)
+    }
+
+    @Test
+    void testRevalidate() {
+        RemoteSourceCache cache = new RemoteSourceCache(directory.toString(), 1024 * 1024, 0)
+        read(cache, uri('/image.jpg'))
+        Path first = cache.get(uri('/image.jpg').toString()).file
+        assertArrayEquals(content, read(cache, uri('/image.jpg')))
+        assertEquals(3, requests.get())
+        assertEquals(1, downloads.get())
+
+        content = 'second'.getBytes(StandardCharsets.UTF_8)
+        etag = '"2"'
+        assertArrayEquals(content, read(cache, uri('/image.jpg')))
+        assertEquals(2, downloads.get())
+        // The replaced file is removed
+        assertFalse(Files.exists(first))
+        assertEquals(1, cache.size())
+    }
+
+    @Test
+    void testNotFound() {
+        RemoteSourceCache cache = new RemoteSourceCache(directory.toString(), 1024 * 1024, 300)
+        assertThrows(FileNotFoundException.class, { read(cache, uri('/missing.jpg')) })
+        assertEquals(0, cache.size())
+    }
+
+    @Test
+    void testStale() {
+        RemoteSourceCache cache = new RemoteSourceCache(directory.toString(), 1024 * 1024, 0)
+        URI image = uri('/image.jpg')
+        read(cache, image)
+        server.stop(0)
+        assertArrayEquals(content, read(cache, image))
+        assertThrows(IOException.class, { read(cache, uri('/other.jpg')) })
+    }
+
+    @Test
+    void testRestart() {
+        RemoteSourceCache cache = new RemoteSourceCache(directory.toString(), 1024 * 1024, 300)
+        read(cache, uri('/image.jpg'))
+        Files.write(directory.resolve('interrupted.tmp'), new byte[1])
+
+        RemoteSourceCache restarted = new RemoteSourceCache(directory.toString(), 1024 * 1024, 300)
+        assertEquals(1, restarted.size())
+        assertArrayEquals(content, read(restarted, uri('/image.jpg')))
+        assertEquals(1, requests.get())
+        assertFalse(Files.exists(directory.resolve('interrupted.tmp')))
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.util
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import groovy.transform.TypeChecked
+import org.junit.jupiter.api.Test
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+
+@TypeChecked
+class ManifestImagesTest {
+    static final String MANIFEST = '''{
+        "@context": "http://iiif.io/api/presentation/2/context.json",
+        "sequences": [{"canvases": [
+            {"images": [{"resource": {"service": {"@context": "http://iiif.io/api/image/2/context.json", "@id": "https://example.com/image/v2/DE-611-HS-3461927%2F00000001"}}}]},
+            {"images": [{"resource": {"service": {"@context": "http://iiif.io/api/image/2/context.json", "@id": "https://example.com/image/v2/DE-611-HS-3461927%2F00000002/"}}}]}
+        ]}],
+        "items": [{"type": "Canvas", "items": [{"items": [{"body": {"service": [{"id": "https://example.com/image/v3/vs", "type": "ImageService3"}]}}]}]}]
+    }'''
+
+    @Test
+    void testIdentifiers() {
+        JsonNode manifest = new ObjectMapper().readTree(MANIFEST)
+        assertEquals(['DE-611-HS-3461927/00000001', 'DE-611-HS-3461927/00000002', 'vs'], ManifestImages.identifiers(manifest))
+    }
+
+    @Test
+    void testCanvases() {
+        JsonNode manifest = new ObjectMapper().readTree(MANIFEST)
+        assertEquals([['DE-611-HS-3461927/00000001'], ['DE-611-HS-3461927/00000002'], ['vs']], ManifestImages.canvases(manifest))
+    }
+}
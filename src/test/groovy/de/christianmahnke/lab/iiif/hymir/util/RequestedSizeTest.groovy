@@ -0,0 +1,60 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.util
+
+import groovy.transform.TypeChecked
+import org.junit.jupiter.api.Test
+
+import java.awt.Dimension
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertNull
+
+@TypeChecked
+class RequestedSizeTest {
+
+    @Test
+    void testParse() {
+        assertEquals(new RequestedSize(true, 400, 400), RequestedSize.parse('!400,400'))
+        assertEquals(new RequestedSize(false, 400, 0), RequestedSize.parse('400,'))
+        assertEquals(new RequestedSize(false, 0, 300), RequestedSize.parse(',300'))
+        assertEquals(new RequestedSize(false, 400, 300), RequestedSize.parse('^400,300'))
+        assertNull(RequestedSize.parse('full'))
+        assertNull(RequestedSize.parse('max'))
+        assertNull(RequestedSize.parse('pct:10'))
+        assertNull(RequestedSize.parse(','))
+        assertNull(RequestedSize.parse('!400,'))
+    }
+
+    @Test
+    void testFromPath() {
+        assertEquals(new RequestedSize(true, 400, 400), RequestedSize.fromPath('/image/v2/DE-611-HS-3461927%2F00000001.jpg/full/%21400,400/0/nofold.png'))
+        assertEquals(new RequestedSize(false, 200, 0), RequestedSize.fromPath('/image/v3/record/full/200,/90/nofold.jpg'))
+        assertNull(RequestedSize.fromPath('/image/v2/record/0,0,100,100/200,/0/nofold.jpg'))
+        assertNull(RequestedSize.fromPath('/image/v2/record/info.json'))
+        assertNull(RequestedSize.current())
+    }
+
+    @Test
+    void testResolve() {
+        assertEquals(new Dimension(300, 400), RequestedSize.parse('!400,400').resolve(6000, 8000))
+        assertEquals(new Dimension(400, 533), RequestedSize.parse('400,').resolve(6000, 8000))
+        assertEquals(new Dimension(150, 200), RequestedSize.parse(',200').resolve(6000, 8000))
+        assertEquals(new Dimension(100, 100), RequestedSize.parse('100,100').resolve(6000, 8000))
+    }
+}
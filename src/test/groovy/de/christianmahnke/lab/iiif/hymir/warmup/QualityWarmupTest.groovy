@@ -0,0 +1,93 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.iiif.hymir.warmup
+
+import de.christianmahnke.lab.iiif.hymir.FoldImageQualityService
+import de.christianmahnke.lab.iiif.hymir.cache.ProcessedImageCache
+import de.christianmahnke.lab.iiif.hymir.metrics.QualityMetrics
+import de.christianmahnke.lab.iiif.hymir.prefetch.QualityPrefetcherTest
+import de.digitalcollections.iiif.hymir.image.business.api.ImageQualityService
+import groovy.transform.TypeChecked
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+
+import javax.imageio.ImageReader
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertFalse
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@TypeChecked
+class QualityWarmupTest {
+
+    @Test
+    void testWarmup() {
+        FoldImageQualityService fold = new FoldImageQualityService() {
+            @Override
+            boolean enabled() {
+                return true
+            }
+        }
+        QualityPrefetcherTest.RecordingService failing = new QualityPrefetcherTest.RecordingService() {
+            @Override
+            ImageReader processStream(String identifier, InputStream inputStream) {
+                throw new IllegalStateException("Broken")
+            }
+        }
+        SimpleMeterRegistry registry = new SimpleMeterRegistry()
+        QualityWarmup warmup = new QualityWarmup([fold, failing] as List<ImageQualityService>, '300, 500', 2)
+        warmup.setMeterRegistry(registry)
+        assertFalse(warmup.isDone())
+        warmup.warmup()
+        assertTrue(warmup.isDone())
+
+        Map<String, Long> steps = warmup.getSteps()
+        assertEquals(QualityWarmup.NATIVE, steps.keySet().first())
+        // The failing service isn't recorded
+        assertEquals(5, steps.size())
+        assertEquals(4, registry.get(QualityMetrics.WARMUP).tag('step', QualityWarmup.quality(fold)).timer().count())
+    }
+
+    @Test
+    void testWithoutCache(@TempDir Path directory) {
+        ProcessedImageCache cache = new ProcessedImageCache(64, 0, directory.toString())
+        FoldImageQualityService fold = new FoldImageQualityService() {
+            @Override
+            boolean enabled() {
+                return true
+            }
+        }
+        fold.setProcessedImageCache(cache)
+        QualityWarmup warmup = new QualityWarmup([fold] as List<ImageQualityService>, '300', 2)
+        warmup.warmup()
+        // Each iteration ran the pipeline
+        assertEquals(3, warmup.getSteps().size())
+        cache.close()
+        assertEquals(0, cache.size())
+        assertEquals(0, Files.list(directory).count())
+        assertTrue(cache.isEnabled())
+    }
+
+    @Test
+    void testPage() {
+        assertTrue(QualityWarmup.page(400).remaining() > 0)
+    }
+}
@@ -23,6 +23,7 @@ import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Tag
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.TestInfo
+import org.opencv.core.Core
 import org.opencv.core.Mat
 import org.opencv.imgproc.Imgproc
 import org.springframework.util.ResourceUtils
@@ -30,6 +31,7 @@ import org.springframework.util.ResourceUtils
 import javax.imageio.ImageIO
 import java.awt.image.BufferedImage
 
+import static org.junit.jupiter.api.Assertions.assertEquals
 import static org.junit.jupiter.api.Assertions.assertNotNull
 import static org.junit.jupiter.api.Assertions.assertTrue
 
@@ -108,4 +110,31 @@ class BackgroundRemoverTest {
         }
     }
 
+    @Test
+    void stripsMatchFloodFill() {
+        files.forEach (i, file) -> {
+            Mat image = OpenCVUtil.loadImage(file)
+            Mat inverted = new Mat()
+            Core.bitwise_not(image, inverted)
+            Mat gray = OpenCVUtil.cvtColor(image, Imgproc.COLOR_BGR2GRAY)
+            Mat grayInverted = OpenCVUtil.cvtColor(inverted, Imgproc.COLOR_BGR2GRAY)
+            [image, inverted, gray, grayInverted].each { Mat variant ->
+                BackgroundRemover floodFill = new BackgroundRemover(variant)
+                floodFill.setEngine(BackgroundRemover.Engine.FLOOD_FILL)
+                Mat expected = floodFill.generateAlphaMask(variant)
+                [0, 1, 37, variant.rows()].each { int height ->
+                    BackgroundRemover strips = new BackgroundRemover(variant)
+                    strips.setEngine(BackgroundRemover.Engine.STRIPS)
+                    strips.setStripHeight(height)
+                    Mat mask = strips.generateAlphaMask(variant)
+                    Mat diff = new Mat()
+                    Core.absdiff(expected, mask, diff)
+                    assertEquals(0, Core.countNonZero(diff), "Masks of ${file} (${variant.channels()} channels) differ with strips of ${height} rows")
+                    mask.release()
+                    diff.release()
+                }
+                expected.release()
+            }
+        }
+    }
 }
@@ -30,6 +30,7 @@ import org.springframework.util.ResourceUtils
 import javax.imageio.ImageIO
 import java.awt.image.BufferedImage
 
+import static org.junit.jupiter.api.Assertions.assertEquals
 import static org.junit.jupiter.api.Assertions.assertTrue
 import static org.junit.jupiter.api.Assertions.fail
 
@@ -169,4 +170,33 @@ class FoldRemoverTest {
             }
         }
     }
+
+    @Test
+    @Tag('analysis-width')
+    void testAnalysisWidth(TestInfo testInfo) {
+        files.forEach (k, v) -> {
+            String side = FoldRemover.guessSide(v.toString())
+            if (side == FoldRemover.Side.NONE.name()) {
+                return
+            }
+            Mat image = OpenCVUtil.loadImage(v)
+            FoldRemover.Page full = new FoldRemover(image, side).getPage()
+            full.findCut()
+            FoldRemover downscaled = new FoldRemover(image, side)
+            downscaled.setAnalysisWidth(1000)
+            FoldRemover.Page proxy = downscaled.getPage()
+            proxy.findCut()
+            log.info("Cut of ${v} at full resolution ${full.cut}, downscaled ${proxy.cut}")
+            assertEquals(full.cut.angleDeg, proxy.cut.angleDeg, 1d)
+            assertEquals(full.cut.x1, proxy.cut.x1, image.cols() * 0.01d)
+            assertEquals(full.cut.x2, proxy.cut.x2, image.cols() * 0.01d)
+
+            downscaled.setKeepSize(true)
+            Mat result = downscaled.process()
+            assertTrue(image.size().equals(result.size()))
+            def fileName = "output-" + String.join("-", testInfo.getTags()) + "-${side}-${k}.png"
+            OpenCVUtil.writeImage(fileName, result)
+            full.release()
+        }
+    }
 }
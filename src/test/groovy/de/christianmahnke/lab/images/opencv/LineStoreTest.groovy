@@ -0,0 +1,112 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv
+
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.opencv.core.Mat
+import org.springframework.util.ResourceUtils
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+
+@TypeChecked
+@Slf4j
+class LineStoreTest {
+    static Map<Integer, File> files = new HashMap<Integer, File>()
+
+    @BeforeEach
+    void setup() {
+        (2..8).each {
+            files[it] = ResourceUtils.getFile("classpath:images/DE-611-HS-3461927/" + String.format("%08d", it) + ".jpg")
+        }
+    }
+
+    static Mat edges(File file) {
+        return OpenCVUtil.Canny(OpenCVUtil.loadImage(file), 30, 120, 3)
+    }
+
+    @Test
+    void testDetect() {
+        files.forEach (k, v) -> {
+            Mat edges = edges(v)
+            double minLineLength = edges.rows() / FoldRemover.minLineLengthDiv
+            double maxLineGap = edges.rows() / FoldRemover.maxLineGapDiv
+            List<List<Double>> expected = OpenCVUtil.HoughLinesP(edges, 5, Math.PI / 180, 50, minLineLength, maxLineGap)
+            LineStore store = LineStore.detect(edges, 5, Math.PI / 180, 50, minLineLength, maxLineGap, 1)
+            assertEquals(expected.size(), store.size())
+            FoldRemover.Page page = new FoldRemover(edges, FoldRemover.guessSide(v.toString())).getPage()
+            page.addAll(expected)
+            List<FoldRemover.Line> lines = page.getLines()
+            for (int i = 0; i < store.size(); i++) {
+                FoldRemover.Line line = lines.get(i)
+                assertEquals(line.x1, store.x1(i))
+                assertEquals(line.y2, store.y2(i))
+                assertEquals(line.distance, store.getDistances()[i])
+                assertEquals(line.angleDeg, store.angleDeg(i))
+                assertEquals(line.averageX, store.averageX(i))
+            }
+            edges.release()
+        }
+    }
+
+    @Test
+    void testFilter() {
+        LineStore store = LineStore.of([[11d, 400d, 10d, 20d], [3d, 5d, 4d, 6d]])
+        assertEquals(2, store.size())
+        assertEquals(-90d, store.angleDeg(0), 0.2d)
+        assertEquals(1, store.filterAngle(FoldRemover.minAngle, FoldRemover.maxAngle).size())
+        assertEquals(1, store.filterAverageX(0, 5).size())
+        assertEquals(1, LineStore.min([3d, 1d, 1d] as double[]))
+        assertEquals(-1, LineStore.min(new double[0]))
+    }
+
+    @Test
+    void testCutMatchesLines() {
+        files.forEach (k, v) -> {
+            Mat image = OpenCVUtil.loadImage(v)
+            String side = FoldRemover.guessSide(v.toString())
+            FoldRemover.Page page = new FoldRemover(image, side).getPage()
+            page.findLines()
+            // Pick the cut the way it was done with Line objects
+            List<FoldRemover.Line> lines = page.getLines().findAll { FoldRemover.Line line -> FoldRemover.minAngle >= line.angleDeg && line.angleDeg >= FoldRemover.maxAngle }
+            int w = image.cols()
+            List<FoldRemover.Line> candidates
+            if (side == FoldRemover.Side.VERSO.name()) {
+                candidates = lines.findAll { FoldRemover.Line line -> w - (w * FoldRemover.xWindow) as Integer <= line.averageX && line.averageX <= w }
+            } else {
+                candidates = lines.findAll { FoldRemover.Line line -> 0 <= line.averageX && line.averageX <= (w * FoldRemover.xWindow) as Integer }
+            }
+            candidates.each { FoldRemover.Line line ->
+                double x = side == FoldRemover.Side.VERSO.name() ? line.width : w - line.averageX
+                line.score = (x * FoldRemover.xWheight) * line.distance
+            }
+            candidates.sort { FoldRemover.Line line -> line.score }
+
+            page.findCut()
+            log.info("Cut of ${v} is ${page.cut}")
+            FoldRemover.Line expected = candidates.get(0)
+            // The cut is extended to the borders, angle and position are the ones of the picked line
+            assertEquals(expected.angleDeg, page.cut.angleDeg)
+            assertEquals(expected.averageX, page.cut.averageX)
+            page.release()
+            image.release()
+        }
+    }
+}
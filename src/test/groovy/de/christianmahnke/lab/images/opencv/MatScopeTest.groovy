@@ -0,0 +1,77 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv
+
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+import org.opencv.core.Scalar
+import org.springframework.util.ResourceUtils
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertFalse
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@TypeChecked
+@Slf4j
+class MatScopeTest {
+
+    @BeforeAll
+    static void setup() {
+        OpenCVUtil.load()
+    }
+
+    @Test
+    void releaseOnClose() {
+        Mat tracked
+        Mat kept
+        Mat crop
+        long before = MatScope.liveBytes()
+        try (MatScope scope = new MatScope()) {
+            tracked = scope.track(new Mat(100, 100, CvType.CV_8UC3, new Scalar(1, 2, 3)))
+            kept = scope.keep(scope.track(new Mat(10, 10, CvType.CV_8UC1)))
+            Mat parent = scope.track(new Mat(50, 50, CvType.CV_8UC1, new Scalar(42)))
+            crop = new Mat(parent, new Rect(10, 10, 20, 20))
+            assertEquals(before + 100 * 100 * 3 + 50 * 50, MatScope.liveBytes())
+        }
+        assertTrue(tracked.empty())
+        assertFalse(kept.empty())
+        // Data shared with a released Mat stays valid
+        assertEquals(42d, crop.get(5, 5)[0])
+        assertEquals(before, MatScope.liveBytes())
+    }
+
+    @Test
+    void noOpenScopesAfterProcessing() {
+        File file = ResourceUtils.getFile("classpath:images/DE-611-HS-3461927/00000002.jpg")
+        long released = MatScope.releasedBytes()
+        long open = MatScope.openScopes()
+        Mat mat = OpenCVUtil.loadImage(file)
+        FoldRemover fr = new FoldRemover(mat, FoldRemover.guessSide(file.toString()))
+        Mat result = fr.processMat()
+        BackgroundRemover br = new BackgroundRemover(result)
+        br.processMat()
+        assertEquals(open, MatScope.openScopes())
+        assertTrue(MatScope.releasedBytes() > released)
+        fr.close()
+    }
+}
@@ -23,10 +23,16 @@ import groovy.transform.TypeChecked
 import groovy.util.logging.Slf4j
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.TestInfo
+import org.opencv.core.Core
+import org.opencv.core.CvType
 import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.core.Scalar
+import org.opencv.imgcodecs.Imgcodecs
 
 import javax.imageio.ImageIO
 import java.awt.image.BufferedImage
+import java.nio.ByteBuffer
 
 import static org.junit.jupiter.api.Assertions.*
 
@@ -151,4 +157,103 @@ class OpenCVUtilTest extends TestPatternBase {
             assertTrue(checkTranparentArea(pattern, bi) == null || checkTranparentArea(pattern, bi))
         }
     }
+
+    @Test
+    void matToBufferedImageWithAlphaTest() {
+        Mat bgr = new Mat(20, 30, CvType.CV_8UC3, new Scalar(10, 20, 30))
+        Mat alpha = new Mat(20, 30, CvType.CV_8UC1, new Scalar(255))
+        alpha.submat(0, 10, 0, 30).setTo(new Scalar(0))
+        BufferedImage image = OpenCVUtil.matToBufferedImageWithAlpha(bgr, alpha)
+        assertEquals(30, image.getWidth())
+        assertTrue(OpenCVUtil.isTransparent(image, 1, 1))
+        assertEquals(0xFF1E140A as int, image.getRGB(1, 15))
+    }
+
+    @Test
+    void roundTripAlphaTest() {
+        Mat bgra = new Mat(40, 50, CvType.CV_8UC4, new Scalar(10, 20, 30, 255))
+        bgra.submat(0, 20, 0, 50).setTo(new Scalar(40, 50, 60, 0))
+        // Convert more than once to make sure reused scratch buffers don't leak into the results
+        for (int i = 0; i < 3; i++) {
+            BufferedImage image = OpenCVUtil.matToBufferedImage(bgra)
+            assertTrue(OpenCVUtil.isTransparent(image, 1, 1))
+            assertEquals(0xFF1E140A as int, image.getRGB(1, 30))
+
+            Mat result = OpenCVUtil.bufferedImageToMat(image)
+            assertEquals(4, result.channels())
+            assertArrayEquals([40d, 50d, 60d, 0d] as double[], result.get(1, 1))
+            assertArrayEquals([10d, 20d, 30d, 255d] as double[], result.get(30, 1))
+
+            Mat bgr = OpenCVUtil.bufferedImageToMat(image, true)
+            assertEquals(3, bgr.channels())
+            assertArrayEquals([10d, 20d, 30d] as double[], bgr.get(30, 1))
+
+            BufferedImage withoutAlpha = OpenCVUtil.matToBufferedImage(bgra, true)
+            assertEquals(BufferedImage.TYPE_3BYTE_BGR, withoutAlpha.getType())
+            assertEquals(0xFF1E140A as int, withoutAlpha.getRGB(1, 30))
+        }
+    }
+
+    @Test
+    void loadMappedBufferTest() {
+        for (pattern in this.patterns) {
+            ByteBuffer buffer = OpenCVUtil.readBuffer(new FileInputStream(pattern))
+            assertTrue(buffer.isDirect())
+            Mat mapped = OpenCVUtil.loadImage(buffer, null)
+            Mat heap = OpenCVUtil.loadImage(pattern.bytes, null)
+            assertEquals(heap.size(), mapped.size())
+            assertEquals(heap.channels(), mapped.channels())
+            assertEquals(0d, Core.norm(heap, mapped, Core.NORM_INF))
+        }
+    }
+
+    @Test
+    void loadReducedTest() {
+        MatOfByte jpeg = new MatOfByte()
+        Imgcodecs.imencode('.jpg', new Mat(600, 1001, CvType.CV_8UC3, new Scalar(10, 20, 30)), jpeg)
+        ByteBuffer content = ByteBuffer.wrap(jpeg.toArray())
+        for (int reduction in [1, 2, 4, 8]) {
+            Mat image = OpenCVUtil.loadImage(content, Imgcodecs.IMREAD_COLOR, reduction)
+            assertEquals((1001 + reduction - 1).intdiv(reduction), image.cols())
+            assertEquals(600.intdiv(reduction), image.rows())
+            assertEquals(3, image.channels())
+        }
+        assertEquals(1, OpenCVUtil.loadImage(content, Imgcodecs.IMREAD_GRAYSCALE, 4).channels())
+    }
+
+    @Test
+    void loadReducedOrientationTest() {
+        MatOfByte jpeg = new MatOfByte()
+        Imgcodecs.imencode('.jpg', new Mat(100, 200, CvType.CV_8UC3, new Scalar(10, 20, 30)), jpeg)
+        byte[] plain = jpeg.toArray()
+        // APP1 segment with an EXIF orientation of 6 (rotated by 90 degrees), inserted after the SOI marker
+        byte[] exif = [0xFF, 0xE1, 0x00, 0x22, 0x45, 0x78, 0x69, 0x66, 0x00, 0x00,
+                       0x4D, 0x4D, 0x00, 0x2A, 0x00, 0x00, 0x00, 0x08,
+                       0x00, 0x01, 0x01, 0x12, 0x00, 0x03, 0x00, 0x00, 0x00, 0x01, 0x00, 0x06, 0x00, 0x00,
+                       0x00, 0x00, 0x00, 0x00] as byte[]
+        ByteBuffer content = ByteBuffer.allocate(plain.length + exif.length)
+        content.put(plain, 0, 2).put(exif).put(plain, 2, plain.length - 2).flip()
+        // Make sure the orientation is there to be ignored
+        Mat oriented = Imgcodecs.imdecode(new MatOfByte(content.array()), Imgcodecs.IMREAD_COLOR)
+        assertEquals(100, oriented.cols())
+
+        Mat full = OpenCVUtil.loadImage(content, null)
+        assertEquals(200, full.cols())
+        assertEquals(100, full.rows())
+        for (int reduction in [2, 4, 8]) {
+            Mat reduced = OpenCVUtil.loadImage(content, Imgcodecs.IMREAD_COLOR, reduction)
+            assertEquals((full.cols() + reduction - 1).intdiv(reduction), reduced.cols())
+            assertEquals((full.rows() + reduction - 1).intdiv(reduction), reduced.rows())
+        }
+    }
+
+    @Test
+    void reductionFactorTest() {
+        assertEquals(8, OpenCVUtil.reductionFactor(6000, 8000, 400, 533))
+        assertEquals(4, OpenCVUtil.reductionFactor(6000, 8000, 1000, 1333))
+        assertEquals(2, OpenCVUtil.reductionFactor(1001, 600, 501, 300))
+        assertEquals(1, OpenCVUtil.reductionFactor(1000, 600, 600, 360))
+        assertEquals(1, OpenCVUtil.reductionFactor(1000, 600, 2000, 1200))
+    }
+
 }
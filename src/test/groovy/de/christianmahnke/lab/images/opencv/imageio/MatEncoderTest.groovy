@@ -0,0 +1,83 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.imageio
+
+import de.christianmahnke.lab.images.opencv.OpenCVUtil
+import groovy.transform.TypeChecked
+import org.junit.jupiter.api.Test
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Scalar
+import org.opencv.imgcodecs.Imgcodecs
+
+import java.nio.ByteBuffer
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertFalse
+import static org.junit.jupiter.api.Assertions.assertNull
+import static org.junit.jupiter.api.Assertions.assertThrows
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@TypeChecked
+class MatEncoderTest {
+    static {
+        // Loads the native library
+        OpenCVUtil.getBufferedImageType(3)
+    }
+
+    @Test
+    void testExtension() {
+        assertEquals('.jpg', MatEncoder.getExtension('JPEG'))
+        assertEquals('.png', MatEncoder.getExtension('png'))
+        assertNull(MatEncoder.getExtension('tif'))
+        assertFalse(MatEncoder.supports(null))
+        assertThrows(IllegalArgumentException, { MatEncoder.DEFAULT.encode(new Mat(1, 1, CvType.CV_8UC3), 'gif') })
+    }
+
+    @Test
+    void testPNGWithAlpha() {
+        Mat bgra = new Mat(30, 40, CvType.CV_8UC4, new Scalar(10, 20, 30, 255))
+        bgra.submat(0, 10, 0, 40).setTo(new Scalar(0, 0, 0, 0))
+        byte[] png = new MatEncoder(90, 9, 90).encode(bgra, 'png')
+        Mat decoded = OpenCVUtil.loadImage(ByteBuffer.wrap(png), null)
+        assertEquals(4, decoded.channels())
+        assertEquals(0d, Core.norm(bgra, decoded, Core.NORM_INF))
+    }
+
+    @Test
+    void testJPEG() {
+        Mat bgra = new Mat(30, 40, CvType.CV_8UC4, new Scalar(10, 20, 30, 255))
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        new MatEncoder(50, 3, 90).encode(bgra, 'jpeg', out)
+        Mat decoded = OpenCVUtil.loadImage(ByteBuffer.wrap(out.toByteArray()), Imgcodecs.IMREAD_UNCHANGED)
+        assertEquals(3, decoded.channels())
+        assertEquals(40, decoded.cols())
+    }
+
+    @Test
+    void testWebP() {
+        if (!MatEncoder.supports('webp')) {
+            return
+        }
+        Mat bgr = new Mat(30, 40, CvType.CV_8UC3, new Scalar(10, 20, 30))
+        byte[] webp = new MatEncoder(90, 3, 101).encode(bgr, 'webp')
+        assertTrue(new String(webp, 8, 4, 'US-ASCII') == 'WEBP')
+        assertEquals(0d, Core.norm(bgr, OpenCVUtil.loadImage(ByteBuffer.wrap(webp), null), Core.NORM_INF))
+    }
+}
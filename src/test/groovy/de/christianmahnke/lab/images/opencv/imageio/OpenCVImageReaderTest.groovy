@@ -24,12 +24,18 @@ import groovy.transform.TypeChecked
 import groovy.util.logging.Slf4j
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.TestInfo
+import org.opencv.core.CvType
 import org.opencv.core.Mat
+import org.opencv.core.Scalar
 
 import javax.imageio.ImageIO
+import javax.imageio.ImageReadParam
 import javax.imageio.ImageReader
+import javax.imageio.ImageTypeSpecifier
+import java.awt.Rectangle
 import java.awt.image.BufferedImage
 
+import static org.junit.jupiter.api.Assertions.assertEquals
 import static org.junit.jupiter.api.Assertions.assertNotNull
 import static org.junit.jupiter.api.Assertions.assertTrue
 
@@ -66,4 +72,56 @@ class OpenCVImageReaderTest extends TestPatternBase {
         }
     }
 
+    @Test
+    void readSubsampledRegionTest(TestInfo testInfo) {
+        Mat m = new Mat(1000, 800, CvType.CV_8UC3, new Scalar(255, 0, 0))
+        // Red square in the lower right corner
+        m.submat(500, 1000, 400, 800).setTo(new Scalar(0, 0, 255))
+        ImageReader matReader = OpenCVImageReader.getInstance(m)
+
+        ImageReadParam param = matReader.getDefaultReadParam()
+        param.setSourceSubsampling(4, 4, 0, 0)
+        BufferedImage result = matReader.read(0, param)
+        assertEquals(200, result.getWidth())
+        assertEquals(250, result.getHeight())
+
+        param.setSourceRegion(new Rectangle(400, 500, 1000, 1000))
+        param.setSourceSubsampling(3, 3, 0, 0)
+        result = matReader.read(0, param)
+        assertEquals(134, result.getWidth())
+        assertEquals(167, result.getHeight())
+        assertEquals(0xFFFF0000 as int, result.getRGB(10, 10))
+    }
+
+    @Test
+    void imageTypesTest(TestInfo testInfo) {
+        Map<Integer, Integer> types = [(CvType.CV_8UC1): BufferedImage.TYPE_BYTE_GRAY, (CvType.CV_8UC3): BufferedImage.TYPE_3BYTE_BGR, (CvType.CV_8UC4): BufferedImage.TYPE_4BYTE_ABGR]
+        types.each { cvType, biType ->
+            ImageReader matReader = OpenCVImageReader.getInstance(new Mat(10, 10, cvType))
+            ImageTypeSpecifier spec = matReader.getImageTypes(0).next()
+            assertEquals(biType, spec.getBufferedImageType())
+            assertEquals(biType, matReader.read(0).getType())
+        }
+    }
+
+    @Test
+    void encodeRegionTest(TestInfo testInfo) {
+        Mat m = new Mat(1000, 800, CvType.CV_8UC4, new Scalar(255, 0, 0, 255))
+        m.submat(500, 1000, 400, 800).setTo(new Scalar(0, 0, 255, 0))
+        OpenCVImageReader matReader = OpenCVImageReader.getInstance(m)
+        ImageReadParam param = matReader.getDefaultReadParam()
+        param.setSourceRegion(new Rectangle(400, 500, 1000, 1000))
+        param.setSourceSubsampling(4, 4, 0, 0)
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        matReader.write(param, "png", out)
+        BufferedImage result = ImageIO.read(new ByteArrayInputStream(out.toByteArray()))
+        assertEquals(100, result.getWidth())
+        assertEquals(125, result.getHeight())
+        assertTrue(OpenCVUtil.isTransparent(result, 10, 10))
+
+        BufferedImage roundTrip = ImageIO.read(OpenCVImageReader.getInputStreamFromImageReader(matReader))
+        assertEquals(800, roundTrip.getWidth())
+        assertEquals(0xFF0000FF as int, roundTrip.getRGB(10, 10))
+    }
+
 }
@@ -0,0 +1,156 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region
+
+import de.christianmahnke.lab.images.opencv.BackgroundRemover
+import de.christianmahnke.lab.images.opencv.FoldRemover
+import de.christianmahnke.lab.images.opencv.OpenCVUtil
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+import org.opencv.core.Scalar
+import org.springframework.util.ResourceUtils
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@TypeChecked
+@Slf4j
+class RegionTransformTest {
+    static final int TILE = 512
+
+    @BeforeAll
+    static void setup() {
+        OpenCVUtil.load()
+    }
+
+    static File pageFile(int page) {
+        return ResourceUtils.getFile("classpath:images/DE-611-HS-3461927/" + String.format("%08d", page) + ".jpg")
+    }
+
+    static Mat loadPage(int page) {
+        return OpenCVUtil.loadImage(pageFile(page))
+    }
+
+    // Makes sure the fold has been detected, otherwise the tiles would only be compared to the unaltered image
+    static void assertWarp(RegionTransform transform) {
+        boolean warp = transform instanceof WarpTransform
+        if (transform instanceof ChainedTransform) {
+            warp = ((ChainedTransform) transform).getTransforms().any { RegionTransform t -> t instanceof WarpTransform }
+        }
+        assertTrue(warp, "Expected a warp, got ${transform}")
+    }
+
+    static double maxDifference(Mat m1, Mat m2) {
+        Mat diff = new Mat()
+        Core.absdiff(m1, m2, diff)
+        double max = 0
+        for (int c = 0; c < diff.channels(); c++) {
+            Mat channel = new Mat()
+            Core.extractChannel(diff, channel, c)
+            max = Math.max(max, Core.minMaxLoc(channel).maxVal)
+        }
+        return max
+    }
+
+    static List<Rect> tiles(int width, int height) {
+        List<Rect> tiles = new ArrayList<Rect>()
+        for (int y = 0; y < height; y += TILE) {
+            for (int x = 0; x < width; x += TILE) {
+                tiles.add(new Rect(x, y, Math.min(TILE, width - x), Math.min(TILE, height - y)))
+            }
+        }
+        return tiles
+    }
+
+    @Test
+    @Tag('region-mask')
+    void testRunLengthMask() {
+        Mat mask = new Mat(300, 400, CvType.CV_8UC1, new Scalar(255))
+        mask.submat(20, 280, 30, 370).setTo(new Scalar(0))
+        mask.submat(100, 110, 0, 400).setTo(new Scalar(17))
+        RunLengthMask rle = RunLengthMask.encode(mask)
+        assertEquals(0d, maxDifference(mask, rle.decode()))
+        for (Rect region in [new Rect(0, 0, 1, 1), new Rect(25, 95, 100, 30), new Rect(350, 250, 50, 50)]) {
+            assertEquals(0d, maxDifference(mask.submat(region), rle.decode(region)))
+        }
+        assertTrue(rle.getRunCount() < 300 * 5)
+    }
+
+    @Test
+    @Tag('region-fold')
+    void testFoldTiles() {
+        for (int page in [2, 3]) {
+            Mat img = loadPage(page)
+            FoldRemover fr = new FoldRemover(img, FoldRemover.guessSide(pageFile(page).toString()))
+            fr.setKeepSize(true)
+            RegionTransform transform = fr.analyze()
+            assertWarp(transform)
+            Mat full = fr.processMat()
+            RegionProvider provider = new TransformedRegionProvider(img, transform)
+            assertEquals(full.cols(), provider.getWidth())
+            // The whole image is warped with the same matrix
+            assertEquals(0d, maxDifference(full, provider.region(provider.getBounds())))
+            for (Rect tile in tiles(provider.getWidth(), provider.getHeight())) {
+                double difference = maxDifference(full.submat(tile), provider.region(tile))
+                assertTrue(difference <= 2, "Tile ${tile} differs by ${difference}")
+            }
+        }
+    }
+
+    @Test
+    @Tag('region-background')
+    void testBackgroundTiles() {
+        Mat img = loadPage(3)
+        RegionTransform transform = new BackgroundRemover(img).analyze()
+        RegionProvider provider = new TransformedRegionProvider(img, transform)
+        Mat full = new BackgroundRemover(img.clone()).processMat()
+        assertEquals(4, provider.getChannels())
+        for (Rect tile in tiles(provider.getWidth(), provider.getHeight())) {
+            assertEquals(0d, maxDifference(full.submat(tile), provider.region(tile)))
+        }
+    }
+
+    @Test
+    @Tag('region-chain')
+    void testChainedTiles() {
+        Mat img = loadPage(5)
+        FoldRemover fr = new FoldRemover(img, FoldRemover.guessSide(pageFile(5).toString()))
+        fr.setKeepSize(true)
+        RegionTransform fold = fr.analyze()
+        assertWarp(fold)
+        Mat folded = new TransformedRegionProvider(img, fold).region(new Rect(0, 0, fold.getWidth(), fold.getHeight()))
+        RegionTransform background = new BackgroundRemover(folded).analyze()
+        Mat full = new BackgroundRemover(folded).processMat()
+
+        ChainedTransform chained = new ChainedTransform([fold, background])
+        assertWarp(chained)
+        RegionProvider provider = new TransformedRegionProvider(img, chained)
+        assertEquals(4, provider.getChannels())
+        for (Rect tile in tiles(provider.getWidth(), provider.getHeight())) {
+            double difference = maxDifference(full.submat(tile), provider.region(tile))
+            assertTrue(difference <= 2, "Tile ${tile} differs by ${difference}")
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.images.opencv.region
+
+import de.christianmahnke.lab.images.opencv.OpenCVUtil
+import groovy.transform.TypeChecked
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertThrows
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@TypeChecked
+class TiledPyramidTest {
+
+    @BeforeAll
+    static void setup() {
+        OpenCVUtil.load()
+    }
+
+    static Mat noise(int width, int height, int type) {
+        Mat img = new Mat(height, width, type)
+        Core.randu(img, 0, 256)
+        return img
+    }
+
+    static TiledPyramid pyramid(Mat img, Path file) {
+        TiledPyramid.write(new MatRegionProvider(img), file, 64)
+        return TiledPyramid.open(file)
+    }
+
+    static double maxDifference(Mat m1, Mat m2) {
+        Mat diff = new Mat()
+        Core.absdiff(m1.reshape(1), m2.reshape(1), diff)
+        double max = Core.minMaxLoc(diff).maxVal
+        diff.release()
+        return max
+    }
+
+    @Test
+    void testRegions(@TempDir Path directory) {
+        for (int type in [CvType.CV_8UC1, CvType.CV_8UC3, CvType.CV_8UC4]) {
+            Mat img = noise(301, 200, type)
+            TiledPyramid pyramid = pyramid(img, directory.resolve("${type}.pyr"))
+            assertEquals(301, pyramid.getWidth())
+            assertEquals(200, pyramid.getHeight())
+            assertEquals(img.channels(), pyramid.getChannels())
+            // 301x200, 151x100, 76x50, 38x25
+            assertEquals(4, pyramid.getLevels())
+            for (Rect region in [new Rect(0, 0, 301, 200), new Rect(10, 20, 1, 1), new Rect(63, 63, 2, 2), new Rect(100, 50, 201, 150)]) {
+                Mat expected = img.submat(region)
+                Mat actual = pyramid.region(region)
+                assertEquals(0d, maxDifference(expected, actual), "${region}")
+            }
+            pyramid.close()
+        }
+    }
+
+    @Test
+    void testLevels(@TempDir Path directory) {
+        Mat img = noise(1000, 700, CvType.CV_8UC3)
+        TiledPyramid pyramid = pyramid(img, directory.resolve('levels.pyr'))
+        assertEquals(0, pyramid.level(new Rect(0, 0, 1000, 700), new Size(1000, 700)))
+        assertEquals(0, pyramid.level(new Rect(0, 0, 1000, 700), new Size(600, 400)))
+        assertEquals(1, pyramid.level(new Rect(0, 0, 1000, 700), new Size(500, 350)))
+        assertEquals(2, pyramid.level(new Rect(0, 0, 1000, 700), new Size(200, 100)))
+
+        // A reduced level gives nearly the same result as scaling the full resolution
+        Rect region = new Rect(128, 64, 640, 512)
+        Size size = new Size(160, 128)
+        Mat expected = new Mat()
+        Imgproc.resize(img.submat(region), expected, size, 0, 0, Imgproc.INTER_AREA)
+        Mat actual = pyramid.region(region, size)
+        assertEquals(160, actual.cols())
+        assertEquals(128, actual.rows())
+        assertTrue(maxDifference(expected, actual) <= 2, "${maxDifference(expected, actual)}")
+        pyramid.close()
+    }
+
+    @Test
+    void testInvalid(@TempDir Path directory) {
+        Path file = directory.resolve('invalid.pyr')
+        Files.write(file, new byte[64])
+        assertThrows(IOException.class, { TiledPyramid.open(file) })
+
+        pyramid(noise(300, 300, CvType.CV_8UC3), file).close()
+        byte[] content = Files.readAllBytes(file)
+        Files.write(file, Arrays.copyOf(content, content.length - 1))
+        assertThrows(IOException.class, { TiledPyramid.open(file) })
+    }
+}
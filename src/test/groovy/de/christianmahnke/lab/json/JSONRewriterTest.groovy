@@ -34,7 +34,10 @@ import org.springframework.util.ResourceUtils
 
 import javax.xml.transform.stream.StreamSource
 
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertFalse
 import static org.junit.jupiter.api.Assertions.assertNotNull
+import static org.junit.jupiter.api.Assertions.assertTrue
 
 @Slf4j
 @TypeChecked
@@ -111,6 +114,58 @@ class JSONRewriterTest extends ManifestTestBase {
     }
 
 
+    static void assertSameResult(List<JSONRewriteOperation> ops, String json) {
+        JSONRewriter streaming = new JSONRewriter(ops)
+        JSONRewriter tree = new JSONRewriter(ops)
+        tree.setStreaming(false)
+        ObjectMapper mapper = new ObjectMapper()
+        assertEquals(mapper.readTree(tree.rewrite(json)), mapper.readTree(streaming.rewrite(json)))
+    }
+
+    @Test
+    void testStreaming() {
+        files.forEach (file) -> {
+            List<JSONRewriteOperation> ops = new ArrayList<>()
+            ops.add(new GoobiViewerLanguageRewriteOperation())
+            ops.add(new DeletePathRewriteOperation('$.service.label'))
+            substitutions.forEach (from, to) -> {
+                ops.add(new IIIFURLRewriteOperation(from, to))
+            }
+            assertTrue(StreamingJSONRewriter.supports(ops))
+            assertSameResult(ops, file.getText(defaultCharset))
+        }
+    }
+
+    @Test
+    void testStreamingOrder() {
+        String json = '''{"@id": "http://example.com/a", "attribution": {"de": ["Bibliothek"], "en": ["Library"]},
+            "service": {"@id": "http://example.com/search", "label": {"de": ["Suche"]}, "profile": 1},
+            "sequences": [{"canvases": [{"@id": "http://example.com/c1", "images": [{"@id": 2}]}, {"@id": "http://example.com/c2"}]}]}'''
+        List<JSONRewriteOperation> ops = new ArrayList<>()
+        ops.add(new GoobiViewerLanguageRewriteOperation())
+        ops.add(new IIIFURLRewriteOperation('http://example.com/(.*)', 'https://example.org/$1'))
+        ops.add(new DeletePathRewriteOperation('$.service'))
+        assertSameResult(ops, json)
+        // Deleting before rewriting the members inside, the tree based rewriter fails on the deleted paths
+        String reversed = new JSONRewriter(ops.reverse()).rewrite(json)
+        assertFalse(reversed.contains('"service"'))
+        assertTrue(reversed.contains('"https://example.org/c1"'))
+        ops.set(2, new DeletePathRewriteOperation('$..profile', '$.sequences'))
+        assertSameResult(ops, json)
+
+        String result = new JSONRewriter(ops.subList(0, 2)).rewrite(json)
+        assertTrue(result.contains('"https://example.org/c2"'))
+        assertTrue(result.contains('"@language":"de"'))
+    }
+
+    @Test
+    void testStreamingFallback() {
+        List<JSONRewriteOperation> ops = new ArrayList<>()
+        ops.add(new DeletePathRewriteOperation('$.sequences[0]'))
+        assertFalse(StreamingJSONRewriter.supports(ops))
+        assertEquals('{"label":"test","sequences":[]}', new JSONRewriter(ops).rewrite('{"label":"test","sequences":[{}]}'))
+    }
+
     @Test
     void testSeeAlso() {
         JSONRewriter.setupJSONPath()
@@ -0,0 +1,94 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.json
+
+import groovy.transform.TypeChecked
+import org.junit.jupiter.api.Test
+
+import java.util.regex.Pattern
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertSame
+
+@TypeChecked
+class PatternRewriterTest {
+
+    @Test
+    void testLiteralPrefix() {
+        assertEquals('https://example.com/iiif/', PatternRewriter.literalPrefix(Pattern.compile('^https://example\\.com/iiif/(.*)$')))
+        assertEquals('https://example.com/', PatternRewriter.literalPrefix(Pattern.compile('\\Qhttps://example.com/\\E(.*)')))
+        assertEquals('http', PatternRewriter.literalPrefix(Pattern.compile('https?://(.*)')))
+        assertEquals('abc', PatternRewriter.literalPrefix(Pattern.compile('abc+d')))
+        assertEquals('', PatternRewriter.literalPrefix(Pattern.compile('http://a/(.*)|https://b/(.*)')))
+        assertEquals('http://a/', PatternRewriter.literalPrefix(Pattern.compile('http://a/(b|c)')))
+        assertEquals('', PatternRewriter.literalPrefix(Pattern.compile('\\d+/(.*)')))
+        assertEquals('', PatternRewriter.literalPrefix(Pattern.compile('http://a/(.*)', Pattern.CASE_INSENSITIVE)))
+        assertEquals('a.b', PatternRewriter.literalPrefix(Pattern.compile('a.b', Pattern.LITERAL)))
+    }
+
+    @Test
+    void testRewrite() {
+        Map<Pattern, String> replacements = new LinkedHashMap<Pattern, String>()
+        replacements.put(Pattern.compile('http://example.com/iiif/image/(.*)'), 'https://example.org/image/$1')
+        replacements.put(Pattern.compile('http://example.com/iiif/(.*)'), 'https://example.org/presentation/$1')
+        replacements.put(Pattern.compile('http://example.com/(.*)'), 'https://example.org/$1')
+        replacements.put(Pattern.compile('(?<scheme>[a-z]+)://example.net/(?<rest>.*)'), '${scheme}://example.org/net/${rest}')
+        PatternRewriter rewriter = new PatternRewriter(replacements)
+
+        assertEquals('https://example.org/image/1/full/max/0/default.jpg', rewriter.rewrite('http://example.com/iiif/image/1/full/max/0/default.jpg'))
+        assertEquals('https://example.org/presentation/1/manifest', rewriter.rewrite('http://example.com/iiif/1/manifest'))
+        assertEquals('https://example.org/logo.png', rewriter.rewrite('http://example.com/logo.png'))
+        assertEquals('ftp://example.org/net/file', rewriter.rewrite('ftp://example.net/file'))
+        assertEquals('http://example.de/', rewriter.rewrite('http://example.de/'))
+        assertEquals('', rewriter.rewrite(''))
+
+        // Same results as matching the patterns one after another
+        for (String value in ['http://example.com/iiif/image/2', 'http://example.com/iiif/', 'http://example.co', 'https://example.net/x']) {
+            String expected = value
+            for (Map.Entry<Pattern, String> entry in replacements.entrySet()) {
+                if (entry.getKey().matcher(value).matches()) {
+                    expected = value.replaceAll(entry.getKey(), entry.getValue())
+                    break
+                }
+            }
+            assertEquals(expected, rewriter.rewrite(value))
+        }
+    }
+
+    @Test
+    void testCache() {
+        Map<Pattern, String> replacements = new LinkedHashMap<Pattern, String>()
+        replacements.put(Pattern.compile('http://example.com/(.*)'), 'https://example.org/$1')
+        PatternRewriter rewriter = new PatternRewriter(replacements, 16)
+        String first = rewriter.rewrite('http://example.com/a')
+        assertEquals('https://example.org/a', first)
+        assertSame(first, rewriter.rewrite('http://example.com/a'))
+    }
+
+    @Test
+    void testOperationPrecedence() {
+        IIIFURLRewriteOperation op = new IIIFURLRewriteOperation('http://example.com/(.*)', 'https://example.org/$1')
+        assertEquals('https://example.org/iiif/a', op.rewrite('$', 'http://example.com/iiif/a'))
+        // Added patterns don't override earlier ones
+        op.addURL('http://example.com/iiif/(.*)', 'https://example.org/other/$1')
+        op.setCacheSize(16)
+        assertEquals('https://example.org/iiif/a', op.rewrite('$', 'http://example.com/iiif/a'))
+        op.addURL('http://example.net/(.*)', 'https://example.org/net/$1')
+        assertEquals('https://example.org/net/a', op.rewrite('$', 'http://example.net/a'))
+    }
+}
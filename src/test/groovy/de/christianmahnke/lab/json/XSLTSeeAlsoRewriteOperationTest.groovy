@@ -0,0 +1,127 @@
+/**
+ * IIIF Image Services
+ * Copyright (C) 2022  Christian Mahnke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.christianmahnke.lab.json
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import groovy.transform.TypeChecked
+import groovy.util.logging.Slf4j
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.springframework.util.ResourceUtils
+
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+import static org.junit.jupiter.api.Assertions.assertEquals
+import static org.junit.jupiter.api.Assertions.assertTrue
+
+@Slf4j
+@TypeChecked
+class XSLTSeeAlsoRewriteOperationTest {
+    static String lido(String id) {
+        return """<?xml version="1.0" encoding="UTF-8"?>
+<lido:lido xmlns:lido="http://www.lido-schema.org"><lido:lidoRecID>${id}</lido:lidoRecID></lido:lido>"""
+    }
+
+    HttpServer server
+    AtomicInteger requests = new AtomicInteger()
+    AtomicInteger notModified = new AtomicInteger()
+    String base
+
+    @BeforeEach
+    void setup() {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+        server.createContext('/lido/', (HttpExchange exchange) -> {
+            requests.incrementAndGet()
+            String id = exchange.getRequestURI().getPath().replaceAll('.*/', '')
+            if (id == 'slow') {
+                Thread.sleep(5000)
+            }
+            String etag = "\"${id}\""
+            exchange.getResponseHeaders().add('ETag', etag)
+            if (exchange.getRequestHeaders().getFirst('If-None-Match') == etag) {
+                notModified.incrementAndGet()
+                exchange.sendResponseHeaders(304, -1)
+            } else {
+                byte[] body = lido(id).getBytes(StandardCharsets.UTF_8)
+                exchange.sendResponseHeaders(200, body.length)
+                exchange.getResponseBody().write(body)
+            }
+            exchange.close()
+        })
+        server.setExecutor(Executors.newCachedThreadPool())
+        server.start()
+        base = "http://localhost:${server.getAddress().getPort()}/lido/"
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0)
+    }
+
+    XSLTSeeAlsoRewriteOperation operation() {
+        return new XSLTSeeAlsoRewriteOperation('LIDO', new FileInputStream(ResourceUtils.getFile("classpath:xslt/lido2json.xsl")))
+    }
+
+    Map<String, Object> manifest(String... ids) {
+        List<Map<String, String>> seeAlso = new ArrayList<>()
+        for (String id in ids) {
+            seeAlso.add(['@id': base + id, format: 'text/xml', label: 'LIDO'])
+        }
+        seeAlso.add(['@id': base + 'other', format: 'application/json', label: 'LIDO'])
+        return [label: 'test', metadata: [], seeAlso: seeAlso] as Map<String, Object>
+    }
+
+    static List<String> values(Object manifest) {
+        return ((List<Map<String, Object>>) ((Map) manifest).get('metadata')).collect { Map<String, Object> m -> m.get('value') as String }
+    }
+
+    @Test
+    void testRewrite() {
+        XSLTSeeAlsoRewriteOperation op = operation()
+        assertEquals(['a', 'b', 'c'], values(op.rewrite('$', manifest('a', 'b', 'c'))))
+        assertEquals(3, requests.get())
+        // The compiled stylesheet and the cached records are reused
+        assertEquals(['b', 'a'], values(op.rewrite('$', manifest('b', 'a'))))
+        assertEquals(3, requests.get())
+    }
+
+    @Test
+    void testRevalidate() {
+        XSLTSeeAlsoRewriteOperation op = operation()
+        op.documents = new RemoteDocumentCache<String>(op::transform, Duration.ZERO)
+        assertEquals(['a'], values(op.rewrite('$', manifest('a'))))
+        assertEquals(['a'], values(op.rewrite('$', manifest('a'))))
+        assertEquals(2, requests.get())
+        assertEquals(1, notModified.get())
+    }
+
+    @Test
+    void testTimeout() {
+        XSLTSeeAlsoRewriteOperation op = operation()
+        assertEquals(['a'], values(op.rewrite('$', manifest('a'))))
+        op.documents.readTimeout = 1000
+        long start = System.currentTimeMillis()
+        assertEquals(['b'], values(op.rewrite('$', manifest('slow', 'b'))))
+        assertTrue(System.currentTimeMillis() - start < 5000)
+    }
+}